@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.benchmark;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.examples.nativescript.script.PrimeSieve;
+import org.elasticsearch.examples.nativescript.script.Primes;
+import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.script.CompiledScript;
+import org.elasticsearch.script.LeafSearchScript;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the is_prime script on every document of an in-memory segment, the same way a script query does.
+ * <p>
+ * The baseline benchmark reads the doc values and checks the values without the script, so the difference between
+ * the two is the overhead of the script. The docLookup benchmark checks the same values after reading them the way
+ * {@code doc['number'].value} does, through a map of {@link ScriptDocValues} with a cast and boxing on every document,
+ * which is how native scripts used to read them. The boundLookup benchmark takes the doc values from the same map once
+ * per segment and reads them directly, which is how native scripts read them now. With the cache enabled all iterations
+ * after the first one read the cached bitset.
+ */
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class IsPrimeScriptBenchmark {
+
+    @Param({"100000"})
+    public int docs;
+
+    @Param({"0", "1%"})
+    public String cacheSize;
+
+    @Param({"0", "1048576"})
+    public long sieveLimit;
+
+    private Path sieveDir;
+
+    private TransactionsSegment segment;
+
+    private CompiledScript script;
+
+    @Setup
+    public void setup() throws IOException {
+        sieveDir = Files.createTempDirectory("prime_sieve");
+        PrimeSieve sieve = new PrimeSieve(sieveLimit, sieveDir);
+        sieve.loadOrBuild();
+        segment = new TransactionsSegment(docs, cacheSize, sieve);
+        script = segment.compile("is_prime?field=number");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        segment.close();
+        IOUtils.rm(sieveDir);
+    }
+
+    @Benchmark
+    public int script() throws IOException {
+        LeafSearchScript leafScript = segment.engine().search(script, null, Collections.emptyMap())
+            .getLeafSearchScript(segment.leaf());
+        int primes = 0;
+        for (int doc = 0; doc < segment.maxDoc(); doc++) {
+            leafScript.setDocument(doc);
+            if ((Boolean) leafScript.run()) {
+                primes++;
+            }
+        }
+        return primes;
+    }
+
+    @Benchmark
+    public int baseline() throws IOException {
+        SortedNumericDocValues values = DocValues.getSortedNumeric(segment.leaf().reader(), "number");
+        int primes = 0;
+        for (int doc = 0; doc < segment.maxDoc(); doc++) {
+            values.setDocument(doc);
+            if (values.count() > 0 && Primes.isPrime(values.valueAt(0))) {
+                primes++;
+            }
+        }
+        return primes;
+    }
+
+    @Benchmark
+    public int docLookup() throws IOException {
+        Map<String, ScriptDocValues<?>> lookup = new HashMap<>();
+        lookup.put("number", new ScriptDocValues.Longs(DocValues.getSortedNumeric(segment.leaf().reader(), "number")));
+        int primes = 0;
+        for (int doc = 0; doc < segment.maxDoc(); doc++) {
+            ScriptDocValues.Longs values = (ScriptDocValues.Longs) lookup.get("number");
+            values.setNextDocId(doc);
+            if (values.isEmpty() == false && Primes.isPrime(values.getValue())) {
+                primes++;
+            }
+        }
+        return primes;
+    }
+
+    @Benchmark
+    public int boundLookup() throws IOException {
+        Map<String, ScriptDocValues<?>> lookup = new HashMap<>();
+        lookup.put("number", new ScriptDocValues.Longs(DocValues.getSortedNumeric(segment.leaf().reader(), "number")));
+        SortedNumericDocValues values = ((ScriptDocValues.Longs) lookup.get("number")).getInternalValues();
+        int primes = 0;
+        for (int doc = 0; doc < segment.maxDoc(); doc++) {
+            values.setDocument(doc);
+            if (values.count() > 0 && Primes.isPrime(values.valueAt(0))) {
+                primes++;
+            }
+        }
+        return primes;
+    }
+}
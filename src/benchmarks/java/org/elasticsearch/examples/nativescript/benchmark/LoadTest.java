@@ -0,0 +1,356 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.benchmark;
+
+import org.HdrHistogram.Histogram;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.network.NetworkModule;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.discovery.DiscoveryModule;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.examples.nativescript.aggregation.ProfitAggregationBuilder;
+import org.elasticsearch.examples.nativescript.plugin.NativeScriptExamplesPlugin;
+import org.elasticsearch.examples.nativescript.query.PrimeQueryBuilder;
+import org.elasticsearch.node.MockNode;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.transport.MockTcpTransportPlugin;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.elasticsearch.index.query.QueryBuilders.constantScoreQuery;
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.index.query.QueryBuilders.scriptQuery;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.scriptedMetric;
+
+/**
+ * Load test that starts a node with the plugin in this JVM, generates an index of transactions and runs concurrent
+ * searches with the example scripts, query and aggregation.
+ * <p>
+ * Each workload is warmed up and then measured separately. For each workload the test reports the throughput, the
+ * latency percentiles, the time spent in GC and the peak heap usage in JSON. The test is configured with system
+ * properties:
+ * <ul>
+ * <li>load.home: the home directory of the node, the generated index is kept there and reused by the following runs</li>
+ * <li>load.docs: the number of transactions (1000000)</li>
+ * <li>load.shards: the number of shards (1)</li>
+ * <li>load.seed: the seed of the generated transactions (42)</li>
+ * <li>load.clients: the number of concurrent searches (number of processors)</li>
+ * <li>load.warmup: the warmup time of each workload (10s)</li>
+ * <li>load.duration: the measured time of each workload (30s)</li>
+ * <li>load.workloads: comma-separated list of workloads, see {@link Workload} (all)</li>
+ * <li>load.output: the file the results are written to, the results are only printed if it is not set</li>
+ * </ul>
+ */
+public class LoadTest {
+
+    /**
+     * Searches that are sent by the load test
+     */
+    enum Workload {
+        /**
+         * The is_prime script in a script query
+         */
+        IS_PRIME {
+            @Override
+            SearchRequestBuilder search(Client client, String index) {
+                return client.prepareSearch(index).setSize(0)
+                    .setQuery(constantScoreQuery(scriptQuery(new Script(ScriptType.INLINE, "native", "is_prime",
+                        Collections.singletonMap("field", "number")))));
+            }
+        },
+        /**
+         * The prime query
+         */
+        PRIME_QUERY {
+            @Override
+            SearchRequestBuilder search(Client client, String index) {
+                return client.prepareSearch(index).setSize(0).setQuery(new PrimeQueryBuilder("number"));
+            }
+        },
+        /**
+         * The stockaggs scripts that keep all transactions
+         */
+        STOCKAGGS {
+            @Override
+            SearchRequestBuilder search(Client client, String index) {
+                return stockaggs(client, index, "transactions");
+            }
+        },
+        /**
+         * The stockaggs scripts in the fold mode
+         */
+        STOCKAGGS_FOLD {
+            @Override
+            SearchRequestBuilder search(Client client, String index) {
+                return stockaggs(client, index, "fold");
+            }
+        },
+        /**
+         * The profit aggregation
+         */
+        PROFIT {
+            @Override
+            SearchRequestBuilder search(Client client, String index) {
+                return client.prepareSearch(index).setSize(0).setQuery(matchAllQuery())
+                    .addAggregation(new ProfitAggregationBuilder("profit"));
+            }
+        };
+
+        abstract SearchRequestBuilder search(Client client, String index);
+
+        private static SearchRequestBuilder stockaggs(Client client, String index, String mode) {
+            // The init, map and combine scripts only get the params of the aggregation, which have to contain _agg
+            Map<String, Object> params = new HashMap<>();
+            params.put("_agg", new HashMap<>());
+            params.put("mode", mode);
+            return client.prepareSearch(index).setSize(0).setQuery(matchAllQuery()).setRequestCache(false)
+                .addAggregation(scriptedMetric("profit")
+                    .params(params)
+                    .initScript(new Script(ScriptType.INLINE, "native", "stockaggs_init", Collections.emptyMap()))
+                    .mapScript(new Script(ScriptType.INLINE, "native", "stockaggs_map", Collections.emptyMap()))
+                    .combineScript(new Script(ScriptType.INLINE, "native", "stockaggs_combine", Collections.emptyMap()))
+                    .reduceScript(new Script(ScriptType.INLINE, "native", "stockaggs_reduce", Collections.emptyMap())));
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path home = PathUtils.get(System.getProperty("load.home", "build/load-test"));
+        long docs = Long.parseLong(System.getProperty("load.docs", "1000000"));
+        int shards = Integer.parseInt(System.getProperty("load.shards", "1"));
+        long seed = Long.parseLong(System.getProperty("load.seed", "42"));
+        int clients = Integer.parseInt(System.getProperty("load.clients", Integer.toString(Runtime.getRuntime().availableProcessors())));
+        TimeValue warmup = TimeValue.parseTimeValue(System.getProperty("load.warmup", "10s"), "load.warmup");
+        TimeValue duration = TimeValue.parseTimeValue(System.getProperty("load.duration", "30s"), "load.duration");
+        List<Workload> workloads = new ArrayList<>();
+        String workloadNames = System.getProperty("load.workloads");
+        if (workloadNames == null) {
+            workloads.addAll(Arrays.asList(Workload.values()));
+        } else {
+            for (String workload : workloadNames.split(",")) {
+                workloads.add(Workload.valueOf(workload.trim().toUpperCase(Locale.ROOT)));
+            }
+        }
+        String output = System.getProperty("load.output");
+
+        Settings settings = Settings.builder()
+            .put(Environment.PATH_HOME_SETTING.getKey(), home.toAbsolutePath())
+            .put("cluster.name", "native-script-load-test")
+            .put("node.name", "load-test")
+            .put(NetworkModule.HTTP_ENABLED.getKey(), false)
+            .put(NetworkModule.TRANSPORT_TYPE_KEY, MockTcpTransportPlugin.MOCK_TCP_TRANSPORT_NAME)
+            .put(DiscoveryModule.DISCOVERY_TYPE_SETTING.getKey(), "single-node")
+            .build();
+        try (Node node = new MockNode(settings, Arrays.asList(NativeScriptExamplesPlugin.class, MockTcpTransportPlugin.class))) {
+            node.start();
+            Client client = node.client();
+            LoadTestIndex index = new LoadTestIndex(client, docs, shards, seed);
+            long start = System.nanoTime();
+            boolean created = index.createIfNeeded();
+            long indexingMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            XContentBuilder builder = XContentFactory.jsonBuilder().prettyPrint();
+            builder.startObject();
+            builder.field("index", index.name());
+            builder.field("docs", docs);
+            builder.field("shards", shards);
+            builder.field("seed", seed);
+            builder.field("clients", clients);
+            builder.field("warmup_seconds", warmup.seconds());
+            builder.field("duration_seconds", duration.seconds());
+            builder.field("max_heap_bytes", Runtime.getRuntime().maxMemory());
+            if (created) {
+                builder.field("indexing_millis", indexingMillis);
+            }
+            builder.startArray("workloads");
+            for (Workload workload : workloads) {
+                run(client, index.name(), workload, clients, warmup, duration).toXContent(builder);
+            }
+            builder.endArray();
+            builder.endObject();
+
+            String json = builder.string();
+            print(json);
+            if (output != null) {
+                Files.write(PathUtils.get(output), json.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @SuppressForbidden(reason = "the results are printed to the console in addition to the output file")
+    private static void print(String json) {
+        System.out.println(json);
+    }
+
+    @SuppressForbidden(reason = "the clients run outside of the node, so they don't need the thread context of EsExecutors")
+    private static ExecutorService newClientPool(int clients) {
+        return Executors.newFixedThreadPool(clients);
+    }
+
+    private static Result run(Client client, String index, Workload workload, int clients, TimeValue warmup, TimeValue duration)
+        throws Exception {
+        ExecutorService executor = newClientPool(clients);
+        try {
+            // the warmup runs the same searches, but its latencies, GC and heap usage are not recorded
+            runClients(client, index, workload, clients, warmup, executor);
+            System.gc();
+
+            List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+            long gcCount = 0;
+            long gcMillis = 0;
+            for (GarbageCollectorMXBean collector : collectors) {
+                gcCount -= collector.getCollectionCount();
+                gcMillis -= collector.getCollectionTime();
+            }
+            List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                    heapPools.add(pool);
+                }
+            }
+
+            long start = System.nanoTime();
+            Result result = runClients(client, index, workload, clients, duration, executor);
+            result.elapsedNanos = System.nanoTime() - start;
+
+            for (GarbageCollectorMXBean collector : collectors) {
+                gcCount += collector.getCollectionCount();
+                gcMillis += collector.getCollectionTime();
+            }
+            result.gcCount = gcCount;
+            result.gcMillis = gcMillis;
+            for (MemoryPoolMXBean pool : heapPools) {
+                // the pools can peak at different times, so the sum is an upper bound of the peak heap usage
+                result.heapPeakBytes += pool.getPeakUsage().getUsed();
+            }
+            return result;
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Sends the searches of the workload from all clients until the time is up
+     */
+    private static Result runClients(Client client, String index, Workload workload, int clients, TimeValue time,
+                                     ExecutorService executor) throws Exception {
+        long end = System.nanoTime() + time.nanos();
+        AtomicLong failures = new AtomicLong();
+        List<Future<Histogram>> futures = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            futures.add(executor.submit(() -> {
+                // latencies in microseconds, each client has its own histogram, so recording doesn't need synchronization
+                Histogram latencies = new Histogram(3);
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    try {
+                        SearchResponse response = workload.search(client, index).get();
+                        if (response.getFailedShards() > 0) {
+                            failures.incrementAndGet();
+                            continue;
+                        }
+                    } catch (Exception ex) {
+                        failures.incrementAndGet();
+                        continue;
+                    }
+                    latencies.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                }
+                return latencies;
+            }));
+        }
+        Histogram latencies = new Histogram(3);
+        for (Future<Histogram> future : futures) {
+            latencies.add(future.get());
+        }
+        return new Result(workload, latencies, failures.get());
+    }
+
+    private static class Result {
+
+        private final Workload workload;
+
+        private final Histogram latencies;
+
+        private final long failures;
+
+        private long elapsedNanos;
+
+        private long gcCount;
+
+        private long gcMillis;
+
+        private long heapPeakBytes;
+
+        private Result(Workload workload, Histogram latencies, long failures) {
+            this.workload = workload;
+            this.latencies = latencies;
+            this.failures = failures;
+        }
+
+        void toXContent(XContentBuilder builder) throws Exception {
+            long requests = latencies.getTotalCount();
+            builder.startObject();
+            builder.field("workload", workload.toString());
+            builder.field("requests", requests);
+            builder.field("failures", failures);
+            builder.field("throughput_per_second", requests * 1e9 / elapsedNanos);
+            builder.startObject("latency_micros");
+            builder.field("p50", latencies.getValueAtPercentile(50));
+            builder.field("p99", latencies.getValueAtPercentile(99));
+            builder.field("p999", latencies.getValueAtPercentile(99.9));
+            builder.field("max", latencies.getMaxValue());
+            builder.endObject();
+            builder.startObject("gc");
+            builder.field("collections", gcCount);
+            builder.field("time_millis", gcMillis);
+            builder.endObject();
+            builder.field("heap_peak_bytes", heapPeakBytes);
+            builder.endObject();
+        }
+    }
+}
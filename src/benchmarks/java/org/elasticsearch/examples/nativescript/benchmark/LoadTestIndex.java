@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.benchmark;
+
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Generates an index of transactions with a reproducible content for the {@link LoadTest}.
+ * <p>
+ * The content only depends on the number of documents and the seed, so the index is reused by the following runs with
+ * the same parameters. Each transaction has a number for the is_prime checks, an amount, a type and a date:
+ * <ul>
+ * <li>number: half of the values below 1,000,000, 30% below 2^31 and 20% anywhere below 2^62, so segments need
+ * all kinds of primality checks</li>
+ * <li>amount: log-normal with the median of 20, like most prices</li>
+ * <li>type: 60% sales, 38% costs and 2% refunds</li>
+ * <li>date: uniform over 30 days</li>
+ * </ul>
+ */
+class LoadTestIndex {
+
+    static final String TYPE = "stock";
+
+    private static final long START_DATE = 1493596800000L; // 2017-05-01
+
+    private static final long DATE_RANGE = TimeUnit.DAYS.toMillis(30);
+
+    private static final int BULK_SIZE = 5000;
+
+    private final Client client;
+
+    private final String name;
+
+    private final long docs;
+
+    private final int shards;
+
+    private final long seed;
+
+    LoadTestIndex(Client client, long docs, int shards, long seed) {
+        this.client = client;
+        this.name = "transactions_" + docs + "_" + shards + "_" + seed;
+        this.docs = docs;
+        this.shards = shards;
+        this.seed = seed;
+    }
+
+    String name() {
+        return name;
+    }
+
+    /**
+     * Creates and fills the index unless it was already created with all documents by a previous run
+     *
+     * @return true if the index was created
+     */
+    boolean createIfNeeded() throws Exception {
+        if (client.admin().indices().prepareExists(name).get().isExists()) {
+            client.admin().cluster().prepareHealth(name).setWaitForGreenStatus().get();
+            long count = client.prepareSearch(name).setSize(0).get().getHits().getTotalHits();
+            if (count == docs) {
+                return false;
+            }
+            client.admin().indices().prepareDelete(name).get();
+        }
+        XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject(TYPE)
+            .startObject("properties")
+            .startObject("number").field("type", "long").endObject()
+            .startObject("amount").field("type", "long").endObject()
+            .startObject("type").field("type", "keyword").endObject()
+            .startObject("date").field("type", "date").endObject()
+            .endObject().endObject().endObject();
+        client.admin().indices().prepareCreate(name)
+            .setSettings(Settings.builder()
+                .put("index.number_of_shards", shards)
+                .put("index.number_of_replicas", 0)
+                // the index is refreshed once all documents are indexed
+                .put("index.refresh_interval", -1))
+            .addMapping(TYPE, mapping)
+            .get();
+        client.admin().cluster().prepareHealth(name).setWaitForGreenStatus().get();
+        index();
+        client.admin().indices().prepareUpdateSettings(name).setSettings(Settings.builder().put("index.refresh_interval", "1s")).get();
+        client.admin().indices().prepareRefresh(name).get();
+        return true;
+    }
+
+    private void index() throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        BulkProcessor bulkProcessor = BulkProcessor.builder(client, new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(long executionId, BulkRequest request) {
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                if (response.hasFailures()) {
+                    failure.compareAndSet(null, new IllegalStateException(response.buildFailureMessage()));
+                }
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, Throwable ex) {
+                failure.compareAndSet(null, ex);
+            }
+        }).setBulkActions(BULK_SIZE).setConcurrentRequests(Runtime.getRuntime().availableProcessors()).build();
+        // the documents are generated by a single thread, so the content doesn't depend on the order of bulk requests
+        Random random = new Random(seed);
+        for (long i = 0; i < docs && failure.get() == null; i++) {
+            bulkProcessor.add(new IndexRequest(name, TYPE, Long.toString(i)).source(document(random)));
+        }
+        bulkProcessor.awaitClose(1, TimeUnit.HOURS);
+        if (failure.get() != null) {
+            throw new IllegalStateException("failed to index transactions", failure.get());
+        }
+    }
+
+    private static XContentBuilder document(Random random) throws IOException {
+        double kind = random.nextDouble();
+        long number;
+        if (kind < 0.5) {
+            number = random.nextInt(1000000);
+        } else if (kind < 0.8) {
+            number = random.nextInt(Integer.MAX_VALUE);
+        } else {
+            number = random.nextLong() >>> 2;
+        }
+        long amount = Math.max(1, Math.round(Math.exp(3 + random.nextGaussian())));
+        double typeKind = random.nextDouble();
+        String type = typeKind < 0.6 ? "sale" : typeKind < 0.98 ? "cost" : "refund";
+        long date = START_DATE + (long) (random.nextDouble() * DATE_RANGE);
+        return XContentFactory.jsonBuilder().startObject()
+            .field("number", number)
+            .field("amount", amount)
+            .field("type", type)
+            .field("date", date)
+            .endObject();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.benchmark;
+
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.examples.nativescript.script.PrimeSieve;
+import org.elasticsearch.examples.nativescript.script.Primes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Primality checks over different value distributions
+ */
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class PrimesBenchmark {
+
+    private static final int VALUES = 4096;
+
+    private static final long SIEVE_LIMIT = 1L << 24;
+
+    /**
+     * ids - sequential document ids, small - prices below 10000, int - any int, long - any non-negative long
+     */
+    @Param({"ids", "small", "int", "long"})
+    public String distribution;
+
+    private long[] values;
+
+    private Path directory;
+
+    private PrimeSieve sieve;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(42);
+        values = new long[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            switch (distribution) {
+                case "ids":
+                    values[i] = 1000000 + i;
+                    break;
+                case "small":
+                    values[i] = random.nextInt(10000);
+                    break;
+                case "int":
+                    values[i] = random.nextInt() & Integer.MAX_VALUE;
+                    break;
+                case "long":
+                    values[i] = random.nextLong() & Long.MAX_VALUE;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown distribution [" + distribution + "]");
+            }
+        }
+        directory = Files.createTempDirectory("prime_sieve");
+        sieve = new PrimeSieve(SIEVE_LIMIT, directory);
+        sieve.loadOrBuild();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        IOUtils.rm(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public int exact() {
+        int primes = 0;
+        for (long value : values) {
+            if (Primes.isPrime(value)) {
+                primes++;
+            }
+        }
+        return primes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public int sieve() {
+        int primes = 0;
+        for (long value : values) {
+            if (sieve.isPrime(value)) {
+                primes++;
+            }
+        }
+        return primes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public int probable() {
+        int primes = 0;
+        for (long value : values) {
+            if (BigInteger.valueOf(value).isProbablePrime(10)) {
+                primes++;
+            }
+        }
+        return primes;
+    }
+}
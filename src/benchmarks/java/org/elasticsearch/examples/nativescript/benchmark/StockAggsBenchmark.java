@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.benchmark;
+
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.examples.nativescript.script.PrimeSieve;
+import org.elasticsearch.script.CompiledScript;
+import org.elasticsearch.script.LeafSearchScript;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the whole init/map/combine/reduce cycle of the stockaggs scripts for a number of shards that each have the
+ * given number of transactions
+ */
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class StockAggsBenchmark {
+
+    private static final int SHARDS = 5;
+
+    @Param({"1000", "100000", "1000000"})
+    public int transactions;
+
+    @Param({"transactions", "fold"})
+    public String mode;
+
+    private Path sieveDir;
+
+    private TransactionsSegment segment;
+
+    private CompiledScript init;
+
+    private CompiledScript map;
+
+    private CompiledScript combine;
+
+    private CompiledScript reduce;
+
+    @Setup
+    public void setup() throws IOException {
+        sieveDir = Files.createTempDirectory("prime_sieve");
+        segment = new TransactionsSegment(transactions, "0", new PrimeSieve(0, sieveDir));
+        init = segment.compile("stockaggs_init?mode=" + mode);
+        map = segment.compile("stockaggs_map");
+        combine = segment.compile("stockaggs_combine");
+        reduce = segment.compile("stockaggs_reduce");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        segment.close();
+        IOUtils.rm(sieveDir);
+    }
+
+    @Benchmark
+    public Object profit() throws IOException {
+        List<Object> aggs = new ArrayList<>(SHARDS);
+        // every shard runs the scripts on the same segment
+        for (int shard = 0; shard < SHARDS; shard++) {
+            Map<String, Object> vars = new HashMap<>();
+            vars.put("_agg", new HashMap<String, Object>());
+            segment.engine().executable(init, vars).run();
+            LeafSearchScript mapScript = segment.engine().search(map, null, vars).getLeafSearchScript(segment.leaf());
+            for (int doc = 0; doc < segment.maxDoc(); doc++) {
+                mapScript.setDocument(doc);
+                mapScript.run();
+            }
+            aggs.add(segment.engine().executable(combine, vars).run());
+        }
+        Map<String, Object> vars = new HashMap<>();
+        vars.put("_aggs", aggs);
+        return segment.engine().executable(reduce, vars).run();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.benchmark;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.examples.nativescript.script.ExampleScriptEngineService;
+import org.elasticsearch.examples.nativescript.script.IsPrimeSearchScriptFactory;
+import org.elasticsearch.examples.nativescript.script.PrimeBitSetCache;
+import org.elasticsearch.examples.nativescript.script.PrimeSieve;
+import org.elasticsearch.examples.nativescript.script.ShardSearchResources;
+import org.elasticsearch.examples.nativescript.script.stockaggs.CombineScriptFactory;
+import org.elasticsearch.examples.nativescript.script.stockaggs.InitScriptFactory;
+import org.elasticsearch.examples.nativescript.script.stockaggs.MapScriptFactory;
+import org.elasticsearch.examples.nativescript.script.stockaggs.ParallelCollector;
+import org.elasticsearch.examples.nativescript.script.stockaggs.ProfitPartialCache;
+import org.elasticsearch.examples.nativescript.script.stockaggs.ReduceScriptFactory;
+import org.elasticsearch.examples.nativescript.script.stockaggs.TransactionBuffers;
+import org.elasticsearch.script.CompiledScript;
+import org.elasticsearch.script.ScriptType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * In-memory single segment index with transactions and the script engine that runs the example scripts on it
+ */
+class TransactionsSegment implements Closeable {
+
+    private final Directory directory = new RAMDirectory();
+
+    private final DirectoryReader reader;
+
+    private final Path spillDir;
+
+    private final ExampleScriptEngineService engine;
+
+    /**
+     * @param numberOfDocs number of transactions in the segment
+     * @param cacheSize    size of the is_prime cache, 0 disables the cache
+     * @param sieve        the sieve that is used by the is_prime script
+     */
+    TransactionsSegment(int numberOfDocs, String cacheSize, PrimeSieve sieve) throws IOException {
+        Random random = new Random(42);
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+            for (int i = 0; i < numberOfDocs; i++) {
+                Document document = new Document();
+                document.add(new SortedNumericDocValuesField("number", random.nextInt(1000000)));
+                document.add(new SortedNumericDocValuesField("amount", random.nextInt(1000)));
+                document.add(new SortedSetDocValuesField("type", new BytesRef(random.nextBoolean() ? "sale" : "cost")));
+                writer.addDocument(document);
+            }
+            writer.forceMerge(1);
+        }
+        reader = DirectoryReader.open(directory);
+        spillDir = Files.createTempDirectory("stockaggs_spill");
+        Settings settings = Settings.builder().put(PrimeBitSetCache.PRIME_SCRIPT_CACHE_SIZE.getKey(), cacheSize).build();
+        engine = new ExampleScriptEngineService(Arrays.asList(
+            new IsPrimeSearchScriptFactory(settings, new PrimeBitSetCache(settings), sieve),
+            new InitScriptFactory(Settings.EMPTY, spillDir, new ShardSearchResources(), new ProfitPartialCache(Settings.EMPTY),
+                new ParallelCollector(), new TransactionBuffers()),
+            new MapScriptFactory(),
+            new CombineScriptFactory(),
+            new ReduceScriptFactory()
+        ));
+    }
+
+    LeafReaderContext leaf() {
+        return reader.leaves().get(0);
+    }
+
+    int maxDoc() {
+        return reader.maxDoc();
+    }
+
+    ExampleScriptEngineService engine() {
+        return engine;
+    }
+
+    CompiledScript compile(String source) {
+        return new CompiledScript(ScriptType.INLINE, source, ExampleScriptEngineService.NAME,
+            engine.compile(source, source, Collections.emptyMap()));
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+        directory.close();
+        IOUtils.rm(spillDir);
+    }
+}
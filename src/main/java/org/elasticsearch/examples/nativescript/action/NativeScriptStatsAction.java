@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.action;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * Collects runtime metrics of the example scripts from all nodes
+ */
+public class NativeScriptStatsAction extends Action<NativeScriptStatsRequest, NativeScriptStatsResponse, NativeScriptStatsRequestBuilder> {
+
+    public static final NativeScriptStatsAction INSTANCE = new NativeScriptStatsAction();
+
+    public static final String NAME = "cluster:monitor/native_scripts/stats";
+
+    private NativeScriptStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public NativeScriptStatsRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new NativeScriptStatsRequestBuilder(client, this);
+    }
+
+    @Override
+    public NativeScriptStatsResponse newResponse() {
+        return new NativeScriptStatsResponse();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.action;
+
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.examples.nativescript.stats.TransactionBuffersStats;
+import org.elasticsearch.examples.nativescript.stats.ScriptMetricsStats;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Script metrics and transaction buffer metrics of a single node
+ */
+public class NativeScriptStatsNodeResponse extends BaseNodeResponse {
+
+    private List<ScriptMetricsStats> stats;
+
+    private TransactionBuffersStats transactionBuffersStats;
+
+    NativeScriptStatsNodeResponse() {
+    }
+
+    public NativeScriptStatsNodeResponse(DiscoveryNode node, List<ScriptMetricsStats> stats,
+                                         TransactionBuffersStats transactionBuffersStats) {
+        super(node);
+        this.stats = stats;
+        this.transactionBuffersStats = transactionBuffersStats;
+    }
+
+    public static NativeScriptStatsNodeResponse readNodeResponse(StreamInput in) throws IOException {
+        NativeScriptStatsNodeResponse response = new NativeScriptStatsNodeResponse();
+        response.readFrom(in);
+        return response;
+    }
+
+    public List<ScriptMetricsStats> getStats() {
+        return stats;
+    }
+
+    public TransactionBuffersStats getTransactionBuffersStats() {
+        return transactionBuffersStats;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        stats = in.readList(ScriptMetricsStats::new);
+        transactionBuffersStats = new TransactionBuffersStats(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeList(stats);
+        transactionBuffersStats.writeTo(out);
+    }
+}
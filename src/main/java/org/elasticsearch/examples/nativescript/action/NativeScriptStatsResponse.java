@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.action;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.examples.nativescript.stats.TransactionBuffersStats;
+import org.elasticsearch.examples.nativescript.stats.ScriptMetricsStats;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Script metrics of each node and their totals across the cluster
+ */
+public class NativeScriptStatsResponse extends BaseNodesResponse<NativeScriptStatsNodeResponse> implements ToXContent {
+
+    NativeScriptStatsResponse() {
+    }
+
+    public NativeScriptStatsResponse(ClusterName clusterName, List<NativeScriptStatsNodeResponse> nodes,
+                                     List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<NativeScriptStatsNodeResponse> readNodesFrom(StreamInput in) throws IOException {
+        return in.readList(NativeScriptStatsNodeResponse::readNodeResponse);
+    }
+
+    @Override
+    protected void writeNodesTo(StreamOutput out, List<NativeScriptStatsNodeResponse> nodes) throws IOException {
+        out.writeStreamableList(nodes);
+    }
+
+    /**
+     * Returns metrics of each script summed over all nodes
+     */
+    public Map<String, ScriptMetricsStats> getTotal() {
+        Map<String, ScriptMetricsStats> total = new TreeMap<>();
+        for (NativeScriptStatsNodeResponse node : getNodes()) {
+            for (ScriptMetricsStats stats : node.getStats()) {
+                ScriptMetricsStats scriptTotal = total.get(stats.getName());
+                if (scriptTotal == null) {
+                    total.put(stats.getName(), stats.copy());
+                } else {
+                    scriptTotal.add(stats);
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns metrics of the transaction buffers summed over all nodes
+     */
+    public TransactionBuffersStats getTransactionBuffersTotal() {
+        TransactionBuffersStats total = new TransactionBuffersStats(0, 0, 0);
+        for (NativeScriptStatsNodeResponse node : getNodes()) {
+            total.add(node.getTransactionBuffersStats());
+        }
+        return total;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("total");
+        for (ScriptMetricsStats stats : getTotal().values()) {
+            stats.toXContent(builder, params);
+        }
+        getTransactionBuffersTotal().toXContent(builder, params);
+        builder.endObject();
+        builder.startObject("nodes");
+        for (NativeScriptStatsNodeResponse node : getNodes()) {
+            builder.startObject(node.getNode().getId());
+            builder.field("name", node.getNode().getName());
+            builder.startObject("scripts");
+            for (ScriptMetricsStats stats : node.getStats()) {
+                stats.toXContent(builder, params);
+            }
+            builder.endObject();
+            node.getTransactionBuffersStats().toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
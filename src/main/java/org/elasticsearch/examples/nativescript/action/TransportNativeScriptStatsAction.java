@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.action;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.examples.nativescript.script.stockaggs.TransactionBuffers;
+import org.elasticsearch.examples.nativescript.stats.NativeScriptStats;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.List;
+
+/**
+ * Sends the stats request to the selected nodes and collects the metrics of each node
+ */
+public class TransportNativeScriptStatsAction extends TransportNodesAction<NativeScriptStatsRequest, NativeScriptStatsResponse,
+    TransportNativeScriptStatsAction.NodeRequest, NativeScriptStatsNodeResponse> {
+
+    private final NativeScriptStats stats;
+
+    private final TransactionBuffers transactionBuffers;
+
+    @Inject
+    public TransportNativeScriptStatsAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                            TransportService transportService, ActionFilters actionFilters,
+                                            IndexNameExpressionResolver indexNameExpressionResolver, NativeScriptStats stats,
+                                            TransactionBuffers transactionBuffers) {
+        super(settings, NativeScriptStatsAction.NAME, threadPool, clusterService, transportService, actionFilters,
+            indexNameExpressionResolver, NativeScriptStatsRequest::new, NodeRequest::new, ThreadPool.Names.MANAGEMENT,
+            NativeScriptStatsNodeResponse.class);
+        this.stats = stats;
+        this.transactionBuffers = transactionBuffers;
+    }
+
+    @Override
+    protected NativeScriptStatsResponse newResponse(NativeScriptStatsRequest request, List<NativeScriptStatsNodeResponse> responses,
+                                                    List<FailedNodeException> failures) {
+        return new NativeScriptStatsResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, NativeScriptStatsRequest request) {
+        return new NodeRequest(nodeId);
+    }
+
+    @Override
+    protected NativeScriptStatsNodeResponse newNodeResponse() {
+        return new NativeScriptStatsNodeResponse();
+    }
+
+    @Override
+    protected NativeScriptStatsNodeResponse nodeOperation(NodeRequest request) {
+        return new NativeScriptStatsNodeResponse(clusterService.localNode(), stats.stats(), transactionBuffers.stats());
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId) {
+            super(nodeId);
+        }
+    }
+}
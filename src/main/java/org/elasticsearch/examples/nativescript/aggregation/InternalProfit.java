@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.aggregation;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.metrics.InternalNumericMetricsAggregation;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Shard and reduced result of the profit aggregation.
+ * <p>
+ * The result is three longs, which are sent between nodes as variable length integers.
+ */
+public class InternalProfit extends InternalNumericMetricsAggregation.SingleValue implements Profit {
+
+    private final long sales;
+
+    private final long costs;
+
+    private final long count;
+
+    public InternalProfit(String name, long sales, long costs, long count, List<PipelineAggregator> pipelineAggregators,
+                          Map<String, Object> metaData) {
+        super(name, pipelineAggregators, metaData);
+        this.sales = sales;
+        this.costs = costs;
+        this.count = count;
+    }
+
+    /**
+     * Read from a stream
+     */
+    public InternalProfit(StreamInput in) throws IOException {
+        super(in);
+        sales = in.readZLong();
+        costs = in.readZLong();
+        count = in.readVLong();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeZLong(sales);
+        out.writeZLong(costs);
+        out.writeVLong(count);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return ProfitAggregationBuilder.NAME;
+    }
+
+    @Override
+    public double value() {
+        return getProfit();
+    }
+
+    @Override
+    public long getProfit() {
+        return sales - costs;
+    }
+
+    @Override
+    public long getSales() {
+        return sales;
+    }
+
+    @Override
+    public long getCosts() {
+        return costs;
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public InternalProfit doReduce(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
+        long sales = 0;
+        long costs = 0;
+        long count = 0;
+        for (InternalAggregation aggregation : aggregations) {
+            InternalProfit profit = (InternalProfit) aggregation;
+            sales += profit.sales;
+            costs += profit.costs;
+            count += profit.count;
+        }
+        return new InternalProfit(name, sales, costs, count, pipelineAggregators(), getMetaData());
+    }
+
+    @Override
+    public Object getProperty(List<String> path) {
+        if (path.isEmpty()) {
+            return this;
+        }
+        if (path.size() == 1) {
+            switch (path.get(0)) {
+                case "value":
+                case "profit":
+                    return getProfit();
+                case "sales":
+                    return sales;
+                case "costs":
+                    return costs;
+                case "count":
+                    return count;
+            }
+        }
+        throw new IllegalArgumentException("path not supported for [" + getName() + "]: " + path);
+    }
+
+    @Override
+    public XContentBuilder doXContentBody(XContentBuilder builder, Params params) throws IOException {
+        builder.field("value", getProfit());
+        builder.field("sales", sales);
+        builder.field("costs", costs);
+        builder.field("count", count);
+        return builder;
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(sales, costs, count);
+    }
+
+    @Override
+    protected boolean doEquals(Object obj) {
+        InternalProfit other = (InternalProfit) obj;
+        return sales == other.sales && costs == other.costs && count == other.count;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.aggregation;
+
+import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregation;
+
+/**
+ * Profit calculated from sale and cost transactions, the value of the aggregation is the profit
+ */
+public interface Profit extends NumericMetricsAggregation.SingleValue {
+
+    /**
+     * Total amount of sales minus total amount of costs
+     */
+    long getProfit();
+
+    /**
+     * Total amount of sales
+     */
+    long getSales();
+
+    /**
+     * Total amount of costs
+     */
+    long getCosts();
+
+    /**
+     * Number of transactions
+     */
+    long getCount();
+}
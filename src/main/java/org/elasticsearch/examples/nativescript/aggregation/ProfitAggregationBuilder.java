@@ -0,0 +1,187 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.aggregation;
+
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ObjectParser;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.examples.nativescript.script.stockaggs.SaleTypes;
+import org.elasticsearch.index.mapper.KeywordFieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationInitializationException;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Builder of the profit aggregation.
+ * <p>
+ * The aggregation calculates the same profit as the stockaggs scripts with the scripted_metric aggregation, but it
+ * reads the doc values of the type and amount fields directly, keeps the state of each bucket in primitive longs, and
+ * can be used as a sub-aggregation of bucket aggregations:
+ * <pre>
+ * "profit": {
+ *     "type_field": "type",
+ *     "amount_field": "amount",
+ *     "sale_types": ["sale"]
+ * }
+ * </pre>
+ */
+public class ProfitAggregationBuilder extends AbstractAggregationBuilder<ProfitAggregationBuilder> {
+
+    public static final String NAME = "profit";
+
+    public static final ParseField TYPE_FIELD = new ParseField("type_field");
+
+    public static final ParseField AMOUNT_FIELD = new ParseField("amount_field");
+
+    public static final ParseField SALE_TYPES = new ParseField("sale_types");
+
+    // Doc values of floating point fields contain sortable bits instead of the amount
+    private static final Set<String> INTEGRAL_TYPES = new HashSet<>(Arrays.asList("long", "integer", "short", "byte"));
+
+    private static final ObjectParser<ProfitAggregationBuilder, QueryParseContext> PARSER = new ObjectParser<>(NAME);
+
+    static {
+        PARSER.declareString(ProfitAggregationBuilder::typeField, TYPE_FIELD);
+        PARSER.declareString(ProfitAggregationBuilder::amountField, AMOUNT_FIELD);
+        PARSER.declareStringArray((builder, types) -> builder.saleTypes(types.toArray(new String[types.size()])), SALE_TYPES);
+    }
+
+    public static ProfitAggregationBuilder parse(String aggregationName, QueryParseContext context) throws IOException {
+        return PARSER.parse(context.parser(), new ProfitAggregationBuilder(aggregationName), context);
+    }
+
+    private String typeField = "type";
+
+    private String amountField = "amount";
+
+    private SaleTypes saleTypes = new SaleTypes(SaleTypes.DEFAULT_SALE_TYPE);
+
+    public ProfitAggregationBuilder(String name) {
+        super(name);
+    }
+
+    /**
+     * Read from a stream
+     */
+    public ProfitAggregationBuilder(StreamInput in) throws IOException {
+        super(in);
+        typeField = in.readString();
+        amountField = in.readString();
+        saleTypes = new SaleTypes(in.readStringArray());
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(typeField);
+        out.writeString(amountField);
+        out.writeStringArray(saleTypes.getTypes());
+    }
+
+    /**
+     * Sets the keyword field that contains the type of the transaction
+     */
+    public ProfitAggregationBuilder typeField(String typeField) {
+        this.typeField = Objects.requireNonNull(typeField, "[type_field] must not be null");
+        return this;
+    }
+
+    public String typeField() {
+        return typeField;
+    }
+
+    /**
+     * Sets the integral numeric field that contains the amount of the transaction
+     */
+    public ProfitAggregationBuilder amountField(String amountField) {
+        this.amountField = Objects.requireNonNull(amountField, "[amount_field] must not be null");
+        return this;
+    }
+
+    public String amountField() {
+        return amountField;
+    }
+
+    /**
+     * Sets the transaction types that are counted as sales, all other transactions are counted as costs
+     */
+    public ProfitAggregationBuilder saleTypes(String... saleTypes) {
+        this.saleTypes = new SaleTypes(saleTypes);
+        return this;
+    }
+
+    public String[] saleTypes() {
+        return saleTypes.getTypes();
+    }
+
+    @Override
+    protected AggregatorFactory<?> doBuild(SearchContext context, AggregatorFactory<?> parent,
+                                           AggregatorFactories.Builder subfactoriesBuilder) throws IOException {
+        if (subfactoriesBuilder.count() > 0) {
+            throw new AggregationInitializationException("Aggregator [" + name + "] of type [" + NAME + "] cannot accept sub-aggregations");
+        }
+        // Unmapped fields are fine, such documents are just counted as costs with 0 amount
+        MappedFieldType amountFieldType = context.smartNameFieldType(amountField);
+        if (amountFieldType != null && INTEGRAL_TYPES.contains(amountFieldType.typeName()) == false) {
+            throw new AggregationInitializationException("Aggregator [" + name + "] of type [" + NAME + "] requires an integral numeric ["
+                + AMOUNT_FIELD.getPreferredName() + "] but [" + amountField + "] is of type [" + amountFieldType.typeName() + "]");
+        }
+        MappedFieldType typeFieldType = context.smartNameFieldType(typeField);
+        if (typeFieldType != null && typeFieldType instanceof KeywordFieldMapper.KeywordFieldType == false) {
+            throw new AggregationInitializationException("Aggregator [" + name + "] of type [" + NAME + "] requires a keyword ["
+                + TYPE_FIELD.getPreferredName() + "] but [" + typeField + "] is of type [" + typeFieldType.typeName() + "]");
+        }
+        return new ProfitAggregatorFactory(name, context, parent, subfactoriesBuilder, metaData, typeField, amountField, saleTypes);
+    }
+
+    @Override
+    protected XContentBuilder internalXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field(TYPE_FIELD.getPreferredName(), typeField);
+        builder.field(AMOUNT_FIELD.getPreferredName(), amountField);
+        builder.array(SALE_TYPES.getPreferredName(), saleTypes.getTypes());
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public String getType() {
+        return NAME;
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(typeField, amountField, saleTypes);
+    }
+
+    @Override
+    protected boolean doEquals(Object obj) {
+        ProfitAggregationBuilder other = (ProfitAggregationBuilder) obj;
+        return Objects.equals(typeField, other.typeField)
+            && Objects.equals(amountField, other.amountField)
+            && Objects.equals(saleTypes, other.saleTypes);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.aggregation;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.LongArray;
+import org.elasticsearch.examples.nativescript.script.stockaggs.SaleTypes;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.LeafBucketCollector;
+import org.elasticsearch.search.aggregations.LeafBucketCollectorBase;
+import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregator;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects sales, costs and number of transactions for each bucket.
+ * <p>
+ * The state of all buckets is kept in big arrays indexed by the bucket ordinal, so it is accounted by the request
+ * circuit breaker and doesn't create any objects per bucket or per document.
+ */
+public class ProfitAggregator extends NumericMetricsAggregator.SingleValue {
+
+    private final String typeField;
+
+    private final String amountField;
+
+    private final SaleTypes saleTypes;
+
+    private LongArray sales;
+
+    private LongArray costs;
+
+    private LongArray counts;
+
+    public ProfitAggregator(String name, SearchContext context, Aggregator parent, String typeField, String amountField,
+                            SaleTypes saleTypes, List<PipelineAggregator> pipelineAggregators,
+                            Map<String, Object> metaData) throws IOException {
+        super(name, context, parent, pipelineAggregators, metaData);
+        this.typeField = typeField;
+        this.amountField = amountField;
+        this.saleTypes = saleTypes;
+        BigArrays bigArrays = context.bigArrays();
+        sales = bigArrays.newLongArray(1, true);
+        costs = bigArrays.newLongArray(1, true);
+        counts = bigArrays.newLongArray(1, true);
+    }
+
+    @Override
+    public boolean needsScores() {
+        return false;
+    }
+
+    @Override
+    public LeafBucketCollector getLeafCollector(LeafReaderContext ctx, LeafBucketCollector sub) throws IOException {
+        LeafReader reader = ctx.reader();
+        SortedNumericDocValues amounts = DocValues.getSortedNumeric(reader, amountField);
+        SaleTypes.Matcher types = saleTypes.matcher(DocValues.getSortedSet(reader, typeField));
+        BigArrays bigArrays = context.bigArrays();
+        return new LeafBucketCollectorBase(sub, null) {
+            @Override
+            public void collect(int doc, long bucket) throws IOException {
+                if (bucket >= counts.size()) {
+                    sales = bigArrays.grow(sales, bucket + 1);
+                    costs = bigArrays.grow(costs, bucket + 1);
+                    counts = bigArrays.grow(counts, bucket + 1);
+                }
+                amounts.setDocument(doc);
+                // Missing amount is counted as 0, same as in the map script
+                long amount = amounts.count() > 0 ? amounts.valueAt(0) : 0L;
+                if (types.isSale(doc)) {
+                    sales.increment(bucket, amount);
+                } else {
+                    costs.increment(bucket, amount);
+                }
+                counts.increment(bucket, 1);
+            }
+        };
+    }
+
+    @Override
+    public double metric(long owningBucketOrd) {
+        if (owningBucketOrd >= counts.size()) {
+            return 0;
+        }
+        return sales.get(owningBucketOrd) - costs.get(owningBucketOrd);
+    }
+
+    @Override
+    public InternalAggregation buildAggregation(long bucket) throws IOException {
+        if (bucket >= counts.size()) {
+            return buildEmptyAggregation();
+        }
+        return new InternalProfit(name, sales.get(bucket), costs.get(bucket), counts.get(bucket), pipelineAggregators(), metaData());
+    }
+
+    @Override
+    public InternalAggregation buildEmptyAggregation() {
+        return new InternalProfit(name, 0, 0, 0, pipelineAggregators(), metaData());
+    }
+
+    @Override
+    public void doClose() {
+        Releasables.close(sales, costs, counts);
+    }
+}
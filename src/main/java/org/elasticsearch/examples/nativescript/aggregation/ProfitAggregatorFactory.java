@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.aggregation;
+
+import org.elasticsearch.examples.nativescript.script.stockaggs.SaleTypes;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates profit aggregators on each shard
+ */
+public class ProfitAggregatorFactory extends AggregatorFactory<ProfitAggregatorFactory> {
+
+    private final String typeField;
+
+    private final String amountField;
+
+    private final SaleTypes saleTypes;
+
+    public ProfitAggregatorFactory(String name, SearchContext context, AggregatorFactory<?> parent,
+                                   AggregatorFactories.Builder subFactoriesBuilder, Map<String, Object> metaData,
+                                   String typeField, String amountField, SaleTypes saleTypes) throws IOException {
+        super(name, context, parent, subFactoriesBuilder, metaData);
+        this.typeField = typeField;
+        this.amountField = amountField;
+        this.saleTypes = saleTypes;
+    }
+
+    @Override
+    protected Aggregator createInternal(Aggregator parent, boolean collectsFromSingleBucket, List<PipelineAggregator> pipelineAggregators,
+                                        Map<String, Object> metaData) throws IOException {
+        return new ProfitAggregator(name, context, parent, typeField, amountField, saleTypes, pipelineAggregators, metaData);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.ingest;
+
+import org.elasticsearch.examples.nativescript.script.PrimeSieve;
+import org.elasticsearch.ingest.AbstractProcessor;
+import org.elasticsearch.ingest.ConfigurationUtils;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+import java.util.Map;
+
+/**
+ * Ingest processor that checks if the number in the field is prime and stores the result as a boolean in the
+ * target field, so searches can use a term query on the target field instead of running is_prime on every search:
+ * <pre>
+ * "is_prime": {
+ *     "field": "number",
+ *     "target_field": "number_is_prime",
+ *     "ignore_missing": false
+ * }
+ * </pre>
+ * The check is the same as the one done by the exact method of the is_prime script.
+ */
+public final class IsPrimeProcessor extends AbstractProcessor {
+
+    public static final String TYPE = "is_prime";
+
+    private final String field;
+
+    private final String targetField;
+
+    private final boolean ignoreMissing;
+
+    private final PrimeSieve sieve;
+
+    IsPrimeProcessor(String tag, String field, String targetField, boolean ignoreMissing, PrimeSieve sieve) {
+        super(tag);
+        this.field = field;
+        this.targetField = targetField;
+        this.ignoreMissing = ignoreMissing;
+        this.sieve = sieve;
+    }
+
+    String getField() {
+        return field;
+    }
+
+    String getTargetField() {
+        return targetField;
+    }
+
+    boolean isIgnoreMissing() {
+        return ignoreMissing;
+    }
+
+    @Override
+    public void execute(IngestDocument document) {
+        Object value = document.hasField(field) ? document.getFieldValue(field, Object.class) : null;
+        if (value == null) {
+            if (ignoreMissing) {
+                return;
+            }
+            throw new IllegalArgumentException("field [" + field + "] is missing or null");
+        }
+        document.setFieldValue(targetField, sieve.isPrime(toLong(field, value)));
+    }
+
+    /**
+     * Converts the value of an integral field in the source of the document, which can also be a string
+     */
+    static long toLong(String field, Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Long.parseLong((String) value);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("field [" + field + "] value [" + value + "] is not an integer", ex);
+            }
+        }
+        throw new IllegalArgumentException("field [" + field + "] value [" + value + "] of type [" + value.getClass().getName()
+            + "] is not an integer");
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public static final class Factory implements Processor.Factory {
+
+        private final PrimeSieve sieve;
+
+        public Factory(PrimeSieve sieve) {
+            this.sieve = sieve;
+        }
+
+        @Override
+        public IsPrimeProcessor create(Map<String, Processor.Factory> registry, String processorTag,
+                                       Map<String, Object> config) throws Exception {
+            String field = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "field");
+            String targetField = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "target_field", field + "_is_prime");
+            boolean ignoreMissing = ConfigurationUtils.readBooleanProperty(TYPE, processorTag, config, "ignore_missing", false);
+            return new IsPrimeProcessor(processorTag, field, targetField, ignoreMissing, sieve);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.ingest;
+
+import org.elasticsearch.examples.nativescript.script.stockaggs.SampledProfit;
+import org.elasticsearch.ingest.AbstractProcessor;
+import org.elasticsearch.ingest.ConfigurationUtils;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+import java.util.Map;
+
+/**
+ * Ingest processor that stores the sample key of the unique integer value in the field, such as a sequence number, in
+ * the target field, which has to be mapped as a long field:
+ * <pre>
+ * "sample_key": {
+ *     "field": "seq",
+ *     "target_field": "seq_sample_key"
+ * }
+ * </pre>
+ * The sample query matches a sample of documents by the keys in the target field, see
+ * {@link org.elasticsearch.examples.nativescript.query.SampleQueryBuilder}.
+ */
+public final class SampleKeyProcessor extends AbstractProcessor {
+
+    public static final String TYPE = "sample_key";
+
+    private final String field;
+
+    private final String targetField;
+
+    SampleKeyProcessor(String tag, String field, String targetField) {
+        super(tag);
+        this.field = field;
+        this.targetField = targetField;
+    }
+
+    String getField() {
+        return field;
+    }
+
+    String getTargetField() {
+        return targetField;
+    }
+
+    @Override
+    public void execute(IngestDocument document) {
+        Object value = document.hasField(field) ? document.getFieldValue(field, Object.class) : null;
+        if (value == null) {
+            // a document without the key would never be sampled
+            throw new IllegalArgumentException("field [" + field + "] is missing or null");
+        }
+        document.setFieldValue(targetField, SampledProfit.sampleKey(IsPrimeProcessor.toLong(field, value)));
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public static final class Factory implements Processor.Factory {
+
+        @Override
+        public SampleKeyProcessor create(Map<String, Processor.Factory> registry, String processorTag,
+                                         Map<String, Object> config) throws Exception {
+            String field = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "field");
+            String targetField = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "target_field",
+                field + "_sample_key");
+            return new SampleKeyProcessor(processorTag, field, targetField);
+        }
+    }
+}
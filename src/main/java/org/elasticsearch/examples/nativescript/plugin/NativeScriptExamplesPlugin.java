@@ -14,49 +14,211 @@
 
 package org.elasticsearch.examples.nativescript.plugin;
 
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.examples.nativescript.action.NativeScriptStatsAction;
+import org.elasticsearch.examples.nativescript.action.TransportNativeScriptStatsAction;
+import org.elasticsearch.examples.nativescript.aggregation.InternalProfit;
+import org.elasticsearch.examples.nativescript.aggregation.ProfitAggregationBuilder;
+import org.elasticsearch.examples.nativescript.ingest.IsPrimeProcessor;
+import org.elasticsearch.examples.nativescript.ingest.SampleKeyProcessor;
+import org.elasticsearch.examples.nativescript.query.PrimeQueryBuilder;
+import org.elasticsearch.examples.nativescript.query.SampleQueryBuilder;
+import org.elasticsearch.examples.nativescript.rest.RestNativeScriptStatsAction;
+import org.elasticsearch.examples.nativescript.script.CompilableScriptFactory;
+import org.elasticsearch.examples.nativescript.script.ExampleScriptEngineService;
 import org.elasticsearch.examples.nativescript.script.IsPrimeSearchScriptFactory;
+import org.elasticsearch.examples.nativescript.script.MeteredScriptFactory;
+import org.elasticsearch.examples.nativescript.script.PrimeBitSetCache;
+import org.elasticsearch.examples.nativescript.script.PrimeSieve;
+import org.elasticsearch.examples.nativescript.script.ShardSearchResources;
 import org.elasticsearch.examples.nativescript.script.stockaggs.CombineScriptFactory;
 import org.elasticsearch.examples.nativescript.script.stockaggs.InitScriptFactory;
 import org.elasticsearch.examples.nativescript.script.stockaggs.MapScriptFactory;
+import org.elasticsearch.examples.nativescript.script.stockaggs.ParallelCollector;
+import org.elasticsearch.examples.nativescript.script.stockaggs.ProfitPartialCache;
 import org.elasticsearch.examples.nativescript.script.stockaggs.ReduceScriptFactory;
+import org.elasticsearch.examples.nativescript.script.stockaggs.TransactionBuffers;
+import org.elasticsearch.examples.nativescript.stats.NativeScriptStats;
+import org.elasticsearch.index.IndexModule;
+import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.plugins.ActionPlugin;
+import org.elasticsearch.plugins.IngestPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.ScriptPlugin;
+import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
 import org.elasticsearch.script.NativeScriptFactory;
+import org.elasticsearch.script.ScriptEngineService;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 
 import static org.elasticsearch.examples.nativescript.script.IsPrimeSearchScriptFactory.PRIME_SCRIPT_DEFAULT_FIELD_NAME;
+import static org.elasticsearch.examples.nativescript.script.PrimeBitSetCache.PRIME_SCRIPT_CACHE_SIZE;
+import static org.elasticsearch.examples.nativescript.script.PrimeSieve.PRIME_SCRIPT_SIEVE_LIMIT;
+import static org.elasticsearch.examples.nativescript.script.stockaggs.ProfitPartialCache.STOCKAGGS_CACHE_SIZE;
+import static org.elasticsearch.examples.nativescript.script.stockaggs.Transactions.STOCKAGGS_SPILL_THRESHOLD;
 
 /**
  * This class is instantiated when Elasticsearch loads the plugin for the
  * first time. If you change the name of this plugin, make sure to update
  * src/main/resources/es-plugin.properties file that points to this class.
  */
-public class NativeScriptExamplesPlugin extends Plugin implements ScriptPlugin {
+public class NativeScriptExamplesPlugin extends Plugin implements ScriptPlugin, SearchPlugin, ActionPlugin, IngestPlugin {
 
     private final Settings settings;
 
+    // The directory in the node path where the plugin keeps its files, known once the node starts
+    private final PluginDataPath dataPath = new PluginDataPath();
+
+    // Node-level state that is shared by all scripts running on this node
+    private final PrimeBitSetCache primeBitSetCache;
+
+    private final PrimeSieve primeSieve;
+
+    private final ProfitPartialCache profitPartialCache;
+
+    private final ParallelCollector parallelCollector = new ParallelCollector();
+
+    private final TransactionBuffers transactionBuffers = new TransactionBuffers();
+
+    private final ShardSearchResources shardSearchResources = new ShardSearchResources();
+
+    private final NativeScriptStats nativeScriptStats = new NativeScriptStats();
+
+    // The same factories are used by native scripts and by the script engine
+    private final List<CompilableScriptFactory> scriptFactories;
+
     public NativeScriptExamplesPlugin(Settings settings) {
         this.settings = settings;
+        this.primeBitSetCache = new PrimeBitSetCache(settings);
+        this.primeSieve = new PrimeSieve(settings, dataPath);
+        this.profitPartialCache = new ProfitPartialCache(settings);
+        this.scriptFactories = new ArrayList<>();
+        for (CompilableScriptFactory factory : Arrays.asList(
+            new IsPrimeSearchScriptFactory(settings, primeBitSetCache, primeSieve),
+            new InitScriptFactory(settings, dataPath::spillDirectory, shardSearchResources, profitPartialCache, parallelCollector,
+                transactionBuffers),
+            new MapScriptFactory(),
+            new CombineScriptFactory(),
+            new ReduceScriptFactory())) {
+            // Records runtime metrics of each script that are available through the stats endpoint
+            scriptFactories.add(new MeteredScriptFactory(factory, nativeScriptStats.metrics(factory.getName()), shardSearchResources));
+        }
     }
 
     @Override
     public List<Setting<?>> getSettings() {
-        return Collections.singletonList(PRIME_SCRIPT_DEFAULT_FIELD_NAME);
+        return Arrays.asList(
+            PRIME_SCRIPT_DEFAULT_FIELD_NAME,
+            PRIME_SCRIPT_CACHE_SIZE,
+            PRIME_SCRIPT_SIEVE_LIMIT,
+            STOCKAGGS_CACHE_SIZE,
+            STOCKAGGS_SPILL_THRESHOLD
+        );
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService, ScriptService scriptService,
+                                               NamedXContentRegistry xContentRegistry) {
+        // Segments of stockaggs requests with the parallel parameter are collected by the plugin thread pool from now on
+        parallelCollector.start(threadPool);
+        // Profiles of scripts in profiled requests are returned in the response headers of the requests from now on
+        shardSearchResources.start(threadPool.getThreadContext());
+        // Components returned here can be injected into transport actions and services
+        return Arrays.asList(nativeScriptStats, transactionBuffers, dataPath, primeSieve);
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> getGuiceServiceClasses() {
+        // Cleans up the spill directory and loads the sieve in the node path once the node environment is available
+        return Collections.singletonList(PluginDataPath.Service.class);
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        // The bounded thread pool that collects segments of the stockaggs scripts in parallel
+        return Collections.singletonList(ParallelCollector.executorBuilder(settings));
+    }
+
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        // Gives scripts access to the search context of the request they are running in
+        indexModule.addSearchOperationListener(shardSearchResources);
     }
 
     @Override
     public List<NativeScriptFactory> getNativeScripts() {
+        return new ArrayList<>(scriptFactories);
+    }
+
+    @Override
+    public ScriptEngineService getScriptEngineService(Settings settings) {
+        // Runs the same scripts with params that are parsed once when the script is compiled
+        return new ExampleScriptEngineService(scriptFactories);
+    }
+
+    @Override
+    public List<AggregationSpec> getAggregations() {
+        // The profit aggregation calculates the same result as the stockaggs scripts
+        return Collections.singletonList(new AggregationSpec(ProfitAggregationBuilder.NAME, ProfitAggregationBuilder::new,
+            ProfitAggregationBuilder::parse).addResultReader(InternalProfit::new));
+    }
+
+    @Override
+    public List<QuerySpec<?>> getQueries() {
         return Arrays.asList(
-            new IsPrimeSearchScriptFactory(settings),
-            new InitScriptFactory(),
-            new MapScriptFactory(),
-            new CombineScriptFactory(),
-            new ReduceScriptFactory()
-        );
+            // The parsers of the prime query are created on each node, so they can use the sieve of the node
+            new QuerySpec<>(PrimeQueryBuilder.NAME, in -> new PrimeQueryBuilder(in, primeSieve),
+                context -> PrimeQueryBuilder.fromXContent(context, primeSieve)),
+            // Samples documents for the stockaggs scripts before they are collected
+            new QuerySpec<>(SampleQueryBuilder.NAME, SampleQueryBuilder::new, SampleQueryBuilder::fromXContent));
+    }
+
+    @Override
+    public Map<String, Processor.Factory> getProcessors(Processor.Parameters parameters) {
+        Map<String, Processor.Factory> processors = new HashMap<>();
+        // Precomputes primality at index time using the same sieve as the searches
+        processors.put(IsPrimeProcessor.TYPE, new IsPrimeProcessor.Factory(primeSieve));
+        // Precomputes the keys that the sample query samples documents by
+        processors.put(SampleKeyProcessor.TYPE, new SampleKeyProcessor.Factory());
+        return processors;
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Collections.singletonList(new ActionHandler<>(NativeScriptStatsAction.INSTANCE, TransportNativeScriptStatsAction.class));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController, ClusterSettings clusterSettings,
+                                             IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return Collections.singletonList(new RestNativeScriptStatsAction(settings, restController));
     }
 }
@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.plugin;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.examples.nativescript.script.PrimeSieve;
+import org.elasticsearch.examples.nativescript.script.stockaggs.Transactions;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.nio.file.Path;
+import java.util.function.Supplier;
+
+/**
+ * The directory where the plugin keeps its files on this node.
+ * <p>
+ * Several nodes can share the same data path, each of them locks its own node path in it, so the directory is in the node
+ * path and not in the data path. The node path is known once the node environment is created, which is after the plugin is
+ * created, so the directory is set by {@link Service} when the node starts. Until then, and on nodes that don't store data
+ * locally, {@link #get()} returns null.
+ */
+public class PluginDataPath implements Supplier<Path> {
+
+    public static final String DIRECTORY = "native_script_example";
+
+    /**
+     * The subdirectory where the stockaggs scripts spill transactions that don't fit into heap
+     */
+    public static final String SPILL_DIRECTORY = "tmp";
+
+    private volatile Path path;
+
+    @Override
+    @Nullable
+    public Path get() {
+        return path;
+    }
+
+    /**
+     * Returns the directory where the stockaggs scripts spill transactions or null if the directory of the plugin is not known
+     */
+    @Nullable
+    public Path spillDirectory() {
+        Path path = this.path;
+        return path == null ? null : path.resolve(SPILL_DIRECTORY);
+    }
+
+    /**
+     * Resolves the directory of the plugin in the node path, cleans it up and starts the work that needs it once the node starts
+     */
+    public static class Service extends AbstractLifecycleComponent {
+
+        private final NodeEnvironment nodeEnvironment;
+
+        private final ThreadPool threadPool;
+
+        private final PluginDataPath dataPath;
+
+        private final PrimeSieve primeSieve;
+
+        @Inject
+        public Service(Settings settings, NodeEnvironment nodeEnvironment, ThreadPool threadPool, PluginDataPath dataPath,
+                       PrimeSieve primeSieve) {
+            super(settings);
+            this.nodeEnvironment = nodeEnvironment;
+            this.threadPool = threadPool;
+            this.dataPath = dataPath;
+            this.primeSieve = primeSieve;
+        }
+
+        @Override
+        protected void doStart() {
+            if (nodeEnvironment.hasNodeFile() == false) {
+                logger.debug("the node doesn't store data locally, the plugin files are not used");
+                return;
+            }
+            Path path = nodeEnvironment.nodeDataPaths()[0].resolve(DIRECTORY);
+            // Spill files of requests that were running when this node stopped are not needed anymore. The node path is locked
+            // by this node, so the files of other nodes sharing the data path are not touched, and they are deleted before the
+            // directory is published, so no request of this node can spill into it yet.
+            Transactions.deleteSpillFiles(path.resolve(SPILL_DIRECTORY));
+            dataPath.path = path;
+            // The sieve might take a while to build, so we are doing it in background and don't block the node startup
+            primeSieve.loadAsync(threadPool.generic());
+        }
+
+        @Override
+        protected void doStop() {
+        }
+
+        @Override
+        protected void doClose() {
+        }
+    }
+}
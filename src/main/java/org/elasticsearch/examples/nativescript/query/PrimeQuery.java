@@ -0,0 +1,234 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.query;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.examples.nativescript.script.IsPrimeSearchScriptFactory.Method;
+import org.elasticsearch.examples.nativescript.script.PrimeBlock;
+import org.elasticsearch.examples.nativescript.script.PrimeKernel;
+import org.elasticsearch.examples.nativescript.script.PrimeSieve;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Matches documents with a prime number in the given integral numeric field.
+ * <p>
+ * The query iterates in two phases. The approximation is documents that have a value in the field, which is read
+ * from the _field_names field, and the primality of the value is only checked for documents that match all other
+ * required clauses. The reported match cost is the cost of the check that is picked for the segment, so conjunctions
+ * check cheaper clauses first. If the query is not a part of a conjunction, documents are checked a block at a time by
+ * {@link PrimeBlock}. Segments where no value can be a prime are skipped, see {@link PrimeKernel}.
+ */
+public class PrimeQuery extends Query {
+
+    private final String field;
+
+    @Nullable
+    private final String fieldNamesField;
+
+    @Nullable
+    private final PrimeSieve sieve;
+
+    /**
+     * @param field           the field with numbers
+     * @param fieldNamesField the field that indexes names of fields that exist in each document or null if it is disabled
+     * @param sieve           the sieve or null to always use the computed test
+     */
+    public PrimeQuery(String field, @Nullable String fieldNamesField, @Nullable PrimeSieve sieve) {
+        this.field = field;
+        this.fieldNamesField = fieldNamesField;
+        this.sieve = sieve;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        return new ConstantScoreWeight(this) {
+
+            @Override
+            public void extractTerms(Set<Term> terms) {
+            }
+
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                LeafReader reader = context.reader();
+                PrimeKernel kernel = PrimeKernel.select(reader, field, Method.EXACT, sieve);
+                DocIdSetIterator approximation = approximation(reader, kernel);
+                if (approximation == null) {
+                    return null;
+                }
+                SortedNumericDocValues values = DocValues.getSortedNumeric(reader, field);
+                TwoPhaseIterator twoPhase = new TwoPhaseIterator(approximation) {
+                    @Override
+                    public boolean matches() throws IOException {
+                        values.setDocument(approximation.docID());
+                        return values.count() > 0 && kernel.isPrime(values.valueAt(0), sieve, 0);
+                    }
+
+                    @Override
+                    public float matchCost() {
+                        // the check picked for the segment, a sieve lookup is much cheaper than Miller-Rabin
+                        return kernel.matchCost();
+                    }
+                };
+                return new ConstantScoreScorer(this, score(), twoPhase);
+            }
+
+            /**
+             * If the query is not a part of a conjunction, all documents with a value are checked a block at a time
+             */
+            @Override
+            public BulkScorer bulkScorer(LeafReaderContext context) throws IOException {
+                LeafReader reader = context.reader();
+                PrimeKernel kernel = PrimeKernel.select(reader, field, Method.EXACT, sieve);
+                DocIdSetIterator approximation = approximation(reader, kernel);
+                if (approximation == null) {
+                    return null;
+                }
+                return new PrimeBulkScorer(this, score(), approximation, DocValues.getSortedNumeric(reader, field), kernel);
+            }
+        };
+    }
+
+    /**
+     * Returns documents that have a value in the field or null if none of the values in the segment can be a prime
+     */
+    @Nullable
+    private DocIdSetIterator approximation(LeafReader reader, PrimeKernel kernel) throws IOException {
+        if (kernel == PrimeKernel.NONE) {
+            // the field doesn't exist in the segment or no value in its range is a prime
+            return null;
+        }
+        if (fieldNamesField != null) {
+            return reader.postings(new Term(fieldNamesField, field), PostingsEnum.NONE);
+        }
+        return DocIdSetIterator.all(reader.maxDoc());
+    }
+
+    private class PrimeBulkScorer extends BulkScorer {
+
+        private final BlockScorer scorer;
+
+        private final DocIdSetIterator approximation;
+
+        private final SortedNumericDocValues values;
+
+        private final PrimeKernel kernel;
+
+        private final PrimeBlock block = new PrimeBlock();
+
+        private PrimeBulkScorer(Weight weight, float score, DocIdSetIterator approximation, SortedNumericDocValues values,
+                                PrimeKernel kernel) {
+            this.scorer = new BlockScorer(weight, score);
+            this.approximation = approximation;
+            this.values = values;
+            this.kernel = kernel;
+        }
+
+        @Override
+        public int score(LeafCollector collector, Bits acceptDocs, int min, int max) throws IOException {
+            collector.setScorer(scorer);
+            int doc = approximation.docID();
+            if (doc < min) {
+                doc = approximation.advance(min);
+            }
+            while (block.fill(approximation, values, acceptDocs, max) > 0) {
+                block.evaluate(kernel, sieve, 0);
+                for (int i = block.nextMatch(0); i < PrimeBlock.SIZE; i = block.nextMatch(i + 1)) {
+                    scorer.doc = block.doc(i);
+                    collector.collect(scorer.doc);
+                }
+            }
+            return approximation.docID();
+        }
+
+        @Override
+        public long cost() {
+            return approximation.cost();
+        }
+    }
+
+    /**
+     * Constant score of the document that is collected by {@link PrimeBulkScorer}
+     */
+    private static class BlockScorer extends Scorer {
+
+        private final float score;
+
+        private int doc = -1;
+
+        private BlockScorer(Weight weight, float score) {
+            super(weight);
+            this.score = score;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public float score() {
+            return score;
+        }
+
+        @Override
+        public int freq() {
+            return 1;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Override
+    public String toString(String defaultField) {
+        return "prime(" + field + ")";
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        // the sieve and the approximation don't change the result, so they are not part of the cache key
+        return sameClassAs(obj) && field.equals(((PrimeQuery) obj).field);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * classHash() + field.hashCode();
+    }
+}
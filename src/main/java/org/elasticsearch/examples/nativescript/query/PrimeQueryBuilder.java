@@ -0,0 +1,169 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.query;
+
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.examples.nativescript.script.PrimeSieve;
+import org.elasticsearch.index.mapper.FieldNamesFieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.query.QueryShardException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Query that matches documents with a prime number in an integral numeric field:
+ * <pre>
+ * "prime": {
+ *     "field": "number"
+ * }
+ * </pre>
+ * Unlike the is_prime script in a script query, the prime query checks primality only for documents that match all
+ * other required clauses of the query, and it can be cached by the query cache.
+ */
+public class PrimeQueryBuilder extends AbstractQueryBuilder<PrimeQueryBuilder> {
+
+    public static final String NAME = "prime";
+
+    public static final ParseField FIELD_FIELD = new ParseField("field");
+
+    private static final Set<String> INTEGRAL_TYPES = new HashSet<>(Arrays.asList("long", "integer", "short", "byte"));
+
+    private final String field;
+
+    // The sieve is only available on the nodes, the query uses the computed test if it is missing
+    @Nullable
+    private final PrimeSieve sieve;
+
+    public PrimeQueryBuilder(String field) {
+        this(field, null);
+    }
+
+    public PrimeQueryBuilder(String field, @Nullable PrimeSieve sieve) {
+        if (Strings.isEmpty(field)) {
+            throw new IllegalArgumentException("[" + NAME + "] requires a field");
+        }
+        this.field = field;
+        this.sieve = sieve;
+    }
+
+    /**
+     * Read from a stream
+     */
+    public PrimeQueryBuilder(StreamInput in, @Nullable PrimeSieve sieve) throws IOException {
+        super(in);
+        field = in.readString();
+        this.sieve = sieve;
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(field);
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public static Optional<PrimeQueryBuilder> fromXContent(QueryParseContext context, @Nullable PrimeSieve sieve) throws IOException {
+        XContentParser parser = context.parser();
+        String field = null;
+        float boost = AbstractQueryBuilder.DEFAULT_BOOST;
+        String queryName = null;
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue()) {
+                if (FIELD_FIELD.match(currentFieldName)) {
+                    field = parser.text();
+                } else if (AbstractQueryBuilder.BOOST_FIELD.match(currentFieldName)) {
+                    boost = parser.floatValue();
+                } else if (AbstractQueryBuilder.NAME_FIELD.match(currentFieldName)) {
+                    queryName = parser.text();
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(),
+                        "[" + NAME + "] query does not support [" + currentFieldName + "]");
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(),
+                    "[" + NAME + "] unknown token [" + token + "] after [" + currentFieldName + "]");
+            }
+        }
+        if (field == null) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] requires a field");
+        }
+        PrimeQueryBuilder builder = new PrimeQueryBuilder(field, sieve);
+        builder.boost(boost);
+        builder.queryName(queryName);
+        return Optional.of(builder);
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(FIELD_FIELD.getPreferredName(), field);
+        printBoostAndQueryName(builder);
+        builder.endObject();
+    }
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException {
+        MappedFieldType fieldType = context.fieldMapper(field);
+        if (fieldType == null) {
+            return new MatchNoDocsQuery("field [" + field + "] is not mapped");
+        }
+        if (INTEGRAL_TYPES.contains(fieldType.typeName()) == false || fieldType.hasDocValues() == false) {
+            throw new QueryShardException(context, "[" + NAME + "] query requires an integral numeric field with doc values, but field ["
+                + field + "] is of type [" + fieldType.typeName() + "]");
+        }
+        FieldNamesFieldMapper.FieldNamesFieldType fieldNamesFieldType =
+            (FieldNamesFieldMapper.FieldNamesFieldType) context.getMapperService().fullName(FieldNamesFieldMapper.NAME);
+        String fieldNamesField = fieldNamesFieldType != null && fieldNamesFieldType.isEnabled() ? FieldNamesFieldMapper.NAME : null;
+        return new PrimeQuery(fieldType.name(), fieldNamesField, sieve);
+    }
+
+    @Override
+    protected boolean doEquals(PrimeQueryBuilder other) {
+        return Objects.equals(field, other.field);
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(field);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+}
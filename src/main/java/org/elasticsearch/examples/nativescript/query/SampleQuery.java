@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.query;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.Nullable;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Matches documents whose sample key is below the threshold of the sample rate.
+ * <p>
+ * The query rewrites to the range query on the sample key field, so documents that are not in the sample are skipped
+ * by the points index and are never read. It is kept as a separate query before the rewrite, so the stockaggs scripts
+ * can find the rate of the sample in the query of the request, see {@link #findRequired(Query)}.
+ */
+public class SampleQuery extends Query {
+
+    private final double rate;
+
+    private final Query keyQuery;
+
+    /**
+     * @param rate     the sample rate
+     * @param keyQuery the query that matches the sample keys below the threshold of the rate
+     */
+    public SampleQuery(double rate, Query keyQuery) {
+        this.rate = rate;
+        this.keyQuery = keyQuery;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public Query getKeyQuery() {
+        return keyQuery;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        return keyQuery;
+    }
+
+    /**
+     * Returns the sample query that all documents matching the given query have to match or null if there is none. Only
+     * required clauses of boolean queries and wrapped queries are followed.
+     */
+    @Nullable
+    public static SampleQuery findRequired(Query query) {
+        if (query instanceof SampleQuery) {
+            return (SampleQuery) query;
+        }
+        if (query instanceof ConstantScoreQuery) {
+            return findRequired(((ConstantScoreQuery) query).getQuery());
+        }
+        if (query instanceof BoostQuery) {
+            return findRequired(((BoostQuery) query).getQuery());
+        }
+        if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                if (clause.isRequired()) {
+                    SampleQuery sample = findRequired(clause.getQuery());
+                    if (sample != null) {
+                        return sample;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString(String field) {
+        return "sample(rate=" + rate + ", " + keyQuery.toString(field) + ")";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) && rate == ((SampleQuery) other).rate && keyQuery.equals(((SampleQuery) other).keyQuery);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classHash(), rate, keyQuery);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.query;
+
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.examples.nativescript.script.stockaggs.SampledProfit;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.query.QueryShardException;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Query that matches a deterministic sample of documents by the sample keys in a long field, which are computed at
+ * index time by the sample_key ingest processor:
+ * <pre>
+ * "sample": {
+ *     "field": "seq_sample_key",
+ *     "rate": 0.01
+ * }
+ * </pre>
+ * Documents that are not in the sample are skipped by the points index of the field, so the rest of the query and
+ * the aggregations of the request only see the sampled documents. The stockaggs scripts with the sample_rate
+ * parameter require this query, see {@link SampledProfit}.
+ */
+public class SampleQueryBuilder extends AbstractQueryBuilder<SampleQueryBuilder> {
+
+    public static final String NAME = "sample";
+
+    public static final ParseField FIELD_FIELD = new ParseField("field");
+
+    public static final ParseField RATE_FIELD = new ParseField("rate");
+
+    private final String field;
+
+    private final double rate;
+
+    public SampleQueryBuilder(String field, double rate) {
+        if (Strings.isEmpty(field)) {
+            throw new IllegalArgumentException("[" + NAME + "] requires a field");
+        }
+        SampledProfit.threshold(rate);
+        this.field = field;
+        this.rate = rate;
+    }
+
+    /**
+     * Read from a stream
+     */
+    public SampleQueryBuilder(StreamInput in) throws IOException {
+        super(in);
+        field = in.readString();
+        rate = in.readDouble();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(field);
+        out.writeDouble(rate);
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public double rate() {
+        return rate;
+    }
+
+    public static Optional<SampleQueryBuilder> fromXContent(QueryParseContext context) throws IOException {
+        XContentParser parser = context.parser();
+        String field = null;
+        Double rate = null;
+        float boost = AbstractQueryBuilder.DEFAULT_BOOST;
+        String queryName = null;
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue()) {
+                if (FIELD_FIELD.match(currentFieldName)) {
+                    field = parser.text();
+                } else if (RATE_FIELD.match(currentFieldName)) {
+                    rate = parser.doubleValue();
+                } else if (AbstractQueryBuilder.BOOST_FIELD.match(currentFieldName)) {
+                    boost = parser.floatValue();
+                } else if (AbstractQueryBuilder.NAME_FIELD.match(currentFieldName)) {
+                    queryName = parser.text();
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(),
+                        "[" + NAME + "] query does not support [" + currentFieldName + "]");
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(),
+                    "[" + NAME + "] unknown token [" + token + "] after [" + currentFieldName + "]");
+            }
+        }
+        if (field == null) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] requires a field");
+        }
+        if (rate == null) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] requires a rate");
+        }
+        SampleQueryBuilder builder;
+        try {
+            builder = new SampleQueryBuilder(field, rate);
+        } catch (IllegalArgumentException ex) {
+            throw new ParsingException(parser.getTokenLocation(), ex.getMessage(), ex);
+        }
+        builder.boost(boost);
+        builder.queryName(queryName);
+        return Optional.of(builder);
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(FIELD_FIELD.getPreferredName(), field);
+        builder.field(RATE_FIELD.getPreferredName(), rate);
+        printBoostAndQueryName(builder);
+        builder.endObject();
+    }
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException {
+        MappedFieldType fieldType = context.fieldMapper(field);
+        if (fieldType == null) {
+            return new MatchNoDocsQuery("field [" + field + "] is not mapped");
+        }
+        if ("long".equals(fieldType.typeName()) == false || fieldType.indexOptions() == IndexOptions.NONE) {
+            throw new QueryShardException(context, "[" + NAME + "] query requires an indexed long field with sample keys, but field ["
+                + field + "] is of type [" + fieldType.typeName() + "]");
+        }
+        long threshold = SampledProfit.threshold(rate);
+        return new SampleQuery(rate, fieldType.rangeQuery(0L, threshold, true, false, context));
+    }
+
+    @Override
+    protected boolean doEquals(SampleQueryBuilder other) {
+        return Objects.equals(field, other.field) && rate == other.rate;
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(field, rate);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.rest;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.examples.nativescript.action.NativeScriptStatsAction;
+import org.elasticsearch.examples.nativescript.action.NativeScriptStatsRequest;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions.NodesResponseRestListener;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * Returns runtime metrics of the example scripts on each node and totals across the cluster:
+ * <pre>
+ * GET /_native_scripts/stats
+ * GET /_native_scripts/stats/{nodeId}
+ * </pre>
+ */
+public class RestNativeScriptStatsAction extends BaseRestHandler {
+
+    public RestNativeScriptStatsAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(GET, "/_native_scripts/stats", this);
+        controller.registerHandler(GET, "/_native_scripts/stats/{nodeId}", this);
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        NativeScriptStatsRequest statsRequest = new NativeScriptStatsRequest(Strings.splitStringByCommaToArray(request.param("nodeId")));
+        statsRequest.timeout(request.param("timeout"));
+        return channel -> client.execute(NativeScriptStatsAction.INSTANCE, statsRequest, new NodesResponseRestListener<>(channel));
+    }
+}
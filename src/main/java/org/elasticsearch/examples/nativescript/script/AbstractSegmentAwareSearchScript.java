@@ -0,0 +1,223 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.examples.nativescript.stats.ScriptMetrics;
+import org.elasticsearch.examples.nativescript.stats.ScriptProfile;
+import org.elasticsearch.index.fielddata.FieldData;
+import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.index.fielddata.SortedBinaryDocValues;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.script.AbstractSearchScript;
+import org.elasticsearch.search.lookup.LeafDocLookup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Base class for native search scripts that keep per-segment state.
+ * <p>
+ * The {@link AbstractSearchScript} is reused for all segments of a shard, but it is not notified when the search moves
+ * to the next segment. This class calls {@link #setNextReader(LeafReader)} before the first document of every segment.
+ * <p>
+ * Scripts that are created by {@link ExampleScriptEngineService} are created for each segment and bound to it using
+ * {@link #setLeafReader(LeafReader, MapperService)}. They get the reader of the segment, so they can read its doc values directly and
+ * keep state that is keyed by the segment, such as cached per-segment results. Such scripts don't have the search lookup,
+ * so they cannot use {@link #doc()}, {@link #source()} or {@link #fields()}.
+ * <p>
+ * Native scripts are not told which segment they run on and the search lookup doesn't expose its reader. A new lookup is
+ * created for every segment, so the segment change is detected when the lookup changes and {@link #setNextReader(LeafReader)}
+ * is called without the reader. Native scripts take the field data of the segment from the lookup once per segment, see
+ * {@link #longValues(LeafReader, String)} and {@link #stringValues(String)}, so reading a document is a primitive read as
+ * well, but they cannot use state that is keyed by the segment, such as cached per-segment results or the range of values
+ * in the points index of the segment.
+ * <p>
+ * Subclasses implement {@link #doRun()}, which is wrapped by {@link #run()} that records runtime metrics of the script.
+ * If the search request is profiled, every run is timed and subclasses report the time they spent reading doc values
+ * to the {@link #profile()}.
+ */
+public abstract class AbstractSegmentAwareSearchScript extends AbstractSearchScript {
+
+    // the doc lookup of the current segment of a native script, a new lookup is created for every segment
+    private LeafDocLookup segmentLookup;
+
+    private int docId = -1;
+
+    private boolean boundToReader;
+
+    // the mapping of scripts that are bound to their segment, native scripts take it from the doc lookup
+    private MapperService mapperService;
+
+    private ScriptMetrics metrics;
+
+    private ShardSearchResources resources;
+
+    private ScriptProfile profile;
+
+    private long runs;
+
+    void setMetrics(ScriptMetrics metrics, ShardSearchResources resources) {
+        this.metrics = metrics;
+        this.resources = resources;
+    }
+
+    /**
+     * Binds the script to the segment without the search lookup
+     *
+     * @param mapperService the mapping of the index or null if it is not available, in which case field types are not checked
+     */
+    public final void setLeafReader(LeafReader reader, @Nullable MapperService mapperService) throws IOException {
+        boundToReader = true;
+        this.mapperService = mapperService;
+        startSegment(reader);
+    }
+
+    @Override
+    public void setDocument(int doc) {
+        if (boundToReader == false) {
+            super.setDocument(doc);
+            LeafDocLookup current = doc();
+            if (current != segmentLookup) {
+                segmentLookup = current;
+                try {
+                    startSegment(null);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        }
+        docId = doc;
+    }
+
+    private void startSegment(@Nullable LeafReader reader) throws IOException {
+        // profiling is enabled per request, the same script instance is never shared by several requests
+        profile = resources == null ? null : resources.profile(metrics);
+        setNextReader(reader);
+    }
+
+    @Override
+    public final Object run() {
+        if (metrics == null) {
+            return doRun();
+        }
+        if (profile != null) {
+            long start = System.nanoTime();
+            Object result = doRun();
+            long took = System.nanoTime() - start;
+            profile.onRun(result, took);
+            metrics.onRun(result, ScriptMetrics.shouldSample(runs++) ? took : -1);
+            return result;
+        }
+        if (ScriptMetrics.shouldSample(runs++)) {
+            long start = System.nanoTime();
+            Object result = doRun();
+            metrics.onRun(result, System.nanoTime() - start);
+            return result;
+        }
+        Object result = doRun();
+        metrics.onRun(result, -1);
+        return result;
+    }
+
+    /**
+     * Runs the script on the current document
+     */
+    protected abstract Object doRun();
+
+    /**
+     * Called before the first document of each segment
+     *
+     * @param reader the reader of the segment or null if the script runs as a native script, which doesn't know its segment
+     */
+    protected abstract void setNextReader(@Nullable LeafReader reader) throws IOException;
+
+    /**
+     * Returns the type of the field or null if the field is not mapped or the mapping is not available
+     */
+    @Nullable
+    protected final MappedFieldType fieldType(String field) {
+        MapperService mappers = boundToReader ? mapperService : doc().mapperService();
+        return mappers == null ? null : mappers.fullName(field);
+    }
+
+    /**
+     * Returns the values of the integral numeric field in the current segment. Native scripts get the field data of the
+     * segment that backs {@code doc()[field]}, so the values are read without the lookup map and without boxing.
+     */
+    protected final SortedNumericDocValues longValues(@Nullable LeafReader reader, String field) throws IOException {
+        if (reader != null) {
+            return DocValues.getSortedNumeric(reader, field);
+        }
+        LeafDocLookup lookup = doc();
+        if (lookup.containsKey(field) == false) {
+            // unmapped fields have no values, same as missing doc values
+            return DocValues.emptySortedNumeric(0);
+        }
+        ScriptDocValues<?> values = lookup.get(field);
+        if (values instanceof ScriptDocValues.Longs == false) {
+            throw new IllegalArgumentException("field [" + field + "] is not an integral numeric field");
+        }
+        return ((ScriptDocValues.Longs) values).getInternalValues();
+    }
+
+    /**
+     * Returns the values of the string field in the current segment of a native script. Native scripts get the field data of
+     * the segment that backs {@code doc()[field]}, so the values are read as bytes without the lookup map. Scripts that are
+     * bound to their segment read the ordinals of the field instead.
+     */
+    protected final SortedBinaryDocValues stringValues(String field) {
+        LeafDocLookup lookup = doc();
+        if (lookup.containsKey(field) == false) {
+            // unmapped fields have no values, same as missing doc values
+            return FieldData.emptySortedBinary(0);
+        }
+        ScriptDocValues<?> values = lookup.get(field);
+        if (values instanceof ScriptDocValues.Strings == false) {
+            throw new IllegalArgumentException("field [" + field + "] is not a string field");
+        }
+        return ((ScriptDocValues.Strings) values).getInternalValues();
+    }
+
+    /**
+     * Records in the script metrics how the current segment is processed, for example which fast path is used
+     */
+    protected final void onSegment(String path) {
+        if (metrics != null) {
+            metrics.onSegment(path);
+        }
+        if (profile != null) {
+            profile.onSegment(path);
+        }
+    }
+
+    /**
+     * Returns the profile of the script in the current request or null if the request is not profiled
+     */
+    protected final ScriptProfile profile() {
+        return profile;
+    }
+
+    /**
+     * Returns the id of the current document within the current segment
+     */
+    protected final int docId() {
+        return docId;
+    }
+}
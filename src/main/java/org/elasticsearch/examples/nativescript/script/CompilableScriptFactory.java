@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.NativeScriptFactory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Native script factory that separates parsing of the script parameters from creation of the scripts.
+ * <p>
+ * The {@link NativeScriptFactory} parses parameters every time a script is created, which happens on every shard of
+ * every search. Factories that implement this interface can also be used by {@link ExampleScriptEngineService}, which
+ * parses and validates the parameters once, when the script is compiled, and then reuses the result.
+ */
+public interface CompilableScriptFactory extends NativeScriptFactory {
+
+    /**
+     * Parses and validates the script parameters.
+     *
+     * @param params the script parameters
+     * @return function that creates a new script using only the variables that are passed to the script during execution,
+     * such as _agg
+     */
+    Function<Map<String, Object>, ExecutableScript> compile(Map<String, Object> params);
+
+    @Override
+    default ExecutableScript newScript(@Nullable Map<String, Object> params) {
+        return compile(params == null ? Collections.emptyMap() : params).apply(params);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.rest.RestUtils;
+import org.elasticsearch.script.CompiledScript;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.LeafSearchScript;
+import org.elasticsearch.script.ScriptEngineService;
+import org.elasticsearch.script.SearchScript;
+import org.elasticsearch.search.lookup.SearchLookup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Script engine that runs the example scripts as compiled scripts.
+ * <p>
+ * The script source is the name of the script optionally followed by parameters in the query string format, for
+ * example {@code is_prime?field=number&method=exact} or {@code stockaggs_map?type_field=kind&sale_types=retail,wholesale}.
+ * The parameters are parsed and validated when the script is compiled, and since compiled scripts are cached by
+ * Elasticsearch, repeated requests with the same script reuse the result. Parameters that are passed with the script
+ * during execution would not change the compiled script, so they are rejected, except for the state variables of the
+ * scripted metric aggregation.
+ * <p>
+ * Unlike native scripts, which are deprecated in 5.5 and removed in 6.0, script engines are available in later versions.
+ */
+public class ExampleScriptEngineService implements ScriptEngineService {
+
+    public static final String NAME = "native_example";
+
+    /**
+     * Variables that the scripted metric aggregation passes to its scripts during execution
+     */
+    private static final Set<String> RUNTIME_VARS = new HashSet<>(Arrays.asList("_agg", "_aggs"));
+
+    private final Map<String, CompilableScriptFactory> factories = new HashMap<>();
+
+    public ExampleScriptEngineService(List<CompilableScriptFactory> factories) {
+        for (CompilableScriptFactory factory : factories) {
+            this.factories.put(factory.getName(), factory);
+        }
+    }
+
+    @Override
+    public String getType() {
+        return NAME;
+    }
+
+    @Override
+    public String getExtension() {
+        return NAME;
+    }
+
+    @Override
+    public Object compile(String scriptName, String scriptSource, Map<String, String> options) {
+        int paramsStart = scriptSource.indexOf('?');
+        String name = (paramsStart < 0 ? scriptSource : scriptSource.substring(0, paramsStart)).trim();
+        CompilableScriptFactory factory = factories.get(name);
+        if (factory == null) {
+            throw new IllegalArgumentException("Unknown script [" + name + "], expected one of " + factories.keySet());
+        }
+        Map<String, String> params = new HashMap<>();
+        if (paramsStart >= 0) {
+            RestUtils.decodeQueryString(scriptSource, paramsStart + 1, params);
+        }
+        return new Compiled(factory, factory.compile(new HashMap<>(params)));
+    }
+
+    @Override
+    public ExecutableScript executable(CompiledScript compiledScript, @Nullable Map<String, Object> vars) {
+        Compiled compiled = (Compiled) compiledScript.compiled();
+        checkVars(compiled, vars);
+        return compiled.scripts.apply(vars);
+    }
+
+    @Override
+    public SearchScript search(CompiledScript compiledScript, SearchLookup lookup, @Nullable Map<String, Object> vars) {
+        Compiled compiled = (Compiled) compiledScript.compiled();
+        checkVars(compiled, vars);
+        return new SearchScript() {
+            @Override
+            public LeafSearchScript getLeafSearchScript(LeafReaderContext context) throws IOException {
+                ExecutableScript script = compiled.scripts.apply(vars);
+                if (script instanceof AbstractSegmentAwareSearchScript == false) {
+                    throw new IllegalArgumentException("Script [" + compiled.factory.getName() + "] cannot be used as a search script");
+                }
+                // Scripts are created for each segment and read doc values of the segment directly without the lookup
+                AbstractSegmentAwareSearchScript searchScript = (AbstractSegmentAwareSearchScript) script;
+                searchScript.setLeafReader(context.reader(), lookup == null ? null : lookup.doc().mapperService());
+                return searchScript;
+            }
+
+            @Override
+            public boolean needsScores() {
+                return compiled.factory.needsScores();
+            }
+        };
+    }
+
+    /**
+     * Throws an exception if the script is executed with parameters, which have to be set in the script source instead
+     */
+    private static void checkVars(Compiled compiled, @Nullable Map<String, Object> vars) {
+        if (vars == null) {
+            return;
+        }
+        for (String name : vars.keySet()) {
+            if (RUNTIME_VARS.contains(name) == false) {
+                throw new IllegalArgumentException("Script [" + compiled.factory.getName() + "] of the [" + NAME + "] language doesn't "
+                    + "accept parameter [" + name + "] during execution, set it in the script source instead, for example ["
+                    + compiled.factory.getName() + "?" + name + "=...]");
+            }
+        }
+    }
+
+    @Override
+    public boolean isInlineScriptEnabled() {
+        // The engine can only run the scripts that are defined in this plugin, so it is safe to enable inline scripts
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static class Compiled {
+        private final CompilableScriptFactory factory;
+        private final Function<Map<String, Object>, ExecutableScript> scripts;
+
+        private Compiled(CompilableScriptFactory factory, Function<Map<String, Object>, ExecutableScript> scripts) {
+            this.factory = factory;
+            this.scripts = scripts;
+        }
+    }
+}
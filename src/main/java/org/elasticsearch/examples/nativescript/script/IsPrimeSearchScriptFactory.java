@@ -14,56 +14,128 @@
 
 package org.elasticsearch.examples.nativescript.script;
 
+import java.io.IOException;
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.FixedBitSet;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
-import org.elasticsearch.index.fielddata.ScriptDocValues;
-import org.elasticsearch.index.fielddata.ScriptDocValues.Longs;
-import org.elasticsearch.script.AbstractSearchScript;
+import org.elasticsearch.examples.nativescript.stats.ScriptProfile;
+import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.script.ExecutableScript;
-import org.elasticsearch.script.NativeScriptFactory;
 
 /**
  * Implementation of the native script that checks that the field exists and contains a prime number.
  * <p>
+ * The field has to be an integral numeric field with doc values. When the script is run by the
+ * {@link ExampleScriptEngineService}, it reads the doc values of each segment directly, the range of values of the field
+ * in the segment is taken from the points index and is used to pick the cheapest check for the segment or to skip the
+ * segment completely, see {@link PrimeKernel}, and the results of the segment are cached in the {@link PrimeBitSetCache}.
+ * Native scripts don't know their segment, so they don't have its points index and cannot skip segments without primes:
+ * the check is picked by the type of the field only, for example integer fields are still checked by the sieve, and every
+ * document is checked on every search, because results that are not keyed by the segment cannot be cached.
+ * <p>
+ * If the fields or the mode parameter is specified, all values of all fields are checked and combined according to
+ * the mode, see {@link IsPrimeMultiSearchScript}.
+ * <p>
  * Native scripts are built using factories that are returned by
  * {@link org.elasticsearch.examples.nativescript.plugin.NativeScriptExamplesPlugin#getNativeScripts()}
  * method when plugin is loaded.
  */
-public class IsPrimeSearchScriptFactory implements NativeScriptFactory {
+public class IsPrimeSearchScriptFactory implements CompilableScriptFactory {
     // Plugins can use elasticsearch settings and even define their own settings
     // Here we are defining a settings from default value of the prime field
     public static final Setting<String> PRIME_SCRIPT_DEFAULT_FIELD_NAME =
         Setting.simpleString("my_scripts.prime.default_field_name", Setting.Property.NodeScope);
 
+    private static final Logger logger = Loggers.getLogger(IsPrimeSearchScriptFactory.class);
+
     public final String defaultFieldName;
 
-    public IsPrimeSearchScriptFactory(Settings settings) {
+    private final PrimeBitSetCache cache;
+
+    private final PrimeSieve sieve;
+
+    public IsPrimeSearchScriptFactory(Settings settings, PrimeBitSetCache cache, PrimeSieve sieve) {
         defaultFieldName = PRIME_SCRIPT_DEFAULT_FIELD_NAME.get(settings);
+        this.cache = cache;
+        this.sieve = sieve;
     }
     /**
-     * This method is called for every search on every shard.
+     * This method is called for every search on every shard when the script is used as a native script and
+     * only once when it is compiled by {@link ExampleScriptEngineService}.
      *
      * @param params list of script parameters passed with the query
-     * @return new native script
+     * @return function that creates new scripts
      */
     @Override
-    public ExecutableScript newScript(@Nullable Map<String, Object> params) {
+    public Function<Map<String, Object>, ExecutableScript> compile(Map<String, Object> params) {
+        // Example of an optional integer  parameter
+        int certainty = XContentMapValues.nodeIntegerValue(params.get("certainty"), 10);
+
+        // Example of an optional enum parameter
+        Method method = Method.fromString(XContentMapValues.nodeStringValue(params.get("method"), null));
+
+        Object fieldsParam = params.get("fields");
+        Object modeParam = params.get("mode");
+        if (fieldsParam != null || modeParam != null) {
+            // Example of a list parameter, the script engine passes lists as comma-separated strings
+            String[] fieldNames = fieldsParam == null ? new String[]{fieldName(params)} : fieldNames(fieldsParam);
+            if (fieldsParam != null && params.containsKey("field")) {
+                throw new IllegalArgumentException("The field and fields parameters cannot be used together");
+            }
+            Mode mode = Mode.fromString(XContentMapValues.nodeStringValue(modeParam, null));
+            return vars -> new IsPrimeMultiSearchScript(fieldNames, mode, method, certainty, sieve);
+        }
+
+        String fieldName = fieldName(params);
+        return vars -> new IsPrimeSearchScript(fieldName, method, certainty, cache, sieve);
+    }
+
+    private String fieldName(Map<String, Object> params) {
         // Example of a mandatory string parameter
         // The XContentMapValues helper class can be used to simplify parameter parsing
-        String fieldName = params == null ? null : XContentMapValues.nodeStringValue(params.get("field"), defaultFieldName);
+        String fieldName = XContentMapValues.nodeStringValue(params.get("field"), defaultFieldName);
         if (!Strings.hasLength(fieldName)) {
             throw new IllegalArgumentException("Missing the field parameter");
         }
+        return fieldName;
+    }
 
-        // Example of an optional integer  parameter
-        int certainty = params == null ? 10 : XContentMapValues.nodeIntegerValue(params.get("certainty"), 10);
-        return new IsPrimeSearchScript(fieldName, certainty);
+    private static String[] fieldNames(Object fieldsParam) {
+        String[] fieldNames;
+        if (fieldsParam instanceof List) {
+            List<?> list = (List<?>) fieldsParam;
+            fieldNames = new String[list.size()];
+            for (int i = 0; i < fieldNames.length; i++) {
+                fieldNames[i] = XContentMapValues.nodeStringValue(list.get(i), null);
+            }
+        } else {
+            fieldNames = Strings.splitStringByCommaToArray(fieldsParam.toString());
+        }
+        if (fieldNames.length == 0) {
+            throw new IllegalArgumentException("The fields parameter cannot be empty");
+        }
+        for (String fieldName : fieldNames) {
+            if (!Strings.hasLength(fieldName)) {
+                throw new IllegalArgumentException("The fields parameter cannot contain empty field names");
+            }
+        }
+        return fieldNames;
     }
 
     @Override
@@ -76,45 +148,301 @@ public class IsPrimeSearchScriptFactory implements NativeScriptFactory {
         return "is_prime";
     }
 
+    /**
+     * The method that is used to check that a number is prime
+     */
+    public enum Method {
+        /**
+         * Deterministic check that gives exact answer for every long value, the certainty parameter is ignored
+         */
+        EXACT,
+        /**
+         * Probabilistic check using {@link BigInteger#isProbablePrime(int)} with the specified certainty
+         */
+        PROBABLE;
+
+        public static Method fromString(@Nullable String method) {
+            if (method == null) {
+                return EXACT;
+            }
+            switch (method) {
+                case "exact":
+                    return EXACT;
+                case "probable":
+                    return PROBABLE;
+                default:
+                    throw new IllegalArgumentException("Unknown method [" + method + "], expected [exact] or [probable]");
+            }
+        }
+    }
+
+    /**
+     * How the values of all fields of a document are combined by {@link IsPrimeMultiSearchScript}
+     */
+    public enum Mode {
+        /**
+         * At least one value is a prime
+         */
+        ANY,
+        /**
+         * The document has at least one value and all values are prime
+         */
+        ALL,
+        /**
+         * The number of prime values
+         */
+        COUNT;
+
+        public static Mode fromString(@Nullable String mode) {
+            if (mode == null) {
+                return ANY;
+            }
+            switch (mode) {
+                case "any":
+                    return ANY;
+                case "all":
+                    return ALL;
+                case "count":
+                    return COUNT;
+                default:
+                    throw new IllegalArgumentException("Unknown mode [" + mode + "], expected [any], [all] or [count]");
+            }
+        }
+    }
+
     /**
      * The native script has to implement {@link org.elasticsearch.script.SearchScript} interface. But the
      * {@link org.elasticsearch.script.AbstractSearchScript} class can be used to simplify the implementation.
+     * Here we are using {@link AbstractSegmentAwareSearchScript} that also notifies the script about segment changes.
      */
-    public static class IsPrimeSearchScript extends AbstractSearchScript {
+    public static class IsPrimeSearchScript extends AbstractSegmentAwareSearchScript {
 
         private final String fieldName;
 
+        private final Method method;
+
         private final int certainty;
 
+        private final PrimeBitSetCache cache;
+
+        private final PrimeSieve sieve;
+
+        /**
+         * The check that is used for the current segment
+         */
+        private PrimeKernel kernel;
+
+        /**
+         * Documents with prime numbers in the current segment or null if the cache is disabled
+         */
+        private FixedBitSet primes;
+
+        /**
+         * Doc values of the field in the current segment, only used if the cache is disabled or not available
+         */
+        private SortedNumericDocValues values;
+
         /**
          * Factory creates this script on every
          *
          * @param fieldName the name of the field that should be checked
-         * @param certainty the required certainty for the number to be prime
+         * @param method    the method that is used to check the number
+         * @param certainty the required certainty for the number to be prime, only used by {@link Method#PROBABLE}
+         * @param cache     the node-level cache of per-segment results
+         * @param sieve     the node-level sieve that is used by {@link Method#EXACT} for small values
          */
-        private IsPrimeSearchScript(String fieldName, int certainty) {
+        private IsPrimeSearchScript(String fieldName, Method method, int certainty, PrimeBitSetCache cache, PrimeSieve sieve) {
             this.fieldName = fieldName;
+            this.method = method;
             this.certainty = certainty;
+            this.cache = cache;
+            this.sieve = sieve;
+        }
+
+        @Override
+        protected void setNextReader(@Nullable LeafReader reader) throws IOException {
+            MappedFieldType fieldType = fieldType(fieldName);
+            PrimeKernel.checkFieldType(fieldName, fieldType);
+            // Native scripts don't know their segment, so the check is selected by the type of the field only and results
+            // cannot be cached
+            kernel = reader == null ? PrimeKernel.select(method, fieldType, sieve)
+                : PrimeKernel.select(reader, fieldName, method, sieve);
+            logger.debug("checking field [{}] in segment [{}] using [{}]", fieldName, reader, kernel);
+            onSegment(kernel.toString());
+            primes = null;
+            values = null;
+            if (kernel == PrimeKernel.NONE) {
+                // no value in this segment can be a prime, there is nothing to read or to cache
+                return;
+            }
+            if (reader != null && cache.isEnabled()) {
+                primes = cache.getOrCompute(reader, fieldName, method, certainty, this::computePrimes);
+            } else {
+                // Binding doc values once per segment, so reading the value of a document is a primitive read
+                // without the map lookup and the boxing of doc(), native scripts included
+                values = longValues(reader, fieldName);
+            }
+        }
+
+        /**
+         * Checks all documents in the segment at once, so the following searches on this segment can just read the bitset.
+         * The documents are checked a block at a time, see {@link PrimeBlock}.
+         */
+        private FixedBitSet computePrimes(LeafReader reader) throws IOException {
+            FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+            SortedNumericDocValues values = DocValues.getSortedNumeric(reader, fieldName);
+            DocIdSetIterator docs = DocIdSetIterator.all(reader.maxDoc());
+            docs.nextDoc();
+            PrimeBlock block = new PrimeBlock();
+            while (block.fill(docs, values, null, DocIdSetIterator.NO_MORE_DOCS) > 0) {
+                block.evaluate(kernel, sieve, certainty);
+                for (int i = block.nextMatch(0); i < PrimeBlock.SIZE; i = block.nextMatch(i + 1)) {
+                    bits.set(block.doc(i));
+                }
+            }
+            return bits;
         }
 
         @Override
-        @SuppressWarnings("unchecked")
-        public Object run() {
-            // First we get field using doc lookup
-            ScriptDocValues<Long> docValue = (ScriptDocValues<Long>) doc().get(fieldName);
+        protected Object doRun() {
+            if (kernel == PrimeKernel.NONE) {
+                return false;
+            }
+            if (primes != null) {
+                return primes.get(docId());
+            }
+            ScriptProfile profile = profile();
+            long start = profile == null ? 0 : System.nanoTime();
+            values.setDocument(docId());
             // Check if field exists
-            if (docValue != null && !docValue.isEmpty()) {
-                try {
-                    // Try to parse it as an integer
-                    BigInteger bigInteger = BigInteger.valueOf(((Longs) docValue).getValue());
-                    // Check if it's prime
-                    return bigInteger.isProbablePrime(certainty);
-                } catch (NumberFormatException ex) {
-                    return false;
+            boolean exists = values.count() > 0;
+            long value = exists ? values.valueAt(0) : 0;
+            if (profile != null) {
+                profile.onLookup(System.nanoTime() - start);
+            }
+            return exists && kernel.isPrime(value, sieve, certainty);
+        }
+
+    }
+
+    /**
+     * Checks all values of several fields of each document in one pass. The check of a document stops as soon as its result
+     * of the document is known, so {@link Mode#ANY} stops at the first prime value and {@link Mode#ALL} stops at the first
+     * value that is not a prime.
+     */
+    public static class IsPrimeMultiSearchScript extends AbstractSegmentAwareSearchScript {
+
+        private final String[] fieldNames;
+
+        private final Mode mode;
+
+        private final Method method;
+
+        private final int certainty;
+
+        private final PrimeSieve sieve;
+
+        /**
+         * Number of fields that are checked in the current segment
+         */
+        private int fieldCount;
+
+        /**
+         * Doc values and checks of the fields that are checked in the current segment, cheaper checks first
+         */
+        private final SortedNumericDocValues[] values;
+
+        private final PrimeKernel[] kernels;
+
+        private IsPrimeMultiSearchScript(String[] fieldNames, Mode mode, Method method, int certainty, PrimeSieve sieve) {
+            this.fieldNames = fieldNames;
+            this.mode = mode;
+            this.method = method;
+            this.certainty = certainty;
+            this.sieve = sieve;
+            this.values = new SortedNumericDocValues[fieldNames.length];
+            this.kernels = new PrimeKernel[fieldNames.length];
+        }
+
+        @Override
+        protected void setNextReader(@Nullable LeafReader reader) throws IOException {
+            PrimeKernel[] segmentKernels = new PrimeKernel[fieldNames.length];
+            Integer[] order = new Integer[fieldNames.length];
+            for (int i = 0; i < fieldNames.length; i++) {
+                MappedFieldType fieldType = fieldType(fieldNames[i]);
+                PrimeKernel.checkFieldType(fieldNames[i], fieldType);
+                // Native scripts don't know their segment, so the check is selected by the type of the field only
+                segmentKernels[i] = reader == null ? PrimeKernel.select(method, fieldType, sieve)
+                    : PrimeKernel.select(reader, fieldNames[i], method, sieve);
+                order[i] = i;
+                onSegment(segmentKernels[i].toString());
+            }
+            // The order of fields doesn't change the result, so the cheapest checks are done first
+            Arrays.sort(order, Comparator.comparing(i -> segmentKernels[i]));
+            fieldCount = 0;
+            for (int i : order) {
+                if (segmentKernels[i] == PrimeKernel.NONE && mode != Mode.ALL) {
+                    // none of the values of this field can be a prime, but in the all mode any value fails the document
+                    continue;
+                }
+                kernels[fieldCount] = segmentKernels[i];
+                values[fieldCount] = longValues(reader, fieldNames[i]);
+                fieldCount++;
+            }
+        }
+
+        @Override
+        protected Object doRun() {
+            switch (mode) {
+                case ANY:
+                    return any();
+                case ALL:
+                    return all();
+                default:
+                    return count();
+            }
+        }
+
+        private boolean any() {
+            for (int field = 0; field < fieldCount; field++) {
+                SortedNumericDocValues fieldValues = values[field];
+                fieldValues.setDocument(docId());
+                for (int i = 0; i < fieldValues.count(); i++) {
+                    if (kernels[field].isPrime(fieldValues.valueAt(i), sieve, certainty)) {
+                        return true;
+                    }
                 }
             }
             return false;
         }
 
+        private boolean all() {
+            boolean exists = false;
+            for (int field = 0; field < fieldCount; field++) {
+                SortedNumericDocValues fieldValues = values[field];
+                fieldValues.setDocument(docId());
+                for (int i = 0; i < fieldValues.count(); i++) {
+                    if (kernels[field].isPrime(fieldValues.valueAt(i), sieve, certainty) == false) {
+                        return false;
+                    }
+                    exists = true;
+                }
+            }
+            return exists;
+        }
+
+        private long count() {
+            long count = 0;
+            for (int field = 0; field < fieldCount; field++) {
+                SortedNumericDocValues fieldValues = values[field];
+                fieldValues.setDocument(docId());
+                for (int i = 0; i < fieldValues.count(); i++) {
+                    if (kernels[field].isPrime(fieldValues.valueAt(i), sieve, certainty)) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
     }
 }
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script;
+
+import org.elasticsearch.examples.nativescript.stats.ScriptMetrics;
+import org.elasticsearch.script.AbstractExecutableScript;
+import org.elasticsearch.script.ExecutableScript;
+
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Records runtime metrics of scripts created by another factory.
+ * <p>
+ * Search scripts record their runs themselves in {@link AbstractSegmentAwareSearchScript#run()}, because native search
+ * scripts have to be {@link org.elasticsearch.script.AbstractSearchScript}s and cannot be wrapped. Other scripts
+ * are wrapped. Search scripts also record their profile in search requests with profiling enabled.
+ */
+public class MeteredScriptFactory implements CompilableScriptFactory {
+
+    private final CompilableScriptFactory delegate;
+
+    private final ScriptMetrics metrics;
+
+    private final ShardSearchResources resources;
+
+    public MeteredScriptFactory(CompilableScriptFactory delegate, ScriptMetrics metrics, ShardSearchResources resources) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.resources = resources;
+    }
+
+    @Override
+    public Function<Map<String, Object>, ExecutableScript> compile(Map<String, Object> params) {
+        Function<Map<String, Object>, ExecutableScript> scripts = delegate.compile(params);
+        return vars -> {
+            metrics.onNewScript();
+            ExecutableScript script = scripts.apply(vars);
+            if (script instanceof AbstractSegmentAwareSearchScript) {
+                ((AbstractSegmentAwareSearchScript) script).setMetrics(metrics, resources);
+                return script;
+            }
+            return new MeteredExecutableScript(script, metrics);
+        };
+    }
+
+    @Override
+    public boolean needsScores() {
+        return delegate.needsScores();
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    private static class MeteredExecutableScript extends AbstractExecutableScript {
+
+        private final ExecutableScript delegate;
+
+        private final ScriptMetrics metrics;
+
+        private long runs;
+
+        private MeteredExecutableScript(ExecutableScript delegate, ScriptMetrics metrics) {
+            this.delegate = delegate;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void setNextVar(String name, Object value) {
+            delegate.setNextVar(name, value);
+        }
+
+        @Override
+        public Object run() {
+            if (ScriptMetrics.shouldSample(runs++)) {
+                long start = System.nanoTime();
+                Object result = delegate.run();
+                metrics.onRun(result, System.nanoTime() - start);
+                return result;
+            }
+            Object result = delegate.run();
+            metrics.onRun(result, -1);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheLoader;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.examples.nativescript.script.IsPrimeSearchScriptFactory.Method;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Node-level cache of per-segment bitsets of documents that contain prime numbers.
+ * <p>
+ * Lucene segments are immutable, so once the bitset is calculated for a segment it stays valid until the
+ * segment is closed. The cache is bounded by the total size of all bitsets and evicts the least recently
+ * used entries first. All entries of a segment are removed when the segment core is closed.
+ * <p>
+ * Only scripts of the {@link ExampleScriptEngineService} use the cache, because they are bound to the reader of their
+ * segment. Native scripts are not told which segment they run on, so they check every document on every search.
+ */
+public class PrimeBitSetCache {
+
+    public static final Setting<ByteSizeValue> PRIME_SCRIPT_CACHE_SIZE =
+        Setting.memorySizeSetting("my_scripts.prime.cache.size", "1%", Setting.Property.NodeScope);
+
+    private final Cache<Key, FixedBitSet> cache;
+
+    private final Set<Object> registeredCoreKeys = ConcurrentCollections.newConcurrentSet();
+
+    private final boolean enabled;
+
+    public PrimeBitSetCache(Settings settings) {
+        long sizeInBytes = PRIME_SCRIPT_CACHE_SIZE.get(settings).getBytes();
+        enabled = sizeInBytes > 0;
+        cache = CacheBuilder.<Key, FixedBitSet>builder()
+            .setMaximumWeight(sizeInBytes)
+            .weigher((key, bits) -> bits.ramBytesUsed())
+            .build();
+    }
+
+    /**
+     * Returns false if the cache size is set to 0
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns cached bitset for the given segment, field and method or calculates it using the loader
+     */
+    public FixedBitSet getOrCompute(LeafReader reader, String fieldName, Method method, int certainty,
+                                    CacheLoader<LeafReader, FixedBitSet> loader) throws IOException {
+        Object coreKey = reader.getCoreCacheKey();
+        // certainty doesn't affect the result of the exact method
+        Key key = new Key(coreKey, fieldName, method, method == Method.EXACT ? 0 : certainty);
+        if (registeredCoreKeys.add(coreKey)) {
+            reader.addCoreClosedListener(this::onClose);
+        }
+        try {
+            return cache.computeIfAbsent(key, k -> loader.load(reader));
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IllegalStateException("failed to calculate primes for field [" + fieldName + "]", ex.getCause());
+        }
+    }
+
+    /**
+     * Returns the number of cached bitsets
+     */
+    public int count() {
+        return cache.count();
+    }
+
+    /**
+     * Returns the total size of all cached bitsets in bytes
+     */
+    public long sizeInBytes() {
+        return cache.weight();
+    }
+
+    private void onClose(Object coreKey) {
+        registeredCoreKeys.remove(coreKey);
+        List<Key> keys = new ArrayList<>();
+        for (Key key : cache.keys()) {
+            if (key.coreKey == coreKey) {
+                keys.add(key);
+            }
+        }
+        for (Key key : keys) {
+            cache.invalidate(key);
+        }
+    }
+
+    private static final class Key {
+        private final Object coreKey;
+        private final String fieldName;
+        private final Method method;
+        private final int certainty;
+
+        private Key(Object coreKey, String fieldName, Method method, int certainty) {
+            this.coreKey = coreKey;
+            this.fieldName = fieldName;
+            this.method = method;
+            this.certainty = certainty;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return coreKey == key.coreKey &&
+                certainty == key.certainty &&
+                method == key.method &&
+                fieldName.equals(key.fieldName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(coreKey), fieldName, method, certainty);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script;
+
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.common.Nullable;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Checks the primality of a block of documents at once.
+ * <p>
+ * The first value of up to {@link #SIZE} documents is read into a primitive array and the check that is selected
+ * for the segment runs over the whole array in a loop without virtual calls, so the JIT can compile it into a
+ * tight loop. The results are written into a bitset of block positions. A block can be reused for all blocks
+ * of a segment, but it is not thread-safe.
+ */
+public final class PrimeBlock {
+
+    public static final int SIZE = 1024;
+
+    private final int[] docs = new int[SIZE];
+
+    private final long[] values = new long[SIZE];
+
+    private final long[] matches = new long[SIZE / Long.SIZE];
+
+    private int count;
+
+    /**
+     * Reads the next block of documents from the iterator that is positioned on the first document of the block. Only
+     * documents below max that are accepted and have a value in the field are added. The iterator is left on the first
+     * document that doesn't fit into the block.
+     *
+     * @return the number of documents in the block, 0 if there are no more documents below max
+     */
+    public int fill(DocIdSetIterator iterator, SortedNumericDocValues docValues, @Nullable Bits acceptDocs, int max)
+        throws IOException {
+        count = 0;
+        for (int doc = iterator.docID(); doc < max && count < SIZE; doc = iterator.nextDoc()) {
+            if (acceptDocs != null && acceptDocs.get(doc) == false) {
+                continue;
+            }
+            docValues.setDocument(doc);
+            if (docValues.count() > 0) {
+                docs[count] = doc;
+                values[count] = docValues.valueAt(0);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Checks all values of the block using the kernel. The sieve is only used by {@link PrimeKernel#SIEVE} and the certainty
+     * is only used by {@link PrimeKernel#PROBABLE}.
+     */
+    public void evaluate(PrimeKernel kernel, @Nullable PrimeSieve sieve, int certainty) {
+        final long[] values = this.values;
+        final long[] matches = this.matches;
+        final int count = this.count;
+        Arrays.fill(matches, 0L);
+        // the kernel is selected once per block, so each loop is monomorphic
+        switch (kernel) {
+            case SIEVE:
+                for (int i = 0; i < count; i++) {
+                    if (sieve.isPrime(values[i])) {
+                        matches[i >>> 6] |= 1L << i;
+                    }
+                }
+                break;
+            case INT:
+                for (int i = 0; i < count; i++) {
+                    if (Primes.isPrimeSmall(values[i])) {
+                        matches[i >>> 6] |= 1L << i;
+                    }
+                }
+                break;
+            case LONG:
+                for (int i = 0; i < count; i++) {
+                    if (Primes.isPrime(values[i])) {
+                        matches[i >>> 6] |= 1L << i;
+                    }
+                }
+                break;
+            case PROBABLE:
+                for (int i = 0; i < count; i++) {
+                    if (BigInteger.valueOf(values[i]).isProbablePrime(certainty)) {
+                        matches[i >>> 6] |= 1L << i;
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Returns the next matching position of the block starting from the given position or {@link #SIZE} if there are no more matches
+     */
+    public int nextMatch(int position) {
+        if (position >= count) {
+            return SIZE;
+        }
+        int word = position >>> 6;
+        long bits = matches[word] >>> position;
+        if (bits != 0) {
+            return position + Long.numberOfTrailingZeros(bits);
+        }
+        for (word++; word < matches.length; word++) {
+            if (matches[word] != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(matches[word]);
+            }
+        }
+        return SIZE;
+    }
+
+    /**
+     * Returns the document at the position of the block
+     */
+    public int doc(int position) {
+        return docs[position];
+    }
+
+    public int count() {
+        return count;
+    }
+}
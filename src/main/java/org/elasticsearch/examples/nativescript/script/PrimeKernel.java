@@ -0,0 +1,214 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.util.NumericUtils;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.examples.nativescript.script.IsPrimeSearchScriptFactory.Method;
+import org.elasticsearch.index.mapper.MappedFieldType;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The primality check that is used for all values of a field in a segment.
+ * <p>
+ * Segments are immutable, so the minimum and maximum values that are stored in the points index of the field
+ * bound all values of the segment. They are read once per segment and used to pick the cheapest check that
+ * gives the exact answer for every value in this range, or to skip the segment if no value in the range can
+ * be a prime.
+ */
+public enum PrimeKernel {
+    /**
+     * No value in the segment can be a prime, documents are not checked
+     */
+    NONE,
+    /**
+     * All values are covered by the loaded {@link PrimeSieve}
+     */
+    SIEVE,
+    /**
+     * All values are below {@link Primes#SMALL_LIMIT} and are checked by {@link Primes#isPrimeSmall(long)}
+     */
+    INT,
+    /**
+     * Values can be anywhere in the {@code long} range and are checked by {@link Primes#isPrime(long)}
+     */
+    LONG,
+    /**
+     * Values are checked by {@link java.math.BigInteger#isProbablePrime(int)}, which doesn't depend on the range
+     */
+    PROBABLE;
+
+    // Doc values and points of floating point fields contain sortable bits instead of the values
+    private static final Set<String> INTEGRAL_TYPES = new HashSet<>(Arrays.asList("long", "integer", "short", "byte"));
+
+    /**
+     * Returns true if the value is a prime number. The sieve is only used by {@link #SIEVE} and the certainty is only used
+     * by {@link #PROBABLE}.
+     */
+    public boolean isPrime(long value, @Nullable PrimeSieve sieve, int certainty) {
+        switch (this) {
+            case SIEVE:
+                return sieve.isPrime(value);
+            case INT:
+                return Primes.isPrimeSmall(value);
+            case LONG:
+                return Primes.isPrime(value);
+            case PROBABLE:
+                return BigInteger.valueOf(value).isProbablePrime(certainty);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the approximate number of operations needed to check a single value, so conjunctions can check cheaper
+     * clauses first
+     */
+    public float matchCost() {
+        switch (this) {
+            case SIEVE:
+                // a single bit lookup
+                return 2f;
+            case INT:
+                // trial division by 25 small primes and 3 witnesses with 32 squarings each
+                return 150f;
+            case LONG:
+                // 7 witnesses with 64 Montgomery squarings each
+                return 1000f;
+            case PROBABLE:
+                // BigInteger arithmetic allocates on every step
+                return 10000f;
+            default:
+                return 0f;
+        }
+    }
+
+    /**
+     * Throws an exception if the field is mapped but is not an integral numeric field
+     */
+    public static void checkFieldType(String fieldName, @Nullable MappedFieldType fieldType) {
+        if (fieldType != null && INTEGRAL_TYPES.contains(fieldType.typeName()) == false) {
+            throw new IllegalArgumentException("[is_prime] requires an integral numeric field, but field [" + fieldName
+                + "] is of type [" + fieldType.typeName() + "]");
+        }
+    }
+
+    /**
+     * Selects the check for the field in the segment based on the range of its values, the sieve is optional. The field has
+     * to be an integral numeric field, see {@link #checkFieldType(String, MappedFieldType)}.
+     */
+    public static PrimeKernel select(LeafReader reader, String fieldName, Method method, @Nullable PrimeSieve sieve)
+        throws IOException {
+        if (method == Method.PROBABLE) {
+            // BigInteger.isProbablePrime(0) is true for every value, so even segments without primes can match
+            return PROBABLE;
+        }
+        FieldInfo fieldInfo = reader.getFieldInfos().fieldInfo(fieldName);
+        if (fieldInfo == null) {
+            // none of the documents in this segment have the field
+            return NONE;
+        }
+        long[] range = range(reader, fieldInfo);
+        if (range == null) {
+            // the field is not indexed, the values can be anything
+            return LONG;
+        }
+        return select(range[0], range[1], sieve);
+    }
+
+    /**
+     * Selects the check for the field when the segment is not known, as in native scripts. The range of the values is
+     * bounded by the type of the field only, so segments without primes cannot be skipped, but values of integer, short
+     * and byte fields are still checked by the sieve or by the {@code int} check.
+     *
+     * @param fieldType the type of the field or null if the field is not mapped, in which case no document has a value
+     */
+    public static PrimeKernel select(Method method, @Nullable MappedFieldType fieldType, @Nullable PrimeSieve sieve) {
+        if (method == Method.PROBABLE) {
+            return PROBABLE;
+        }
+        if (fieldType == null) {
+            return NONE;
+        }
+        switch (fieldType.typeName()) {
+            case "integer":
+                return select(Integer.MIN_VALUE, Integer.MAX_VALUE, sieve);
+            case "short":
+                return select(Short.MIN_VALUE, Short.MAX_VALUE, sieve);
+            case "byte":
+                return select(Byte.MIN_VALUE, Byte.MAX_VALUE, sieve);
+            default:
+                return LONG;
+        }
+    }
+
+    /**
+     * Selects the check for values between min and max inclusive
+     */
+    static PrimeKernel select(long min, long max, @Nullable PrimeSieve sieve) {
+        if (max < 2 || (min == max && Primes.isPrime(min) == false)) {
+            return NONE;
+        }
+        if (sieve != null && sieve.contains(Math.max(min, 0)) && sieve.contains(max)) {
+            return SIEVE;
+        }
+        if (max <= Primes.SMALL_LIMIT) {
+            return INT;
+        }
+        return LONG;
+    }
+
+    /**
+     * Returns the minimum and the maximum value of the integral numeric field in the segment or null if the field has no points
+     */
+    @Nullable
+    static long[] range(LeafReader reader, FieldInfo fieldInfo) throws IOException {
+        if (fieldInfo.getPointDimensionCount() != 1) {
+            return null;
+        }
+        PointValues points = reader.getPointValues();
+        if (points == null) {
+            return null;
+        }
+        byte[] min = points.getMinPackedValue(fieldInfo.name);
+        byte[] max = points.getMaxPackedValue(fieldInfo.name);
+        if (min == null || max == null) {
+            return null;
+        }
+        switch (fieldInfo.getPointNumBytes()) {
+            case Integer.BYTES:
+                // integer, short and byte fields are indexed as int points
+                return new long[]{NumericUtils.sortableBytesToInt(min, 0), NumericUtils.sortableBytesToInt(max, 0)};
+            case Long.BYTES:
+                return new long[]{NumericUtils.sortableBytesToLong(min, 0), NumericUtils.sortableBytesToLong(max, 0)};
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
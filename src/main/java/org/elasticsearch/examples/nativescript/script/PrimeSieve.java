@@ -0,0 +1,275 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.UUIDs;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Sieve of Eratosthenes for all values below a configurable limit that is persisted on disk and memory-mapped.
+ * <p>
+ * Only odd numbers are stored, one bit per number, so the sieve up to 2^32 takes 256MB. The bitmap is built
+ * segment by segment in the background and saved in the directory of the plugin in the node path, so it is built
+ * only once and reused after restart. Until the sieve is loaded, and for values above the limit, {@link #isPrime(long)}
+ * falls back to {@link Primes#isPrime(long)}.
+ */
+public class PrimeSieve {
+
+    /**
+     * All values below this limit are checked using the sieve, 0 disables the sieve
+     */
+    public static final Setting<Long> PRIME_SCRIPT_SIEVE_LIMIT =
+        Setting.longSetting("my_scripts.prime.sieve.limit", 0, 0, Setting.Property.NodeScope);
+
+    /**
+     * The largest supported limit, the sieve for it takes 1GB
+     */
+    public static final long MAX_LIMIT = 1L << 34;
+
+    private static final int MAGIC = 0x50534956; // PSIV
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Number of 64-bit words in the segment that is sieved at once (1MB)
+     */
+    private static final int SEGMENT_WORDS = 1 << 17;
+
+    private static final Logger logger = Loggers.getLogger(PrimeSieve.class);
+
+    private final long limit;
+
+    private final Supplier<Path> directory;
+
+    /**
+     * Composite odd numbers, the bit i is set if 2 * i + 1 is not a prime
+     */
+    private volatile ByteBuffer composites;
+
+    /**
+     * Creates a sieve that is saved in the directory returned by the supplier once the sieve is loaded, the directory of the
+     * plugin is not known before the node starts
+     */
+    public PrimeSieve(Settings settings, Supplier<Path> directory) {
+        this(PRIME_SCRIPT_SIEVE_LIMIT.get(settings), directory);
+    }
+
+    public PrimeSieve(long limit, Path directory) {
+        this(limit, () -> directory);
+    }
+
+    public PrimeSieve(long limit, Supplier<Path> directory) {
+        if (limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("[" + PRIME_SCRIPT_SIEVE_LIMIT.getKey() + "] cannot be greater than [" + MAX_LIMIT
+                + "], got [" + limit + "]");
+        }
+        this.limit = limit;
+        this.directory = directory;
+    }
+
+    /**
+     * Returns true if the value is a prime number. The answer is exact for every {@code long} value.
+     */
+    public boolean isPrime(long value) {
+        ByteBuffer composites = this.composites;
+        if (composites != null && value >= 0 && value < limit) {
+            if ((value & 1) == 0) {
+                return value == 2;
+            }
+            long index = value >>> 1;
+            return (composites.get((int) (index >>> 3)) & (1 << (index & 7))) == 0;
+        }
+        return Primes.isPrime(value);
+    }
+
+    /**
+     * Returns true if the sieve is loaded and the value is below the sieve limit
+     */
+    public boolean contains(long value) {
+        return composites != null && value >= 0 && value < limit;
+    }
+
+    /**
+     * Returns true if the sieve is loaded
+     */
+    public boolean isLoaded() {
+        return composites != null;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Loads or builds the sieve using the given executor without blocking the caller
+     */
+    public void loadAsync(Executor executor) {
+        if (limit == 0) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                loadOrBuild();
+            } catch (Exception ex) {
+                logger.warn("failed to load prime sieve from [" + file() + "]", ex);
+            }
+        });
+    }
+
+    /**
+     * Maps the sieve saved by the previous run or builds a new one if it doesn't exist or is damaged
+     */
+    public void loadOrBuild() throws IOException {
+        if (limit == 0) {
+            return;
+        }
+        Path file = file();
+        if (Files.exists(file)) {
+            ByteBuffer buffer = map(file);
+            if (buffer != null) {
+                composites = buffer;
+                logger.debug("loaded prime sieve up to [{}] from [{}]", limit, file);
+                return;
+            }
+            logger.warn("prime sieve [{}] is damaged, rebuilding", file);
+            Files.delete(file);
+        }
+        long start = System.nanoTime();
+        build(file);
+        composites = map(file);
+        logger.info("built prime sieve up to [{}] in [{}] ms", limit, (System.nanoTime() - start) / 1000000);
+    }
+
+    private Path file() {
+        return directory.get().resolve("prime_sieve_" + limit + ".bin");
+    }
+
+    private long sizeInBytes() {
+        return (limit / 2 + 7) / 8;
+    }
+
+    private ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() != HEADER_SIZE + sizeInBytes()) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getLong(8) != limit) {
+                return null;
+            }
+            buffer.position(HEADER_SIZE);
+            return buffer.slice();
+        }
+    }
+
+    /**
+     * Builds the sieve in a temporary file and atomically moves it into its place once it is complete
+     */
+    private void build(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + "." + UUIDs.randomBase64UUID() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(limit);
+                header.flip();
+                writeFully(channel, header);
+                sieve(channel);
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Segmented sieve: each segment of odd numbers is sieved in memory by all base primes and then appended to the file
+     */
+    private void sieve(FileChannel channel) throws IOException {
+        int[] basePrimes = basePrimes((int) Math.sqrt((double) limit) + 1);
+        long[] segment = new long[SEGMENT_WORDS];
+        ByteBuffer bytes = ByteBuffer.allocate(SEGMENT_WORDS * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long segmentBits = (long) SEGMENT_WORDS * Long.SIZE;
+        long totalBytes = sizeInBytes();
+        long writtenBytes = 0;
+        for (long low = 0; writtenBytes < totalBytes; low += segmentBits) {
+            Arrays.fill(segment, 0L);
+            if (low == 0) {
+                // 1 is not a prime
+                segment[0] |= 1L;
+            }
+            // the smallest odd number in this segment
+            long lowValue = 2 * low + 1;
+            for (int p : basePrimes) {
+                long first = (lowValue + p - 1) / p * p;
+                if ((first & 1) == 0) {
+                    first += p;
+                }
+                first = Math.max(first, (long) p * p);
+                for (long index = (first >>> 1) - low; index < segmentBits; index += p) {
+                    segment[(int) (index >>> 6)] |= 1L << index;
+                }
+            }
+            bytes.clear();
+            bytes.asLongBuffer().put(segment);
+            bytes.limit((int) Math.min(bytes.capacity(), totalBytes - writtenBytes));
+            writtenBytes += bytes.remaining();
+            writeFully(channel, bytes);
+        }
+    }
+
+    /**
+     * Odd primes below the limit using simple sieve
+     */
+    private static int[] basePrimes(int limit) {
+        boolean[] composite = new boolean[limit + 1];
+        int count = 0;
+        int[] primes = new int[limit / 2 + 1];
+        for (int i = 3; i <= limit; i += 2) {
+            if (composite[i] == false) {
+                primes[count++] = i;
+                for (long j = (long) i * i; j <= limit; j += 2 * i) {
+                    composite[(int) j] = true;
+                }
+            }
+        }
+        return Arrays.copyOf(primes, count);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script;
+
+/**
+ * Allocation-free primality test for {@code long} values.
+ * <p>
+ * Small factors are removed by trial division, the remaining candidates are checked with the deterministic
+ * variant of the Miller-Rabin test. The witness sets used here are known to give exact answers for all
+ * values that fit into a {@code long}, so unlike {@link java.math.BigInteger#isProbablePrime(int)} the result
+ * doesn't depend on any certainty.
+ */
+public final class Primes {
+
+    /**
+     * Primes used for trial division before Miller-Rabin test kicks in
+     */
+    private static final int[] SMALL_PRIMES = new int[]{
+        2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47, 53, 59, 61, 67, 71, 73, 79, 83, 89, 97
+    };
+
+    /**
+     * Any number below this value that has no factors in {@link #SMALL_PRIMES} is a prime (101 * 101)
+     */
+    private static final long SMALL_PRIMES_LIMIT = 101L * 101L;
+
+    /**
+     * The largest value for which the product of two residues still fits into a positive {@code long}
+     */
+    private static final long SQUARE_SAFE_LIMIT = 3037000499L;
+
+    /**
+     * The largest value that can be checked by {@link #isPrimeSmall(long)}
+     */
+    public static final long SMALL_LIMIT = SQUARE_SAFE_LIMIT;
+
+    /**
+     * Witnesses that are sufficient for all values below 4,759,123,141
+     */
+    private static final long[] INT_WITNESSES = new long[]{2, 7, 61};
+
+    /**
+     * Witnesses that are sufficient for all values below 2^64 (found by Jim Sinclair)
+     */
+    private static final long[] LONG_WITNESSES = new long[]{2, 325, 9375, 28178, 450775, 9780504, 1795265022};
+
+    private Primes() {
+    }
+
+    /**
+     * Returns true if the value is a prime number. The answer is exact for every {@code long} value.
+     */
+    public static boolean isPrime(long n) {
+        if (n <= SMALL_LIMIT) {
+            return isPrimeSmall(n);
+        }
+        for (int p : SMALL_PRIMES) {
+            if (n % p == 0) {
+                return false;
+            }
+        }
+        return isStrongProbablePrimeLarge(n, LONG_WITNESSES);
+    }
+
+    /**
+     * Returns true if the value is a prime number, the value has to be less than or equal to {@link #SMALL_LIMIT}.
+     * <p>
+     * Skips the range check and never takes the 128-bit Montgomery path, so it is used when all values are known
+     * to be small, for example based on the range of values in a segment.
+     */
+    public static boolean isPrimeSmall(long n) {
+        assert n <= SMALL_LIMIT : "value [" + n + "] is too large";
+        if (n < 2) {
+            return false;
+        }
+        for (int p : SMALL_PRIMES) {
+            if (n == p) {
+                return true;
+            }
+            if (n % p == 0) {
+                return false;
+            }
+        }
+        if (n < SMALL_PRIMES_LIMIT) {
+            return true;
+        }
+        return isStrongProbablePrimeSmall(n, INT_WITNESSES);
+    }
+
+    /**
+     * Miller-Rabin test for odd values where the product of two residues doesn't overflow a {@code long}.
+     */
+    private static boolean isStrongProbablePrimeSmall(long n, long[] witnesses) {
+        long d = n - 1;
+        int s = Long.numberOfTrailingZeros(d);
+        d >>= s;
+        for (long witness : witnesses) {
+            long a = witness % n;
+            if (a == 0) {
+                continue;
+            }
+            long x = 1;
+            long base = a;
+            for (long e = d; e != 0; e >>= 1) {
+                if ((e & 1) != 0) {
+                    x = x * base % n;
+                }
+                base = base * base % n;
+            }
+            if (x == 1 || x == n - 1) {
+                continue;
+            }
+            boolean composite = true;
+            for (int r = 1; r < s; r++) {
+                x = x * x % n;
+                if (x == n - 1) {
+                    composite = false;
+                    break;
+                }
+            }
+            if (composite) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Miller-Rabin test for odd values up to {@link Long#MAX_VALUE}.
+     * <p>
+     * The modular multiplications are done in the Montgomery form with R = 2^64, which keeps all 128-bit
+     * intermediate products in pairs of {@code long}s and avoids division in the inner loop.
+     */
+    private static boolean isStrongProbablePrimeLarge(long n, long[] witnesses) {
+        long nInverse = inverse(n);
+        // R mod n and R^2 mod n, R = 2^64
+        long one = Long.remainderUnsigned(-n, n);
+        long minusOne = n - one;
+        long r2 = one;
+        for (int i = 0; i < 64; i++) {
+            r2 = doubleMod(r2, n);
+        }
+        long d = n - 1;
+        int s = Long.numberOfTrailingZeros(d);
+        d >>= s;
+        for (long witness : witnesses) {
+            long a = witness % n;
+            if (a == 0) {
+                continue;
+            }
+            long base = montgomeryMultiply(a, r2, n, nInverse);
+            long x = one;
+            for (long e = d; e != 0; e >>= 1) {
+                if ((e & 1) != 0) {
+                    x = montgomeryMultiply(x, base, n, nInverse);
+                }
+                base = montgomeryMultiply(base, base, n, nInverse);
+            }
+            if (x == one || x == minusOne) {
+                continue;
+            }
+            boolean composite = true;
+            for (int r = 1; r < s; r++) {
+                x = montgomeryMultiply(x, x, n, nInverse);
+                if (x == minusOne) {
+                    composite = false;
+                    break;
+                }
+            }
+            if (composite) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns n^-1 mod 2^64 for odd n using Newton's iteration (each step doubles the number of correct bits)
+     */
+    private static long inverse(long n) {
+        long inverse = n;
+        for (int i = 0; i < 5; i++) {
+            inverse *= 2 - n * inverse;
+        }
+        return inverse;
+    }
+
+    /**
+     * Returns 2 * a mod n for 0 &lt;= a &lt; n
+     */
+    private static long doubleMod(long a, long n) {
+        long r = a << 1;
+        if (Long.compareUnsigned(r, n) >= 0) {
+            r -= n;
+        }
+        return r;
+    }
+
+    /**
+     * Returns a * b * 2^-64 mod n for 0 &lt;= a, b &lt; n, where n is odd and positive
+     */
+    static long montgomeryMultiply(long a, long b, long n, long nInverse) {
+        long low = a * b;
+        long high = unsignedMultiplyHigh(a, b);
+        // m * n has the same lower 64 bits as a * b, so (a * b - m * n) / 2^64 is just the difference of the high parts
+        long m = low * nInverse;
+        long r = high - unsignedMultiplyHigh(m, n);
+        return r < 0 ? r + n : r;
+    }
+
+    /**
+     * Returns the upper 64 bits of the unsigned 128-bit product of a and b
+     */
+    static long unsignedMultiplyHigh(long a, long b) {
+        long aLow = a & 0xFFFFFFFFL;
+        long aHigh = a >>> 32;
+        long bLow = b & 0xFFFFFFFFL;
+        long bHigh = b >>> 32;
+        long t = aHigh * bLow + ((aLow * bLow) >>> 32);
+        long w = (t & 0xFFFFFFFFL) + aLow * bHigh;
+        return aHigh * bHigh + (t >>> 32) + (w >>> 32);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.examples.nativescript.query.SampleQuery;
+import org.elasticsearch.examples.nativescript.stats.ScriptMetrics;
+import org.elasticsearch.examples.nativescript.stats.ScriptProfile;
+import org.elasticsearch.index.shard.SearchOperationListener;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.metrics.scripted.ScriptedMetricAggregator;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.query.QuerySearchResult;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Gives native scripts access to the resources of the shard-level search request that they are running in.
+ * <p>
+ * Native scripts don't have access to the search context. This class is registered as a search operation
+ * listener on all indices and remembers the context of the query phase that is executed by the current
+ * thread. Scripts can use it to allocate memory that is accounted by the request circuit breaker and to
+ * register resources that have to be released when the query phase is over, even if it failed.
+ * <p>
+ * If the search request is profiled, scripts also record their {@link ScriptProfile} here. When the query phase is over
+ * the profiles are logged, added to the script metrics and returned to the client of the request in the
+ * {@link #PROFILE_HEADER} response header, one value per script and shard.
+ */
+public class ShardSearchResources implements SearchOperationListener {
+
+    /**
+     * Response header with the profiles of the scripts in a profiled search request
+     */
+    public static final String PROFILE_HEADER = "X-Native-Script-Profile";
+
+    private static final Logger logger = Loggers.getLogger(ShardSearchResources.class);
+
+    private final ThreadLocal<SearchContext> current = new ThreadLocal<>();
+
+    private final ThreadLocal<Map<String, ScriptProfile>> profiles = new ThreadLocal<>();
+
+    private volatile ThreadContext threadContext;
+
+    /**
+     * Starts returning profiles in the response headers of the requests, until then they are only logged and added to the
+     * script metrics
+     */
+    public void start(ThreadContext threadContext) {
+        this.threadContext = threadContext;
+    }
+
+    /**
+     * Returns big arrays of the current search request that are accounted by the request circuit breaker or
+     * non-recycling and not accounted big arrays if the script is executed outside of the query phase.
+     */
+    public BigArrays bigArrays() {
+        SearchContext context = current.get();
+        return context == null ? BigArrays.NON_RECYCLING_INSTANCE : context.bigArrays();
+    }
+
+    /**
+     * Registers the resource that should be released at the end of the current query phase. The resource might be
+     * released earlier by the script, so it should tolerate being released more than once.
+     *
+     * @return true if the resource was registered, false if the script is executed outside of the query phase
+     */
+    public boolean releaseAfterQueryPhase(Releasable releasable) {
+        SearchContext context = current.get();
+        if (context == null) {
+            return false;
+        }
+        context.addReleasable(releasable, SearchContext.Lifetime.PHASE);
+        return true;
+    }
+
+    /**
+     * Returns the query of the current request if per-segment results of a scripted metric aggregation can be cached
+     * with this query as the key, or null if they cannot be cached.
+     * <p>
+     * The results can be cached only if the aggregation collects all documents that match the query. It is not the case
+     * if the aggregation is a sub-aggregation of a bucket aggregation or if some documents are not collected because of
+     * min_score. Since scripts don't know where their aggregation is in the tree, this method requires all top-level
+     * aggregations to be scripted metric aggregations, which cannot have sub-aggregations. The aggregators are created
+     * after the init scripts run, so this method should be called during collection.
+     */
+    @Nullable
+    public Query aggregationCacheKey() {
+        SearchContext context = current.get();
+        if (context == null || context.minimumScore() != null || context.aggregations() == null) {
+            return null;
+        }
+        Aggregator[] aggregators = context.aggregations().aggregators();
+        if (aggregators == null) {
+            return null;
+        }
+        for (Aggregator aggregator : aggregators) {
+            if (aggregator instanceof ScriptedMetricAggregator == false) {
+                return null;
+            }
+        }
+        return context.query();
+    }
+
+    /**
+     * Returns the searcher and the query of the current request if the documents that are collected by scripted metric
+     * aggregations can be collected by the scripts themselves on other threads, or null otherwise.
+     * <p>
+     * In addition to the conditions of {@link #aggregationCacheKey()}, the request cannot be profiled and cannot use a
+     * timeout or terminate_after, which stop the collection of the aggregation early. The returned target can be used
+     * from other threads, but only until the current query phase is over.
+     */
+    @Nullable
+    public CollectionTarget collectionTarget() {
+        SearchContext context = current.get();
+        Query query = aggregationCacheKey();
+        if (query == null || context.getProfilers() != null || context.terminateAfter() != SearchContext.DEFAULT_TERMINATE_AFTER
+            || (context.timeout() != null && context.timeout().millis() > 0)) {
+            return null;
+        }
+        return new CollectionTarget(context, query, context.aggregations().aggregators().length == 1);
+    }
+
+    /**
+     * Returns the sample query that all documents of the current request have to match or null if there is none
+     */
+    @Nullable
+    public SampleQuery sampleQuery() {
+        SearchContext context = current.get();
+        return context == null ? null : SampleQuery.findRequired(context.query());
+    }
+
+    /**
+     * Returns true if the current query phase stopped collecting documents early because of a timeout or terminate_after,
+     * so results of the last collected segment can be incomplete
+     */
+    public boolean isCollectionCutShort() {
+        SearchContext context = current.get();
+        if (context == null) {
+            return false;
+        }
+        QuerySearchResult result = context.queryResult();
+        return result.searchTimedOut() || Boolean.TRUE.equals(result.terminatedEarly());
+    }
+
+    /**
+     * Returns the profile of the script in the current query phase or null if the search request is not profiled
+     */
+    @Nullable
+    public ScriptProfile profile(ScriptMetrics metrics) {
+        SearchContext context = current.get();
+        if (context == null || context.getProfilers() == null) {
+            return null;
+        }
+        Map<String, ScriptProfile> scriptProfiles = profiles.get();
+        if (scriptProfiles == null) {
+            scriptProfiles = new HashMap<>();
+            profiles.set(scriptProfiles);
+        }
+        return scriptProfiles.computeIfAbsent(metrics.getName(), name -> new ScriptProfile(metrics));
+    }
+
+    @Override
+    public void onPreQueryPhase(SearchContext searchContext) {
+        current.set(searchContext);
+    }
+
+    @Override
+    public void onFailedQueryPhase(SearchContext searchContext) {
+        endQueryPhase(searchContext);
+    }
+
+    @Override
+    public void onQueryPhase(SearchContext searchContext, long tookInNanos) {
+        endQueryPhase(searchContext);
+    }
+
+    private void endQueryPhase(SearchContext searchContext) {
+        current.remove();
+        Map<String, ScriptProfile> scriptProfiles = profiles.get();
+        if (scriptProfiles != null) {
+            profiles.remove();
+            for (ScriptProfile profile : scriptProfiles.values()) {
+                logger.debug("{} profile of script [{}]: {}", searchContext.shardTarget(), profile.getName(), profile);
+                profile.flush();
+                ThreadContext context = threadContext;
+                if (context != null) {
+                    // the query phase runs in the thread context of the request, so the header is sent back with its response
+                    context.addResponseHeader(PROFILE_HEADER, searchContext.shardTarget() + "[" + profile.getName() + "] " + profile);
+                }
+            }
+        }
+    }
+
+    /**
+     * The searcher and the query of a request whose documents are collected by scripts
+     */
+    public static class CollectionTarget {
+
+        private final SearchContext context;
+
+        private final Query query;
+
+        private final boolean onlyAggregation;
+
+        private CollectionTarget(SearchContext context, Query query, boolean onlyAggregation) {
+            this.context = context;
+            this.query = query;
+            this.onlyAggregation = onlyAggregation;
+        }
+
+        public IndexSearcher searcher() {
+            return context.searcher();
+        }
+
+        public Query query() {
+            return query;
+        }
+
+        /**
+         * Returns true if the scripted metric aggregation is the only top-level aggregation of the request. Its collector is
+         * then the only aggregation collector next to the collectors of hits, which are wrapped in a {@link
+         * org.apache.lucene.search.MultiCollector}, so it can stop collecting a segment by throwing a {@link
+         * org.apache.lucene.search.CollectionTerminatedException} without stopping the collection of hits.
+         */
+        public boolean isOnlyAggregation() {
+            return onlyAggregation;
+        }
+
+        /**
+         * Returns true if the request was cancelled, can be called from any thread
+         */
+        public boolean isCancelled() {
+            return context.isCancelled();
+        }
+    }
+}
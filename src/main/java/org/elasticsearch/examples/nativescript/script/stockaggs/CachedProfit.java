@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script.stockaggs;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.examples.nativescript.script.ShardSearchResources;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.elasticsearch.examples.nativescript.script.stockaggs.ProfitPartialCache.COSTS;
+import static org.elasticsearch.examples.nativescript.script.stockaggs.ProfitPartialCache.COUNT;
+import static org.elasticsearch.examples.nativescript.script.stockaggs.ProfitPartialCache.PARTIAL_SIZE;
+import static org.elasticsearch.examples.nativescript.script.stockaggs.ProfitPartialCache.SALES;
+
+/**
+ * Running profit of a shard in the fold mode that reuses partials of segments cached by earlier requests.
+ * <p>
+ * Partials of the segments that are collected by this request are kept aside and added to the cache only when
+ * the combine script runs and all documents are known to be collected. If the query phase was stopped early, the
+ * partial of the last segment might be incomplete, so nothing is cached.
+ * <p>
+ * Partials are keyed by the segment, so only map scripts that are bound to the reader of their segment, which are the
+ * scripts of the native_example engine, read and fill the cache. Native scripts are not told which segment they run on
+ * and collect every segment.
+ */
+public class CachedProfit {
+
+    private final ProfitPartialCache cache;
+
+    private final ShardSearchResources resources;
+
+    private boolean resolved;
+
+    // null if partials cannot be cached in this request
+    private Query query;
+
+    private long cachedProfit;
+
+    private final List<ProfitPartialCache.Key> keys = new ArrayList<>();
+
+    private final List<long[]> partials = new ArrayList<>();
+
+    // partial of the current segment or null if it was found in the cache
+    private long[] current;
+
+    public CachedProfit(ProfitPartialCache cache, ShardSearchResources resources) {
+        this.cache = cache;
+        this.resources = resources;
+    }
+
+    /**
+     * Called before the first document of each segment
+     *
+     * @param reader the reader of the segment or null if the script doesn't know its segment, such segments are not cached
+     * @return true if the partial of the segment was found in the cache, so documents of this segment can be ignored
+     */
+    public boolean startSegment(@Nullable LeafReader reader, String amountField, String typeField, SaleTypes saleTypes) {
+        if (resolved == false) {
+            resolved = true;
+            query = resources.aggregationCacheKey();
+        }
+        ProfitPartialCache.Key key = null;
+        if (query != null && reader != null) {
+            key = cache.key(reader, query, amountField, typeField, saleTypes);
+            long[] partial = cache.get(key);
+            if (partial != null) {
+                cachedProfit += partial[SALES] - partial[COSTS];
+                current = null;
+                return true;
+            }
+        }
+        current = new long[PARTIAL_SIZE];
+        keys.add(key);
+        partials.add(current);
+        return false;
+    }
+
+    /**
+     * Adds a transaction of a document in the current segment
+     */
+    public void collect(long amount, boolean sale) {
+        current[sale ? SALES : COSTS] += amount;
+        current[COUNT]++;
+    }
+
+    /**
+     * Returns the profit of the shard and caches partials of the collected segments
+     */
+    public long finish() {
+        boolean cacheable = query != null && resources.isCollectionCutShort() == false;
+        long profit = cachedProfit;
+        for (int i = 0; i < partials.size(); i++) {
+            long[] partial = partials.get(i);
+            profit += partial[SALES] - partial[COSTS];
+            if (cacheable && keys.get(i) != null) {
+                cache.put(keys.get(i), partial);
+            }
+        }
+        keys.clear();
+        partials.clear();
+        cachedProfit = profit;
+        return profit;
+    }
+}
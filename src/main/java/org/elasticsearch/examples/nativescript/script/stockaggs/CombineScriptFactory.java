@@ -14,27 +14,34 @@
 
 package org.elasticsearch.examples.nativescript.script.stockaggs;
 
-import org.elasticsearch.common.Nullable;
+import org.elasticsearch.examples.nativescript.script.CompilableScriptFactory;
 import org.elasticsearch.script.AbstractExecutableScript;
 import org.elasticsearch.script.ExecutableScript;
-import org.elasticsearch.script.NativeScriptFactory;
 
-import java.util.ArrayList;
 import java.util.Map;
+import java.util.function.Function;
 
 /**
  * Combine script from
  * https://www.elastic.co/guide/en/elasticsearch/reference/current/search-aggregations-metrics-scripted-metric-aggregation.html
  * <p>
  * profit = 0; for (t in _agg.transactions) { profit += t }; return profit
+ * <p>
+ * In the fold mode the profit is already calculated by the map script or by the parallel collection, so it is simply
+ * returned. If the segment cache is used, the profit of the collected segments is added to the cached partials and the
+ * collected partials are cached.
+ * <p>
+ * If the profit is sampled, the sums of sampled transactions that are needed to estimate the profit are returned, see
+ * {@link SampledProfit}.
+ * <p>
+ * In the time buckets mode the buckets are returned in the binary format described in {@link TimeBuckets}.
  */
-public class CombineScriptFactory implements NativeScriptFactory {
+public class CombineScriptFactory implements CompilableScriptFactory {
 
     @Override
     @SuppressWarnings("unchecked")
-    public ExecutableScript newScript(final @Nullable Map<String, Object> params) {
-        Map<String, Object> agg = (Map<String, Object>) params.get("_agg");
-        return new CombineScript(agg);
+    public Function<Map<String, Object>, ExecutableScript> compile(Map<String, Object> params) {
+        return vars -> new CombineScript((Map<String, Object>) vars.get("_agg"));
     }
 
     @Override
@@ -56,14 +63,34 @@ public class CombineScriptFactory implements NativeScriptFactory {
         }
 
         @Override
-        @SuppressWarnings("unchecked")
         public Object run() {
-            long profit = 0;
-            final ArrayList<Long> transactions = (ArrayList<Long>) agg.get(InitScriptFactory.TRANSACTIONS_FIELD);
-            for (long t : transactions) {
-                profit += t;
+            final CachedProfit cachedProfit = (CachedProfit) agg.get(InitScriptFactory.CACHED_PROFIT_FIELD);
+            if (cachedProfit != null) {
+                return cachedProfit.finish();
+            }
+            final ParallelProfit parallelProfit = (ParallelProfit) agg.get(InitScriptFactory.PARALLEL_PROFIT_FIELD);
+            if (parallelProfit != null) {
+                return parallelProfit.profit();
+            }
+            final SampledProfit sampledProfit = (SampledProfit) agg.get(InitScriptFactory.SAMPLED_PROFIT_FIELD);
+            if (sampledProfit != null) {
+                return sampledProfit.shardResult();
+            }
+            final TimeBuckets timeBuckets = (TimeBuckets) agg.get(InitScriptFactory.TIME_BUCKETS_FIELD);
+            if (timeBuckets != null) {
+                try (TimeBuckets buckets = timeBuckets) {
+                    // A few bytes per bucket instead of a map of boxed values
+                    return buckets.encode();
+                }
+            }
+            final long[] runningProfit = (long[]) agg.get(InitScriptFactory.PROFIT_FIELD);
+            if (runningProfit != null) {
+                return runningProfit[0];
+            }
+            try (Transactions transactions = (Transactions) agg.get(InitScriptFactory.TRANSACTIONS_FIELD)) {
+                // The transactions are not needed after this point, so we are releasing them without waiting for the end of the query phase
+                return transactions.sum();
             }
-            return profit;
         }
     }
 }
@@ -15,35 +15,245 @@
 package org.elasticsearch.examples.nativescript.script.stockaggs;
 
 import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.examples.nativescript.query.SampleQuery;
+import org.elasticsearch.examples.nativescript.query.SampleQueryBuilder;
+import org.elasticsearch.examples.nativescript.script.CompilableScriptFactory;
+import org.elasticsearch.examples.nativescript.script.ShardSearchResources;
 import org.elasticsearch.script.AbstractExecutableScript;
 import org.elasticsearch.script.ExecutableScript;
-import org.elasticsearch.script.NativeScriptFactory;
 
-import java.util.ArrayList;
+import java.nio.file.Path;
 import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Init script from
  * https://www.elastic.co/guide/en/elasticsearch/reference/current/search-aggregations-metrics-scripted-metric-aggregation.html
  *
  * _agg['transactions'] = []
+ * <p>
+ * Elasticsearch passes only the params of the scripted_metric aggregation to the init, map and combine scripts, the params of
+ * these scripts are ignored. So the parameters below have to be set in the aggregation params, which then also have to
+ * contain an empty _agg object. With the native_example language they can be set in the script source instead, for example
+ * stockaggs_init?mode=fold.
+ * <p>
+ * The transactions are stored in {@link Transactions} that is accounted by the request circuit breaker and released at the
+ * end of the query phase, when its pages are returned to the page recycler of Elasticsearch. The buffers are counted in the
+ * node-level {@link TransactionBuffers}.
+ * <p>
+ * If the spill parameter is set to true, transactions that don't fit into {@link Transactions#STOCKAGGS_SPILL_THRESHOLD} are
+ * spilled to temporary files in the directory of the plugin in the node path. The files are deleted at the end of the query
+ * phase, including failed and cancelled requests.
+ * <p>
+ * If the mode parameter is set to "fold", the script doesn't keep individual transactions and instead initializes
+ * a running profit that is updated by the map script:
+ * <p>
+ * _agg['profit'] = 0
+ * <p>
+ * In the fold mode the cache parameter can be set to true to reuse per-segment partials of earlier requests with the same
+ * query from the {@link ProfitPartialCache}, see {@link CachedProfit}. The cache is keyed by the segment, so it is only used
+ * by the scripts of the native_example engine, native scripts accept the parameter but collect all segments.
+ * <p>
+ * In the fold mode the sample_rate parameter can be set to a value between 0 and 1 to estimate the profit from a sample of
+ * documents, see {@link SampledProfit}. The sample is taken by a sample query with the same rate, which has to be a required
+ * clause of the query of the request, so documents that are not in the sample are not collected at all.
+ * <p>
+ * In the fold mode the parallel parameter can be set to true to collect the segments of the shard on several threads, see
+ * {@link ParallelProfit}.
+ * <p>
+ * If the mode parameter is set to "time_buckets", the profit is calculated per time interval in {@link TimeBuckets}:
+ * <p>
+ * _agg['time_buckets'] = [:]
  */
-public class InitScriptFactory implements NativeScriptFactory {
+public class InitScriptFactory implements CompilableScriptFactory {
 
     public static final String TRANSACTIONS_FIELD = "transactions";
 
+    public static final String PROFIT_FIELD = "profit";
+
+    public static final String CACHED_PROFIT_FIELD = "cached_profit";
+
+    public static final String TIME_BUCKETS_FIELD = "time_buckets";
+
+    public static final String SAMPLED_PROFIT_FIELD = "sampled_profit";
+
+    public static final String PARALLEL_PROFIT_FIELD = "parallel_profit";
+
+    public static final String MODE_PARAM = "mode";
+
+    public static final String CACHE_PARAM = "cache";
+
+    public static final String SAMPLE_RATE_PARAM = "sample_rate";
+
+    public static final String SPILL_PARAM = "spill";
+
+    public static final String PARALLEL_PARAM = "parallel";
+
+    private final long spillThreshold;
+
+    private final Supplier<Path> spillDirectory;
+
+    private final ShardSearchResources resources;
+
+    private final ProfitPartialCache cache;
+
+    private final ParallelCollector parallelCollector;
+
+    private final TransactionBuffers transactionBuffers;
+
+    public InitScriptFactory(Settings settings, Path spillDirectory, ShardSearchResources resources, ProfitPartialCache cache,
+                             ParallelCollector parallelCollector, TransactionBuffers transactionBuffers) {
+        this(settings, () -> spillDirectory, resources, cache, parallelCollector, transactionBuffers);
+    }
+
+    /**
+     * Creates the factory with the spill directory returned by the supplier when a request spills, the directory of the plugin
+     * is not known before the node starts and the supplier returns null on nodes that don't store data locally
+     */
+    public InitScriptFactory(Settings settings, Supplier<Path> spillDirectory, ShardSearchResources resources,
+                             ProfitPartialCache cache, ParallelCollector parallelCollector, TransactionBuffers transactionBuffers) {
+        this.spillThreshold = Transactions.STOCKAGGS_SPILL_THRESHOLD.get(settings).getBytes();
+        this.spillDirectory = spillDirectory;
+        this.resources = resources;
+        this.cache = cache;
+        this.parallelCollector = parallelCollector;
+        this.transactionBuffers = transactionBuffers;
+    }
+
+    private Path spillDirectory() {
+        Path directory = spillDirectory.get();
+        if (directory == null) {
+            throw new IllegalArgumentException("[" + SPILL_PARAM + "] is not supported on nodes that don't store data locally");
+        }
+        return directory;
+    }
+
+    /**
+     * The estimate is only right if every collected document is in the sample of the given rate
+     */
+    private void checkSampleQuery(double sampleRate) {
+        SampleQuery sampleQuery = resources.sampleQuery();
+        if (sampleQuery == null) {
+            throw new IllegalArgumentException("[" + SAMPLE_RATE_PARAM + "] requires a [" + SampleQueryBuilder.NAME + "] query in a "
+                + "required clause of the query of the request");
+        }
+        if (sampleQuery.getRate() != sampleRate) {
+            throw new IllegalArgumentException("[" + SAMPLE_RATE_PARAM + "] is [" + sampleRate + "], but the rate of the ["
+                + SampleQueryBuilder.NAME + "] query is [" + sampleQuery.getRate() + "]");
+        }
+    }
+
     @Override
     @SuppressWarnings("unchecked")
-    public ExecutableScript newScript(final @Nullable Map<String, Object> params) {
-        return new AbstractExecutableScript() {
+    public Function<Map<String, Object>, ExecutableScript> compile(Map<String, Object> params) {
+        final Mode mode = Mode.fromString(XContentMapValues.nodeStringValue(params.get(MODE_PARAM), null));
+        final boolean cached = booleanParam(params, CACHE_PARAM);
+        if (cached && mode != Mode.FOLD) {
+            throw new IllegalArgumentException("[" + CACHE_PARAM + "] is only supported in the [fold] mode");
+        }
+        final Object sampleRateParam = params.get(SAMPLE_RATE_PARAM);
+        final double sampleRate = sampleRateParam == null ? 1.0 : XContentMapValues.nodeDoubleValue(sampleRateParam);
+        if (sampleRateParam != null) {
+            if (mode != Mode.FOLD || cached) {
+                throw new IllegalArgumentException("[" + SAMPLE_RATE_PARAM + "] is only supported in the [fold] mode without ["
+                    + CACHE_PARAM + "]");
+            }
+            // validates the rate before the first shard runs the script
+            SampledProfit.threshold(sampleRate);
+        }
+        final boolean spill = booleanParam(params, SPILL_PARAM);
+        if (spill && mode != Mode.TRANSACTIONS) {
+            throw new IllegalArgumentException("[" + SPILL_PARAM + "] is only supported in the [transactions] mode");
+        }
+        final boolean parallel = booleanParam(params, PARALLEL_PARAM);
+        if (parallel && (mode != Mode.FOLD || cached || sampleRateParam != null)) {
+            throw new IllegalArgumentException("[" + PARALLEL_PARAM + "] is only supported in the [fold] mode without [" + CACHE_PARAM
+                + "] and [" + SAMPLE_RATE_PARAM + "]");
+        }
+        return vars -> new AbstractExecutableScript() {
             @Override
             public Object run() {
-                ((Map<String, Object>)params.get("_agg")).put(TRANSACTIONS_FIELD, new ArrayList<>());
+                Map<String, Object> agg = (Map<String, Object>) vars.get("_agg");
+                if (agg == null) {
+                    throw new IllegalArgumentException("[_agg] is missing, the params of the scripted_metric aggregation have to "
+                        + "contain [\"_agg\": {}]");
+                }
+                switch (mode) {
+                    case FOLD:
+                        if (sampleRateParam != null) {
+                            checkSampleQuery(sampleRate);
+                            agg.put(SAMPLED_PROFIT_FIELD, new SampledProfit(sampleRate));
+                        } else if (parallel) {
+                            agg.put(PARALLEL_PROFIT_FIELD, new ParallelProfit(parallelCollector, resources));
+                        } else if (cached && cache.isEnabled()) {
+                            agg.put(CACHED_PROFIT_FIELD, new CachedProfit(cache, resources));
+                        } else {
+                            // a single element array is used as a mutable primitive long, so the map script doesn't need to box
+                            agg.put(PROFIT_FIELD, new long[1]);
+                        }
+                        break;
+                    case TIME_BUCKETS:
+                        TimeBuckets timeBuckets = new TimeBuckets(resources.bigArrays());
+                        resources.releaseAfterQueryPhase(timeBuckets);
+                        agg.put(TIME_BUCKETS_FIELD, timeBuckets);
+                        break;
+                    default:
+                        Transactions transactions = spill
+                            ? new Transactions(resources.bigArrays(), transactionBuffers, spillDirectory(), spillThreshold)
+                            : new Transactions(resources.bigArrays(), transactionBuffers);
+                        resources.releaseAfterQueryPhase(transactions);
+                        agg.put(TRANSACTIONS_FIELD, transactions);
+                }
                 return null;
             }
         };
     }
 
+    /**
+     * Returns false if the parameter is not set, the value has to be true or false
+     */
+    private static boolean booleanParam(Map<String, Object> params, String name) {
+        Object value = params.get(name);
+        return value != null && XContentMapValues.nodeBooleanValue(value);
+    }
+
+    /**
+     * The state that is collected by the map script on each shard
+     */
+    public enum Mode {
+        /**
+         * List of all transactions
+         */
+        TRANSACTIONS,
+        /**
+         * Running profit
+         */
+        FOLD,
+        /**
+         * Running profit per time interval
+         */
+        TIME_BUCKETS;
+
+        public static Mode fromString(@Nullable String mode) {
+            if (mode == null) {
+                return TRANSACTIONS;
+            }
+            switch (mode) {
+                case "transactions":
+                    return TRANSACTIONS;
+                case "fold":
+                    return FOLD;
+                case "time_buckets":
+                    return TIME_BUCKETS;
+                default:
+                    throw new IllegalArgumentException("Unknown mode [" + mode + "], expected [transactions], [fold] or [time_buckets]");
+            }
+        }
+    }
+
     @Override
     public String getName() {
         return "stockaggs_init";
@@ -14,28 +14,76 @@
 
 package org.elasticsearch.examples.nativescript.script.stockaggs;
 
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.search.CollectionTerminatedException;
 import org.elasticsearch.common.Nullable;
-import org.elasticsearch.index.fielddata.ScriptDocValues;
-import org.elasticsearch.script.AbstractSearchScript;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.examples.nativescript.script.AbstractSegmentAwareSearchScript;
+import org.elasticsearch.examples.nativescript.script.CompilableScriptFactory;
+import org.elasticsearch.examples.nativescript.stats.ScriptProfile;
+import org.elasticsearch.index.fielddata.SortedBinaryDocValues;
 import org.elasticsearch.script.ExecutableScript;
-import org.elasticsearch.script.NativeScriptFactory;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Map;
+import java.util.function.Function;
 
 /**
  * Map script from
  * https://www.elastic.co/guide/en/elasticsearch/reference/current/search-aggregations-metrics-scripted-metric-aggregation.html
  * <p>
  * if (doc['type'].value == \"sale\") { _agg.transactions.add(doc['amount'].value) } else {_agg.transactions.add(-1 * doc['amount'].value)}
+ * <p>
+ * In the fold mode the amount is added to the running profit instead of the list of transactions. If the segment cache is
+ * used, the documents of segments with a cached partial are ignored. If the profit is sampled, the sample query of the
+ * request has already skipped the documents that are not in the sample, so every collected document is added. If the
+ * segments are collected in parallel, the script stops the aggregation from collecting each segment once the parallel total
+ * exists, or ignores the documents if the aggregation is not the only top-level aggregation, see {@link ParallelProfit}.
+ * <p>
+ * In the time buckets mode the amount is added to the running profit of the interval of the date in the date_field (default
+ * "date"). The interval parameter (default "1h") is a fixed time interval such as "15m" or "1d". Documents without the date
+ * are ignored.
+ * <p>
+ * The names of the fields and the values of the type field that are counted as sales can be changed using the
+ * amount_field, type_field and sale_types parameters. The type field has to be a keyword field and the amount field
+ * has to be an integral numeric field, both with doc values. When the script is run by the native_example script engine
+ * it reads the doc values of each segment directly and matches the sale types by ordinals. Native scripts don't know their
+ * segment, so they read the fields through the doc lookup and don't use the segment cache.
  */
-public class MapScriptFactory implements NativeScriptFactory {
+public class MapScriptFactory implements CompilableScriptFactory {
+
+    public static final String AMOUNT_FIELD_PARAM = "amount_field";
+
+    public static final String TYPE_FIELD_PARAM = "type_field";
+
+    public static final String SALE_TYPES_PARAM = "sale_types";
+
+    public static final String DATE_FIELD_PARAM = "date_field";
+
+    public static final String INTERVAL_PARAM = "interval";
 
     @Override
     @SuppressWarnings("unchecked")
-    public ExecutableScript newScript(final @Nullable Map<String, Object> params) {
-        Map<String, Object> agg = (Map<String, Object>) params.get("_agg");
-        return new MapScript(agg);
+    public Function<Map<String, Object>, ExecutableScript> compile(Map<String, Object> params) {
+        String amountField = XContentMapValues.nodeStringValue(params.get(AMOUNT_FIELD_PARAM), "amount");
+        String typeField = XContentMapValues.nodeStringValue(params.get(TYPE_FIELD_PARAM), "type");
+        Object saleTypesParam = params.get(SALE_TYPES_PARAM);
+        String[] saleTypeValues = saleTypesParam == null ? new String[]{SaleTypes.DEFAULT_SALE_TYPE}
+            : XContentMapValues.nodeStringArrayValue(saleTypesParam);
+        if (saleTypeValues.length == 0) {
+            throw new IllegalArgumentException("[" + SALE_TYPES_PARAM + "] cannot be empty");
+        }
+        SaleTypes saleTypes = new SaleTypes(saleTypeValues);
+        String dateField = XContentMapValues.nodeStringValue(params.get(DATE_FIELD_PARAM), "date");
+        long interval = TimeValue.parseTimeValue(XContentMapValues.nodeStringValue(params.get(INTERVAL_PARAM), null),
+            TimeValue.timeValueHours(1), INTERVAL_PARAM).millis();
+        if (interval <= 0) {
+            throw new IllegalArgumentException("[" + INTERVAL_PARAM + "] has to be positive");
+        }
+        return vars -> new MapScript((Map<String, Object>) vars.get("_agg"), amountField, typeField, saleTypes, dateField, interval);
     }
 
     @Override
@@ -48,24 +96,153 @@ public class MapScriptFactory implements NativeScriptFactory {
         return false;
     }
 
-    private static class MapScript extends AbstractSearchScript {
+    private static class MapScript extends AbstractSegmentAwareSearchScript {
 
         private final Map<String, Object> agg;
 
-        private MapScript(Map<String, Object> agg) {
+        private final String amountField;
+
+        private final String typeField;
+
+        private final SaleTypes saleTypes;
+
+        private final String dateField;
+
+        private final long interval;
+
+        // The state is created by the init script, which runs after this script is created, so we resolve it with the first segment
+        private long[] profit;
+
+        private Transactions transactions;
+
+        private CachedProfit cachedProfit;
+
+        private TimeBuckets timeBuckets;
+
+        private SampledProfit sampledProfit;
+
+        private ParallelProfit parallelProfit;
+
+        // true if the partial of the current segment was found in the cache or all segments were collected in parallel
+        private boolean skipSegment;
+
+        private SortedNumericDocValues amounts;
+
+        // null if the script runs as a native script, which doesn't have the reader of the segment
+        private SaleTypes.Matcher types;
+
+        // the values of the type field of native scripts, null if the script is bound to the segment
+        private SortedBinaryDocValues typeValues;
+
+        private SortedNumericDocValues dates;
+
+        private MapScript(Map<String, Object> agg, String amountField, String typeField, SaleTypes saleTypes, String dateField,
+                          long interval) {
             this.agg = agg;
+            this.amountField = amountField;
+            this.typeField = typeField;
+            this.saleTypes = saleTypes;
+            this.dateField = dateField;
+            this.interval = interval;
+        }
+
+        private void resolveState() {
+            if (profit == null && transactions == null && cachedProfit == null && timeBuckets == null && sampledProfit == null
+                && parallelProfit == null) {
+                profit = (long[]) agg.get(InitScriptFactory.PROFIT_FIELD);
+                transactions = (Transactions) agg.get(InitScriptFactory.TRANSACTIONS_FIELD);
+                cachedProfit = (CachedProfit) agg.get(InitScriptFactory.CACHED_PROFIT_FIELD);
+                timeBuckets = (TimeBuckets) agg.get(InitScriptFactory.TIME_BUCKETS_FIELD);
+                sampledProfit = (SampledProfit) agg.get(InitScriptFactory.SAMPLED_PROFIT_FIELD);
+                parallelProfit = (ParallelProfit) agg.get(InitScriptFactory.PARALLEL_PROFIT_FIELD);
+                if (timeBuckets != null) {
+                    timeBuckets.setInterval(interval);
+                }
+            }
+        }
+
+        @Override
+        protected void setNextReader(@Nullable LeafReader reader) throws IOException {
+            resolveState();
+            if (cachedProfit != null) {
+                skipSegment = cachedProfit.startSegment(reader, amountField, typeField, saleTypes);
+                onSegment(skipSegment ? "cached" : "collected");
+                if (skipSegment) {
+                    return;
+                }
+            } else if (parallelProfit != null) {
+                skipSegment = parallelProfit.startSegment(amountField, typeField, saleTypes);
+                onSegment(skipSegment ? "parallel" : "fold");
+                if (skipSegment) {
+                    return;
+                }
+            } else if (sampledProfit != null) {
+                onSegment("sampled");
+            } else if (timeBuckets != null) {
+                onSegment("time_buckets");
+            } else {
+                onSegment(profit != null ? "fold" : "transactions");
+            }
+            amounts = longValues(reader, amountField);
+            // Resolving sale types into ordinals once per segment, so each document is classified by comparing ordinals
+            types = reader == null ? null : saleTypes.matcher(DocValues.getSortedSet(reader, typeField));
+            typeValues = reader == null ? stringValues(typeField) : null;
+            if (timeBuckets != null) {
+                dates = longValues(reader, dateField);
+            }
+        }
+
+        private boolean isSale(int doc) {
+            if (types != null) {
+                return types.isSale(doc);
+            }
+            // Native scripts don't have the ordinals of the segment and compare the bytes of the first value instead
+            typeValues.setDocument(doc);
+            return typeValues.count() > 0 && saleTypes.isSale(typeValues.valueAt(0));
+        }
+
+        private long amount(int doc) {
+            amounts.setDocument(doc);
+            // Missing amount is counted as 0, same as doc['amount'].value
+            return amounts.count() > 0 ? amounts.valueAt(0) : 0L;
         }
 
         @Override
-        @SuppressWarnings("unchecked")
-        public Object run() {
-            ArrayList<Long> transactions = (ArrayList<Long>) agg.get(InitScriptFactory.TRANSACTIONS_FIELD);
-            ScriptDocValues.Longs amount = (ScriptDocValues.Longs) doc().get("amount");
-            ScriptDocValues.Strings type = (ScriptDocValues.Strings) doc().get("type");
-            if ("sale".equals(type.getValue())) {
-                transactions.add(amount.getValue());
+        protected Object doRun() {
+            if (parallelProfit != null && parallelProfit.canTerminateCollection()) {
+                // the parallel total already contains all documents, the aggregation doesn't need to collect this segment
+                throw new CollectionTerminatedException();
+            }
+            if (skipSegment || (parallelProfit != null && parallelProfit.isCollected())) {
+                // the partial of the segment is cached or the parallel total already contains the document
+                return null;
+            }
+            int doc = docId();
+            ScriptProfile profile = profile();
+            long start = profile == null ? 0 : System.nanoTime();
+            long amount = amount(doc);
+            boolean sale = isSale(doc);
+            if (profile != null) {
+                profile.onLookup(System.nanoTime() - start);
+            }
+            if (cachedProfit != null) {
+                cachedProfit.collect(amount, sale);
+                return null;
+            }
+            long value = sale ? amount : -amount;
+            if (sampledProfit != null) {
+                sampledProfit.add(value);
+            } else if (timeBuckets != null) {
+                dates.setDocument(doc);
+                if (dates.count() > 0) {
+                    timeBuckets.add(dates.valueAt(0), value);
+                }
+            } else if (parallelProfit != null) {
+                parallelProfit.add(value);
+            } else if (profit != null) {
+                profit[0] += value;
             } else {
-                transactions.add(-amount.getValue());
+                transactions.add(value);
             }
             return null;
         }
@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script.stockaggs;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Collects the profit of all segments of a shard on several threads.
+ * <p>
+ * The segments are split into partitions with about the same number of documents. The first partition is collected by
+ * the search thread and the others by the node-level {@link #THREAD_POOL} thread pool, which is bounded, so parallel
+ * collection of many requests cannot use more threads than the pool has. Each partition sums its profit into a
+ * primitive partial and the partials are added once all partitions are collected. Partitions that are rejected by the
+ * thread pool are collected by the search thread.
+ */
+public class ParallelCollector {
+
+    public static final String THREAD_POOL = "stockaggs";
+
+    /**
+     * Number of documents between checks of the cancellation of the request
+     */
+    private static final int CANCELLATION_CHECK_INTERVAL = 4096;
+
+    private volatile ExecutorService executor;
+
+    private volatile int parallelism = 1;
+
+    /**
+     * Returns the builder of the thread pool that collects segments, its size and queue can be changed using the
+     * thread_pool.stockaggs.size and thread_pool.stockaggs.queue_size settings
+     */
+    public static ExecutorBuilder<?> executorBuilder(Settings settings) {
+        return new FixedExecutorBuilder(settings, THREAD_POOL, EsExecutors.boundedNumberOfProcessors(settings), 1000,
+            "thread_pool." + THREAD_POOL);
+    }
+
+    /**
+     * Starts using the thread pool, until then all segments are collected by the search thread
+     */
+    public void start(ThreadPool threadPool) {
+        start(threadPool.executor(THREAD_POOL), threadPool.info(THREAD_POOL).getMax());
+    }
+
+    void start(ExecutorService executor, int threads) {
+        this.executor = executor;
+        // the search thread collects one of the partitions
+        this.parallelism = threads + 1;
+    }
+
+    /**
+     * Returns the profit of all documents that match the query in all segments of the searcher
+     */
+    public long collect(IndexSearcher searcher, Query query, BooleanSupplier cancelled, String amountField, String typeField,
+                        SaleTypes saleTypes) throws IOException {
+        Weight weight = searcher.createNormalizedWeight(query, false);
+        List<List<LeafReaderContext>> partitions = partition(searcher.getIndexReader().leaves(), executor == null ? 1 : parallelism);
+        if (partitions.isEmpty()) {
+            return 0;
+        }
+        List<Future<Long>> futures = new ArrayList<>();
+        List<List<LeafReaderContext>> rejected = new ArrayList<>();
+        for (List<LeafReaderContext> partition : partitions.subList(1, partitions.size())) {
+            try {
+                futures.add(executor.submit(() -> collect(weight, partition, cancelled, amountField, typeField, saleTypes)));
+            } catch (EsRejectedExecutionException ex) {
+                rejected.add(partition);
+            }
+        }
+        long profit = 0;
+        Exception failure = null;
+        try {
+            profit += collect(weight, partitions.get(0), cancelled, amountField, typeField, saleTypes);
+            for (List<LeafReaderContext> partition : rejected) {
+                profit += collect(weight, partition, cancelled, amountField, typeField, saleTypes);
+            }
+        } catch (Exception ex) {
+            failure = ex;
+        }
+        // the partitions read the segments of the request, so we have to wait for all of them even if one failed
+        for (Future<Long> future : futures) {
+            try {
+                profit += future.get();
+            } catch (ExecutionException ex) {
+                failure = ExceptionsHelper.useOrSuppress(failure, ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failure = ExceptionsHelper.useOrSuppress(failure, ex);
+            }
+        }
+        if (failure != null) {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            throw ExceptionsHelper.convertToRuntime(failure);
+        }
+        return profit;
+    }
+
+    private static long collect(Weight weight, List<LeafReaderContext> partition, BooleanSupplier cancelled, String amountField,
+                                String typeField, SaleTypes saleTypes) throws IOException {
+        long profit = 0;
+        int collected = 0;
+        for (LeafReaderContext leaf : partition) {
+            if (cancelled.getAsBoolean()) {
+                throw new TaskCancelledException("cancelled");
+            }
+            Scorer scorer = weight.scorer(leaf);
+            if (scorer == null) {
+                continue;
+            }
+            DocIdSetIterator docs = scorer.iterator();
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            SortedNumericDocValues amounts = DocValues.getSortedNumeric(leaf.reader(), amountField);
+            SaleTypes.Matcher types = saleTypes.matcher(DocValues.getSortedSet(leaf.reader(), typeField));
+            for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docs.nextDoc()) {
+                if (liveDocs != null && liveDocs.get(doc) == false) {
+                    continue;
+                }
+                if (++collected % CANCELLATION_CHECK_INTERVAL == 0 && cancelled.getAsBoolean()) {
+                    throw new TaskCancelledException("cancelled");
+                }
+                amounts.setDocument(doc);
+                // Missing amount is counted as 0, same as in the map script
+                long amount = amounts.count() > 0 ? amounts.valueAt(0) : 0L;
+                profit += types.isSale(doc) ? amount : -amount;
+            }
+        }
+        return profit;
+    }
+
+    /**
+     * Splits the segments into at most count partitions with about the same number of documents, the largest segments
+     * are assigned first, each to the partition with the fewest documents so far
+     */
+    static List<List<LeafReaderContext>> partition(List<LeafReaderContext> leaves, int count) {
+        List<LeafReaderContext> sorted = new ArrayList<>(leaves);
+        sorted.sort(Comparator.comparingInt((LeafReaderContext leaf) -> leaf.reader().maxDoc()).reversed());
+        int partitionCount = Math.min(count, sorted.size());
+        List<List<LeafReaderContext>> partitions = new ArrayList<>(partitionCount);
+        long[] docs = new long[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (LeafReaderContext leaf : sorted) {
+            int smallest = 0;
+            for (int i = 1; i < partitionCount; i++) {
+                if (docs[i] < docs[smallest]) {
+                    smallest = i;
+                }
+            }
+            partitions.get(smallest).add(leaf);
+            docs[smallest] += leaf.reader().maxDoc();
+        }
+        return partitions;
+    }
+}
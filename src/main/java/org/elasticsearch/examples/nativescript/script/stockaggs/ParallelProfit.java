@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script.stockaggs;
+
+import org.elasticsearch.examples.nativescript.script.ShardSearchResources;
+
+import java.io.IOException;
+
+/**
+ * Running profit of a shard in the fold mode that collects all segments in parallel using the {@link ParallelCollector}.
+ * <p>
+ * The map script starts the parallel collection of all segments of the shard when it is called for the first segment.
+ * Once the parallel total exists, the map script stops the aggregation from collecting the rest of each segment by throwing
+ * a {@link org.apache.lucene.search.CollectionTerminatedException} on the first document of the segment, see {@link
+ * #canTerminateCollection()}. The search still iterates over the matching documents to count and collect hits, but the
+ * aggregation and the map script don't see them anymore. If the aggregation is not the only top-level aggregation, the
+ * exception would stop the other aggregations as well, so the map script ignores the documents instead. If documents
+ * cannot be collected by the scripts, for example if the aggregation is a sub-aggregation or the request has a timeout,
+ * the profit is folded by the map script as usual.
+ */
+public class ParallelProfit {
+
+    private final ParallelCollector collector;
+
+    private final ShardSearchResources resources;
+
+    private boolean resolved;
+
+    // true if all segments were collected in parallel
+    private boolean collected;
+
+    // true if the aggregation is the only top-level aggregation, so its collection can be terminated
+    private boolean terminate;
+
+    private long profit;
+
+    public ParallelProfit(ParallelCollector collector, ShardSearchResources resources) {
+        this.collector = collector;
+        this.resources = resources;
+    }
+
+    /**
+     * Called before the first document of each segment
+     *
+     * @return true if all segments were collected in parallel, so documents of this segment can be ignored
+     */
+    public boolean startSegment(String amountField, String typeField, SaleTypes saleTypes) throws IOException {
+        if (resolved == false) {
+            resolved = true;
+            ShardSearchResources.CollectionTarget target = resources.collectionTarget();
+            if (target != null) {
+                profit = collector.collect(target.searcher(), target.query(), target::isCancelled, amountField, typeField, saleTypes);
+                collected = true;
+                terminate = target.isOnlyAggregation();
+            }
+        }
+        return collected;
+    }
+
+    /**
+     * Returns true if all segments were collected in parallel and the map script has nothing left to do
+     */
+    public boolean isCollected() {
+        return collected;
+    }
+
+    /**
+     * Returns true if all segments were collected in parallel and the aggregation can stop collecting documents
+     */
+    public boolean canTerminateCollection() {
+        return collected && terminate;
+    }
+
+    /**
+     * Adds a transaction that was collected by the map script
+     */
+    public void add(long value) {
+        profit += value;
+    }
+
+    public long profit() {
+        return profit;
+    }
+}
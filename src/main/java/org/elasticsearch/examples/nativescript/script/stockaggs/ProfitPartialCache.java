@@ -0,0 +1,183 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script.stockaggs;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.Accountable;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Node-level cache of per-segment profit partials calculated by the stockaggs scripts in the fold mode.
+ * <p>
+ * A partial is an array of the sum of sales, the sum of costs and the number of transactions in a segment that
+ * match a query. It stays valid as long as the segment and its deleted documents don't change, so the key contains
+ * the core and deletes key of the segment, the query and the script parameters. The cache is bounded, evicts the
+ * least recently used entries first and removes all entries of a segment when the segment is closed, for example
+ * after it was merged away.
+ * <p>
+ * The key holds a reference to the query, which can be large, so each entry is weighed together with the size of its query.
+ * Entries of several segments often share the same query, but each of them is charged for it, so the cache may hold less
+ * than its size, but never more.
+ * <p>
+ * The cache is only used by the scripts of the native_example engine, see {@link CachedProfit}.
+ */
+public class ProfitPartialCache {
+
+    public static final Setting<ByteSizeValue> STOCKAGGS_CACHE_SIZE =
+        Setting.memorySizeSetting("my_scripts.stockaggs.cache.size", "1mb", Setting.Property.NodeScope);
+
+    public static final int SALES = 0;
+
+    public static final int COSTS = 1;
+
+    public static final int COUNT = 2;
+
+    public static final int PARTIAL_SIZE = 3;
+
+    /**
+     * Rough size of an entry with its key without the query
+     */
+    private static final long ENTRY_SIZE_IN_BYTES = 128;
+
+    /**
+     * Size of queries that don't report their size, the same default as in the query cache of Lucene
+     */
+    private static final long QUERY_DEFAULT_RAM_BYTES_USED = 1024;
+
+    private final Cache<Key, long[]> cache;
+
+    private final Set<Object> registeredCoreKeys = ConcurrentCollections.newConcurrentSet();
+
+    private final boolean enabled;
+
+    public ProfitPartialCache(Settings settings) {
+        long sizeInBytes = STOCKAGGS_CACHE_SIZE.get(settings).getBytes();
+        enabled = sizeInBytes > 0;
+        cache = CacheBuilder.<Key, long[]>builder()
+            .setMaximumWeight(sizeInBytes)
+            .weigher((key, partial) -> ENTRY_SIZE_IN_BYTES + key.queryRamBytesUsed)
+            .build();
+    }
+
+    /**
+     * Returns false if the cache size is set to 0
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Builds the key of the partial of the given segment
+     */
+    public Key key(LeafReader reader, Query query, String amountField, String typeField, SaleTypes saleTypes) {
+        Object coreKey = reader.getCoreCacheKey();
+        if (registeredCoreKeys.add(coreKey)) {
+            reader.addCoreClosedListener(this::onClose);
+        }
+        return new Key(coreKey, reader.getCombinedCoreAndDeletesKey(), query, queryRamBytesUsed(query), amountField, typeField,
+            saleTypes);
+    }
+
+    private static long queryRamBytesUsed(Query query) {
+        if (query instanceof Accountable) {
+            return ((Accountable) query).ramBytesUsed();
+        }
+        return QUERY_DEFAULT_RAM_BYTES_USED;
+    }
+
+    /**
+     * Returns the cached partial or null if it is not cached
+     */
+    public long[] get(Key key) {
+        return cache.get(key);
+    }
+
+    public void put(Key key, long[] partial) {
+        assert partial.length == PARTIAL_SIZE;
+        cache.put(key, partial);
+    }
+
+    /**
+     * Returns the number of cached partials
+     */
+    public int count() {
+        return cache.count();
+    }
+
+    private void onClose(Object coreKey) {
+        registeredCoreKeys.remove(coreKey);
+        List<Key> keys = new ArrayList<>();
+        for (Key key : cache.keys()) {
+            if (key.coreKey == coreKey) {
+                keys.add(key);
+            }
+        }
+        for (Key key : keys) {
+            cache.invalidate(key);
+        }
+    }
+
+    public static final class Key {
+        private final Object coreKey;
+        private final Object deletesKey;
+        private final Query query;
+        // not a part of the key, it is only used to weigh the entry
+        private final long queryRamBytesUsed;
+        private final String amountField;
+        private final String typeField;
+        private final SaleTypes saleTypes;
+
+        private Key(Object coreKey, Object deletesKey, Query query, long queryRamBytesUsed, String amountField, String typeField,
+                    SaleTypes saleTypes) {
+            this.coreKey = coreKey;
+            this.deletesKey = deletesKey;
+            this.query = query;
+            this.queryRamBytesUsed = queryRamBytesUsed;
+            this.amountField = amountField;
+            this.typeField = typeField;
+            this.saleTypes = saleTypes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return coreKey == key.coreKey &&
+                deletesKey == key.deletesKey &&
+                query.equals(key.query) &&
+                amountField.equals(key.amountField) &&
+                typeField.equals(key.typeField) &&
+                saleTypes.equals(key.saleTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(coreKey), System.identityHashCode(deletesKey), query, amountField, typeField,
+                saleTypes);
+        }
+    }
+}
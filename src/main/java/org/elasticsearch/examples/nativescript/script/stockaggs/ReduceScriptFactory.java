@@ -14,27 +14,36 @@
 
 package org.elasticsearch.examples.nativescript.script.stockaggs;
 
-import org.elasticsearch.common.Nullable;
+import org.elasticsearch.examples.nativescript.script.CompilableScriptFactory;
 import org.elasticsearch.script.AbstractExecutableScript;
 import org.elasticsearch.script.ExecutableScript;
-import org.elasticsearch.script.NativeScriptFactory;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 /**
- * Combine script from
+ * Reduce script from
  * https://www.elastic.co/guide/en/elasticsearch/reference/current/search-aggregations-metrics-scripted-metric-aggregation.html
  * <p>
- * profit = 0; for (t in _agg.transactions) { profit += t }; return profit
+ * profit = 0; for (a in _aggs) { profit += a }; return profit
+ * <p>
+ * When the coordinating node reduces shard results in batches (see batched_reduce_size), each partial reduce keeps
+ * the results of its batch in a list that becomes a single element of the next reduce, and the script only runs in
+ * the final reduce. So the elements of _aggs can be nested lists of shard results, which are summed as they are
+ * traversed, without copying them into a flat list.
+ * <p>
+ * In the time buckets mode shard results are encoded buckets that are merged by {@link TimeBuckets#merge(List)}, and the
+ * result is the list of buckets sorted by time. If the profit is sampled, shard results are combined by
+ * {@link SampledProfit#reduce(List)} into the estimated profit with its confidence interval.
  */
-public class ReduceScriptFactory implements NativeScriptFactory {
+public class ReduceScriptFactory implements CompilableScriptFactory {
 
     @Override
     @SuppressWarnings("unchecked")
-    public ExecutableScript newScript(final @Nullable Map<String, Object> params) {
-        final ArrayList<Long> aggs = (ArrayList<Long>) params.get("_aggs");
-        return new ReduceScript(aggs);
+    public Function<Map<String, Object>, ExecutableScript> compile(Map<String, Object> params) {
+        return vars -> new ReduceScript((List<Object>) vars.get("_aggs"));
     }
 
     @Override
@@ -49,17 +58,46 @@ public class ReduceScriptFactory implements NativeScriptFactory {
 
     private static class ReduceScript extends AbstractExecutableScript {
 
-        private final ArrayList<Long> aggs;
+        private final List<Object> aggs;
 
-        private ReduceScript(ArrayList<Long> aggs) {
+        private ReduceScript(List<Object> aggs) {
             this.aggs = aggs;
         }
 
         @Override
         public Object run() {
+            List<byte[]> timeBuckets = new ArrayList<>();
+            List<Map<String, Object>> samples = new ArrayList<>();
+            long profit = reduce(aggs, timeBuckets, samples);
+            if (timeBuckets.isEmpty() == false) {
+                return TimeBuckets.merge(timeBuckets);
+            }
+            if (samples.isEmpty() == false) {
+                return SampledProfit.reduce(samples);
+            }
+            return profit;
+        }
+
+        /**
+         * Sums profits and collects encoded time buckets and samples of all shards
+         */
+        @SuppressWarnings("unchecked")
+        private static long reduce(List<?> aggs, List<byte[]> timeBuckets, List<Map<String, Object>> samples) {
             long profit = 0;
-            for (long t : aggs) {
-                profit += t;
+            for (Object agg : aggs) {
+                if (agg instanceof Number) {
+                    profit += ((Number) agg).longValue();
+                } else if (agg instanceof byte[]) {
+                    timeBuckets.add((byte[]) agg);
+                } else if (agg instanceof Map) {
+                    samples.add((Map<String, Object>) agg);
+                } else if (agg instanceof List) {
+                    // results of a partial reduce
+                    profit += reduce((List<?>) agg, timeBuckets, samples);
+                } else if (agg != null) {
+                    throw new IllegalArgumentException("Unexpected shard result [" + agg + "] of type [" + agg.getClass().getName()
+                        + "], expected a number, encoded buckets, a sample or a list");
+                }
             }
             return profit;
         }
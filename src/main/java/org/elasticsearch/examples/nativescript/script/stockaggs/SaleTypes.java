@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script.stockaggs;
+
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.BytesRef;
+
+import java.util.Arrays;
+
+/**
+ * Values of the type field that are counted as sales.
+ * <p>
+ * The values are resolved into ordinals once per segment, so each document is classified by comparing ordinals
+ * instead of converting its ordinal into a string.
+ */
+public class SaleTypes {
+
+    public static final String DEFAULT_SALE_TYPE = "sale";
+
+    private final String[] types;
+
+    private final BytesRef[] terms;
+
+    public SaleTypes(String... types) {
+        if (types.length == 0) {
+            throw new IllegalArgumentException("sale types cannot be empty");
+        }
+        this.types = types.clone();
+        this.terms = new BytesRef[types.length];
+        for (int i = 0; i < types.length; i++) {
+            terms[i] = new BytesRef(types[i]);
+        }
+    }
+
+    public String[] getTypes() {
+        return types.clone();
+    }
+
+    /**
+     * Returns true if the value of the type field is a sale type
+     */
+    public boolean isSale(BytesRef type) {
+        for (BytesRef term : terms) {
+            if (term.bytesEquals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resolves sale types into ordinals of the given doc values of the type field
+     */
+    public Matcher matcher(SortedSetDocValues values) {
+        long[] ords = new long[terms.length];
+        int count = 0;
+        for (BytesRef term : terms) {
+            long ord = values.lookupTerm(term);
+            // types that are not present in the segment are skipped
+            if (ord >= 0) {
+                ords[count++] = ord;
+            }
+        }
+        return new Matcher(values, Arrays.copyOf(ords, count));
+    }
+
+    /**
+     * Classifies documents of a single segment
+     */
+    public static class Matcher {
+
+        private final SortedSetDocValues values;
+
+        private final long[] saleOrds;
+
+        private Matcher(SortedSetDocValues values, long[] saleOrds) {
+            this.values = values;
+            this.saleOrds = saleOrds;
+        }
+
+        /**
+         * Returns true if the first value of the type field of the document is a sale type, same as doc['type'].value
+         */
+        public boolean isSale(int doc) {
+            if (saleOrds.length == 0) {
+                return false;
+            }
+            values.setDocument(doc);
+            long ord = values.nextOrd();
+            if (ord == SortedSetDocValues.NO_MORE_ORDS) {
+                return false;
+            }
+            for (long saleOrd : saleOrds) {
+                if (saleOrd == ord) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(types, ((SaleTypes) o).types);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(types);
+    }
+}
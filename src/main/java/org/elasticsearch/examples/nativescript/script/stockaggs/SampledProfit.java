@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script.stockaggs;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Running profit of a shard over a deterministic sample of documents.
+ * <p>
+ * A document is in the sample if its sample key, a hash of a unique value of the document such as a sequence number that
+ * is computed at index time, see {@link #sampleKey(long)}, is below the threshold of the sample rate. So each document is
+ * sampled independently with the probability of the sample rate and, unlike the document id within a segment, the key
+ * doesn't change when segments are merged, so repeated requests sample the same documents on every shard and replica.
+ * The sample is taken by the sample query of the request, which reads only the documents below the threshold from the
+ * points index of the key field, so documents that are not in the sample are never collected and every document that
+ * reaches the map script is added. The profit is estimated as the sum of sampled transactions divided
+ * by the sample rate (Horvitz-Thompson estimator) with the variance of the estimate
+ * (1 - rate) / rate^2 * sum(transaction^2), which is summed over all shards by the coordinating node.
+ */
+public class SampledProfit {
+
+    /**
+     * z-score of the reported two-sided 95% confidence interval
+     */
+    private static final double Z_95 = 1.96;
+
+    public static final String SAMPLE_RATE = "sample_rate";
+
+    public static final String SUM = "sum";
+
+    public static final String SUM_OF_SQUARES = "sum_of_squares";
+
+    public static final String COUNT = "count";
+
+    /**
+     * Sample keys are between 0 and this limit exclusive, so the threshold of any rate is exactly representable
+     */
+    public static final long KEY_LIMIT = 1L << 53;
+
+    private final double rate;
+
+    private long sum;
+
+    private double sumOfSquares;
+
+    private long count;
+
+    public SampledProfit(double rate) {
+        threshold(rate);
+        this.rate = rate;
+    }
+
+    public double rate() {
+        return rate;
+    }
+
+    /**
+     * Returns the sample key of a document with the given unique value
+     */
+    public static long sampleKey(long value) {
+        return fmix64(value) >>> 11;
+    }
+
+    /**
+     * Returns the threshold of the sample rate, documents with sample keys below the threshold are in the sample
+     */
+    public static long threshold(double rate) {
+        if (rate <= 0 || rate > 1) {
+            throw new IllegalArgumentException("sample rate has to be greater than 0 and less than or equal to 1, got [" + rate + "]");
+        }
+        return (long) (rate * KEY_LIMIT);
+    }
+
+    /**
+     * Adds a sampled transaction
+     */
+    public void add(long value) {
+        sum += value;
+        sumOfSquares += (double) value * value;
+        count++;
+    }
+
+    /**
+     * Returns the result of the shard that is sent to the coordinating node
+     */
+    public Map<String, Object> shardResult() {
+        Map<String, Object> result = new HashMap<>();
+        result.put(SAMPLE_RATE, rate);
+        result.put(SUM, sum);
+        result.put(SUM_OF_SQUARES, sumOfSquares);
+        result.put(COUNT, count);
+        return result;
+    }
+
+    /**
+     * Combines results of all shards into the estimated profit with its 95% confidence interval
+     */
+    public static Map<String, Object> reduce(List<Map<String, Object>> shardResults) {
+        double rate = 0;
+        long sum = 0;
+        double sumOfSquares = 0;
+        long count = 0;
+        for (Map<String, Object> shardResult : shardResults) {
+            double shardRate = ((Number) shardResult.get(SAMPLE_RATE)).doubleValue();
+            if (rate != 0 && rate != shardRate) {
+                throw new IllegalArgumentException("cannot combine samples with rates [" + rate + "] and [" + shardRate + "]");
+            }
+            rate = shardRate;
+            sum += ((Number) shardResult.get(SUM)).longValue();
+            sumOfSquares += ((Number) shardResult.get(SUM_OF_SQUARES)).doubleValue();
+            count += ((Number) shardResult.get(COUNT)).longValue();
+        }
+        Map<String, Object> result = new HashMap<>();
+        if (rate == 0) {
+            // no shard results
+            result.put("value", 0L);
+            result.put("lower", 0L);
+            result.put("upper", 0L);
+            result.put(SAMPLE_RATE, 0d);
+            result.put("sampled_transactions", 0L);
+            return result;
+        }
+        double estimate = sum / rate;
+        double error = Z_95 * Math.sqrt((1 - rate) / (rate * rate) * sumOfSquares);
+        result.put("value", Math.round(estimate));
+        result.put("lower", (long) Math.floor(estimate - error));
+        result.put("upper", (long) Math.ceil(estimate + error));
+        result.put(SAMPLE_RATE, rate);
+        result.put("sampled_transactions", count);
+        return result;
+    }
+
+    /**
+     * Finalization mix of MurmurHash3, spreads consecutive values over the whole range of {@code long}
+     */
+    static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script.stockaggs;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.InPlaceMergeSorter;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.LongArray;
+import org.elasticsearch.common.util.LongHash;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Running profit per fixed time interval stored as primitive longs in paged big arrays.
+ * <p>
+ * Timestamps are rounded down to the number of the interval they belong to, the interval numbers are mapped to
+ * the position in the array of profits by a {@link LongHash}. All memory is accounted by the request circuit breaker
+ * the same way as {@link Transactions}.
+ * <p>
+ * Shards send the buckets to the coordinating node in a compact binary format: the interval and the number of buckets
+ * followed by buckets sorted by interval number, each bucket as the difference between its number and the number of
+ * the previous bucket followed by the profit, both as variable length integers. Neighbouring buckets differ by small
+ * numbers, so most buckets take only a few bytes.
+ */
+public class TimeBuckets implements Releasable {
+
+    private final BigArrays bigArrays;
+
+    private long interval;
+
+    private LongHash buckets;
+
+    private LongArray profits;
+
+    public TimeBuckets(BigArrays bigArrays) {
+        this.bigArrays = bigArrays;
+        boolean success = false;
+        try {
+            buckets = new LongHash(1, bigArrays);
+            profits = bigArrays.newLongArray(1, true);
+            success = true;
+        } finally {
+            if (success == false) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Sets the length of the interval in milliseconds, all map scripts on the shard have to use the same interval
+     */
+    public void setInterval(long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval has to be positive, got [" + interval + "]");
+        }
+        if (this.interval != 0 && this.interval != interval) {
+            throw new IllegalArgumentException("interval cannot change from [" + this.interval + "] to [" + interval + "]");
+        }
+        this.interval = interval;
+    }
+
+    /**
+     * Adds the value to the profit of the interval of the timestamp
+     */
+    public void add(long timestamp, long value) {
+        long ord = buckets.add(Math.floorDiv(timestamp, interval));
+        if (ord < 0) {
+            ord = -1 - ord;
+        } else {
+            profits = bigArrays.grow(profits, ord + 1);
+        }
+        profits.increment(ord, value);
+    }
+
+    /**
+     * Returns the number of intervals with at least one transaction
+     */
+    public long size() {
+        return buckets.size();
+    }
+
+    /**
+     * Encodes all buckets into the compact binary format
+     */
+    public byte[] encode() {
+        long[] keys = new long[Math.toIntExact(buckets.size())];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = buckets.get(i);
+        }
+        Arrays.sort(keys);
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            out.writeVLong(interval);
+            out.writeVInt(keys.length);
+            long previous = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (i == 0) {
+                    // the first interval can be before the epoch
+                    out.writeZLong(keys[i]);
+                } else {
+                    out.writeVLong(keys[i] - previous);
+                }
+                previous = keys[i];
+                out.writeZLong(profits.get(buckets.find(keys[i])));
+            }
+            return BytesReference.toBytes(out.bytes());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Merges buckets encoded by several shards.
+     * <p>
+     * Buckets are decoded into primitive arrays, sorted by interval and summed, so only the final buckets are boxed.
+     *
+     * @return list of buckets sorted by time, each bucket is a map with the start of the interval in milliseconds
+     * since the epoch as the key and the profit as the value
+     */
+    public static List<Map<String, Object>> merge(List<byte[]> encoded) {
+        long interval = 0;
+        long[] keys = new long[16];
+        long[] values = new long[16];
+        int size = 0;
+        for (byte[] bytes : encoded) {
+            try (StreamInput in = StreamInput.wrap(bytes)) {
+                long shardInterval = in.readVLong();
+                int count = in.readVInt();
+                if (count == 0) {
+                    // shards without transactions don't know the interval
+                    continue;
+                }
+                if (interval != 0 && interval != shardInterval) {
+                    throw new IllegalArgumentException("cannot merge buckets with interval [" + shardInterval
+                        + "] into buckets with interval [" + interval + "]");
+                }
+                interval = shardInterval;
+                keys = ArrayUtil.grow(keys, size + count);
+                values = ArrayUtil.grow(values, size + count);
+                long key = 0;
+                for (int i = 0; i < count; i++) {
+                    key = i == 0 ? in.readZLong() : key + in.readVLong();
+                    keys[size] = key;
+                    values[size] = in.readZLong();
+                    size++;
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        sort(keys, values, size);
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (int i = 0; i < size; ) {
+            long key = keys[i];
+            long profit = 0;
+            for (; i < size && keys[i] == key; i++) {
+                profit += values[i];
+            }
+            Map<String, Object> bucket = new HashMap<>();
+            bucket.put("key", key * interval);
+            bucket.put("value", profit);
+            result.add(bucket);
+        }
+        return result;
+    }
+
+    private static void sort(long[] keys, long[] values, int size) {
+        new InPlaceMergeSorter() {
+            @Override
+            protected int compare(int i, int j) {
+                return Long.compare(keys[i], keys[j]);
+            }
+
+            @Override
+            protected void swap(int i, int j) {
+                long key = keys[i];
+                keys[i] = keys[j];
+                keys[j] = key;
+                long value = values[i];
+                values[i] = values[j];
+                values[j] = value;
+            }
+        }.sort(0, size);
+    }
+
+    @Override
+    public void close() {
+        Releasables.close(buckets, profits);
+        buckets = null;
+        profits = null;
+    }
+}
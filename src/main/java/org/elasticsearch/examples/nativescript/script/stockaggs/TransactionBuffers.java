@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.elasticsearch.examples.nativescript.script.stockaggs;
+
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.examples.nativescript.stats.TransactionBuffersStats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node-level metrics of the buffers that keep the transactions of each shard of the stockaggs scripts.
+ * <p>
+ * The buffers are allocated through the {@link BigArrays} of the search context, so their pages come from and are returned
+ * to the page recycler of Elasticsearch, which keeps free pages within the limits of the cache.recycler.page settings. The
+ * recycler doesn't report how many pages it reused, so the metrics only cover the buffers of the stockaggs scripts: the
+ * number of created buffers, the size of the buffers that are currently retained by running requests and the total size of
+ * the buffers that were returned to the recycler.
+ */
+public class TransactionBuffers {
+
+    private final LongAdder created = new LongAdder();
+
+    private final LongAdder retainedBytes = new LongAdder();
+
+    private final LongAdder releasedBytes = new LongAdder();
+
+    void onCreated() {
+        created.increment();
+    }
+
+    /**
+     * Records that a buffer changed its size by the given number of bytes
+     */
+    void onResized(long deltaBytes) {
+        retainedBytes.add(deltaBytes);
+    }
+
+    /**
+     * Records that a buffer of the given size was returned to the recycler
+     */
+    void onReleased(long bytes) {
+        retainedBytes.add(-bytes);
+        releasedBytes.add(bytes);
+    }
+
+    /**
+     * Returns a point in time copy of the buffer metrics
+     */
+    public TransactionBuffersStats stats() {
+        return new TransactionBuffersStats(created.sum(), retainedBytes.sum(), releasedBytes.sum());
+    }
+}
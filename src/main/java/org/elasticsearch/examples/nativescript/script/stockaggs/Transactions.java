@@ -0,0 +1,267 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script.stockaggs;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.UUIDs;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.LongArray;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Growable list of transaction amounts stored as primitive longs in paged big arrays.
+ * <p>
+ * All memory is allocated through {@link BigArrays}, so when the list is created by a script running in a search
+ * request it is accounted by the request circuit breaker, and an oversized aggregation fails with a circuit
+ * breaking exception instead of running the node out of memory. The pages of the array are returned to the page
+ * recycler of {@link BigArrays} when the list is closed and reused by later requests. The size of the array is recorded
+ * in the node-level {@link TransactionBuffers}.
+ * <p>
+ * If the list is created with a spill directory, at most {@link #STOCKAGGS_SPILL_THRESHOLD} bytes of transactions are kept
+ * in heap. Once the threshold is reached the transactions in heap are appended to a temporary file in the spill directory
+ * and the heap buffer is reused. {@link #sum()} reads the file through memory-mapped chunks, and the file is deleted when
+ * the list is closed.
+ */
+public class Transactions implements Releasable {
+
+    /**
+     * The maximum size of transactions that are kept in heap by each shard before they are spilled to disk
+     */
+    public static final Setting<ByteSizeValue> STOCKAGGS_SPILL_THRESHOLD = Setting.byteSizeSetting(
+        "my_scripts.stockaggs.spill.threshold", new ByteSizeValue(64, ByteSizeUnit.MB), Setting.Property.NodeScope);
+
+    private static final String SPILL_FILE_PREFIX = "transactions_";
+
+    private static final String SPILL_FILE_SUFFIX = ".bin";
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The size of the buffer that is used to write transactions to the spill file
+     */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The size of each mapped chunk of the spill file, a multiple of 8 bytes
+     */
+    private static final long MAP_CHUNK_SIZE = 1L << 27;
+
+    private static final Logger logger = Loggers.getLogger(Transactions.class);
+
+    private final BigArrays bigArrays;
+
+    private final TransactionBuffers buffers;
+
+    @Nullable
+    private final Path spillDirectory;
+
+    /**
+     * The maximum number of transactions in heap if the spill directory is set
+     */
+    private final long spillThreshold;
+
+    private LongArray values;
+
+    /**
+     * The size of the values that is recorded in the buffer statistics
+     */
+    private long recordedBytes;
+
+    /**
+     * Number of transactions in heap
+     */
+    private long size;
+
+    private Path spillFile;
+
+    private FileChannel spillChannel;
+
+    /**
+     * Number of transactions in the spill file
+     */
+    private long spilled;
+
+    public Transactions(BigArrays bigArrays, TransactionBuffers buffers) {
+        this(bigArrays, buffers, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a list that spills transactions to a temporary file in the spill directory once the transactions in heap take
+     * more than spillThresholdInBytes.
+     */
+    public Transactions(BigArrays bigArrays, TransactionBuffers buffers, @Nullable Path spillDirectory, long spillThresholdInBytes) {
+        this.bigArrays = bigArrays;
+        this.buffers = buffers;
+        this.spillDirectory = spillDirectory;
+        this.spillThreshold = Math.max(1, spillThresholdInBytes / Long.BYTES);
+        this.values = bigArrays.newLongArray(spillDirectory == null ? INITIAL_CAPACITY : Math.min(INITIAL_CAPACITY, spillThreshold),
+            false);
+        buffers.onCreated();
+        recordSize();
+    }
+
+    public void add(long value) {
+        if (size == spillThreshold && spillDirectory != null) {
+            spill();
+        }
+        if (size == values.size()) {
+            values = bigArrays.grow(values, size + 1);
+            recordSize();
+        }
+        values.set(size++, value);
+    }
+
+    private void recordSize() {
+        long bytes = values.ramBytesUsed();
+        buffers.onResized(bytes - recordedBytes);
+        recordedBytes = bytes;
+    }
+
+    public long get(long index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index [" + index + "] is out of bounds [0, " + size() + ")");
+        }
+        if (index >= spilled) {
+            return values.get(index - spilled);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            while (buffer.hasRemaining()) {
+                if (spillChannel.read(buffer, index * Long.BYTES + buffer.position()) < 0) {
+                    throw new IOException("unexpected end of the spill file [" + spillFile + "]");
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return buffer.getLong(0);
+    }
+
+    public long size() {
+        return spilled + size;
+    }
+
+    /**
+     * Number of transactions that were spilled to disk
+     */
+    public long spilled() {
+        return spilled;
+    }
+
+    public long sum() {
+        long sum = 0;
+        try {
+            for (long position = 0; position < spilled * Long.BYTES; position += MAP_CHUNK_SIZE) {
+                long length = Math.min(MAP_CHUNK_SIZE, spilled * Long.BYTES - position);
+                LongBuffer chunk = spillChannel.map(FileChannel.MapMode.READ_ONLY, position, length)
+                    .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+                while (chunk.hasRemaining()) {
+                    sum += chunk.get();
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        for (long i = 0; i < size; i++) {
+            sum += values.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Appends all transactions in heap to the spill file
+     */
+    private void spill() {
+        try {
+            if (spillChannel == null) {
+                Files.createDirectories(spillDirectory);
+                spillFile = spillDirectory.resolve(SPILL_FILE_PREFIX + UUIDs.randomBase64UUID() + SPILL_FILE_SUFFIX);
+                spillChannel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE_NEW);
+                logger.debug("spilling transactions to [{}]", spillFile);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            LongBuffer longs = buffer.asLongBuffer();
+            long position = spilled * Long.BYTES;
+            for (long i = 0; i < size; ) {
+                longs.clear();
+                while (longs.hasRemaining() && i < size) {
+                    longs.put(values.get(i++));
+                }
+                buffer.clear();
+                buffer.limit(longs.position() * Long.BYTES);
+                while (buffer.hasRemaining()) {
+                    position += spillChannel.write(buffer, position);
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        spilled += size;
+        size = 0;
+    }
+
+    @Override
+    public void close() {
+        if (values != null) {
+            buffers.onReleased(recordedBytes);
+            Releasables.close(values);
+            values = null;
+        }
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+                Files.deleteIfExists(spillFile);
+            } catch (IOException ex) {
+                // the file is deleted on the next node start
+                logger.warn("failed to delete the spill file [" + spillFile + "]", ex);
+            }
+            spillChannel = null;
+        }
+    }
+
+    /**
+     * Deletes the spill files that were left in the spill directory, for example if the node was not shut down cleanly
+     */
+    public static void deleteSpillFiles(Path spillDirectory) {
+        if (Files.isDirectory(spillDirectory) == false) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spillDirectory, SPILL_FILE_PREFIX + "*" + SPILL_FILE_SUFFIX)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException ex) {
+            logger.warn("failed to clean the spill directory [" + spillDirectory + "]", ex);
+        }
+    }
+}
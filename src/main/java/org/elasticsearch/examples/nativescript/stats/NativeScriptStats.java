@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.stats;
+
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Node-level registry of runtime metrics of all example scripts
+ */
+public class NativeScriptStats {
+
+    private final ConcurrentMap<String, ScriptMetrics> metrics = ConcurrentCollections.newConcurrentMap();
+
+    /**
+     * Returns metrics of the script with the given name, creating them if needed
+     */
+    public ScriptMetrics metrics(String scriptName) {
+        return metrics.computeIfAbsent(scriptName, ScriptMetrics::new);
+    }
+
+    /**
+     * Returns a point in time copy of metrics of all scripts
+     */
+    public List<ScriptMetricsStats> stats() {
+        List<ScriptMetricsStats> stats = new ArrayList<>();
+        for (ScriptMetrics scriptMetrics : metrics.values()) {
+            stats.add(scriptMetrics.stats());
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.stats;
+
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live runtime metrics of a single script on this node.
+ * <p>
+ * All counters are {@link LongAdder}s, so scripts that run on many search threads at the same time update them
+ * without contention. Timing every run would cost more than some of the scripts themselves, so only every
+ * {@link #SAMPLE_INTERVAL}th run of each script instance is timed.
+ */
+public class ScriptMetrics {
+
+    /**
+     * Every 64th run of a script instance is timed, including the first one
+     */
+    public static final int SAMPLE_INTERVAL = 64;
+
+    private final String name;
+
+    private final LongAdder newScripts = new LongAdder();
+
+    private final LongAdder runs = new LongAdder();
+
+    private final LongAdder matched = new LongAdder();
+
+    private final LongAdder notMatched = new LongAdder();
+
+    private final LongAdder[] latency = new LongAdder[ScriptMetricsStats.LATENCY_BUCKETS];
+
+    private final ConcurrentMap<String, LongAdder> segments = ConcurrentCollections.newConcurrentMap();
+
+    private final LongAdder profiledRuns = new LongAdder();
+
+    private final LongAdder profiledLookupNanos = new LongAdder();
+
+    private final LongAdder profiledComputeNanos = new LongAdder();
+
+    public ScriptMetrics(String name) {
+        this.name = name;
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LongAdder();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Called when a new script instance is created
+     */
+    public void onNewScript() {
+        newScripts.increment();
+    }
+
+    /**
+     * Returns true if the run with the given sequence number in a script instance should be timed
+     */
+    public static boolean shouldSample(long run) {
+        return run % SAMPLE_INTERVAL == 0;
+    }
+
+    /**
+     * Called after each run of the script
+     *
+     * @param result     the result of the script, boolean results are counted as matched and not matched documents
+     * @param tookNanos  the time the run took or -1 if the run wasn't sampled
+     */
+    public void onRun(Object result, long tookNanos) {
+        runs.increment();
+        if (result instanceof Boolean) {
+            if ((Boolean) result) {
+                matched.increment();
+            } else {
+                notMatched.increment();
+            }
+        }
+        if (tookNanos >= 0) {
+            latency[ScriptMetricsStats.latencyBucket(tookNanos)].increment();
+        }
+    }
+
+    /**
+     * Called when a script starts processing a segment
+     *
+     * @param path the way the script decided to evaluate documents of this segment
+     */
+    public void onSegment(String path) {
+        LongAdder counter = segments.get(path);
+        if (counter == null) {
+            counter = segments.computeIfAbsent(path, key -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * Called at the end of the query phase of a profiled search request that used the script
+     */
+    public void onProfile(ScriptProfile profile) {
+        profiledRuns.add(profile.getEvaluated());
+        profiledLookupNanos.add(profile.getLookupNanos());
+        profiledComputeNanos.add(profile.getComputeNanos());
+    }
+
+    public ScriptMetricsStats stats() {
+        long[] buckets = new long[latency.length];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = latency[i].sum();
+        }
+        Map<String, Long> segmentCounts = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : segments.entrySet()) {
+            segmentCounts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return new ScriptMetricsStats(name, newScripts.sum(), runs.sum(), matched.sum(), notMatched.sum(), buckets, segmentCounts,
+            profiledRuns.sum(), profiledLookupNanos.sum(), profiledComputeNanos.sum());
+    }
+}
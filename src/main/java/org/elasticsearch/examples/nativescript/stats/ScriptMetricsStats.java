@@ -0,0 +1,242 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.stats;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Point in time copy of the metrics of a single script on one node or summed over several nodes.
+ * <p>
+ * Sampled latencies are kept in a histogram with power of two buckets: bucket i counts runs that took less
+ * than 2^i nanoseconds and at least 2^(i-1) nanoseconds, so percentiles are reported as the upper bound of the
+ * bucket and are accurate within a factor of two.
+ * <p>
+ * Scripts that pick the way they evaluate documents once per segment also report the number of segments
+ * processed in each way, for example the number of segments that were skipped.
+ * <p>
+ * Runs in search requests with profiling enabled are timed completely, their total time spent reading doc values
+ * (lookup) and in the rest of the script (compute) is reported in the profile section.
+ */
+public class ScriptMetricsStats implements Writeable, ToXContent {
+
+    public static final int LATENCY_BUCKETS = 64;
+
+    private final String name;
+
+    private long newScripts;
+
+    private long runs;
+
+    private long matched;
+
+    private long notMatched;
+
+    private final long[] latency;
+
+    private final Map<String, Long> segments;
+
+    private long profiledRuns;
+
+    private long profiledLookupNanos;
+
+    private long profiledComputeNanos;
+
+    public ScriptMetricsStats(String name, long newScripts, long runs, long matched, long notMatched, long[] latency,
+                              Map<String, Long> segments, long profiledRuns, long profiledLookupNanos, long profiledComputeNanos) {
+        this.name = name;
+        this.newScripts = newScripts;
+        this.runs = runs;
+        this.matched = matched;
+        this.notMatched = notMatched;
+        this.latency = latency;
+        this.segments = segments;
+        this.profiledRuns = profiledRuns;
+        this.profiledLookupNanos = profiledLookupNanos;
+        this.profiledComputeNanos = profiledComputeNanos;
+    }
+
+    public ScriptMetricsStats(StreamInput in) throws IOException {
+        name = in.readString();
+        newScripts = in.readVLong();
+        runs = in.readVLong();
+        matched = in.readVLong();
+        notMatched = in.readVLong();
+        latency = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            latency[i] = in.readVLong();
+        }
+        int size = in.readVInt();
+        segments = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            segments.put(in.readString(), in.readVLong());
+        }
+        profiledRuns = in.readVLong();
+        profiledLookupNanos = in.readVLong();
+        profiledComputeNanos = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(name);
+        out.writeVLong(newScripts);
+        out.writeVLong(runs);
+        out.writeVLong(matched);
+        out.writeVLong(notMatched);
+        for (long count : latency) {
+            out.writeVLong(count);
+        }
+        out.writeVInt(segments.size());
+        for (Map.Entry<String, Long> entry : segments.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeVLong(entry.getValue());
+        }
+        out.writeVLong(profiledRuns);
+        out.writeVLong(profiledLookupNanos);
+        out.writeVLong(profiledComputeNanos);
+    }
+
+    static int latencyBucket(long nanos) {
+        return Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getNewScripts() {
+        return newScripts;
+    }
+
+    public long getRuns() {
+        return runs;
+    }
+
+    public long getMatched() {
+        return matched;
+    }
+
+    public long getNotMatched() {
+        return notMatched;
+    }
+
+    /**
+     * Returns the number of segments processed in each way
+     */
+    public Map<String, Long> getSegments() {
+        return segments;
+    }
+
+    public long getProfiledRuns() {
+        return profiledRuns;
+    }
+
+    public long getProfiledLookupNanos() {
+        return profiledLookupNanos;
+    }
+
+    public long getProfiledComputeNanos() {
+        return profiledComputeNanos;
+    }
+
+    public long getSampledRuns() {
+        long samples = 0;
+        for (long count : latency) {
+            samples += count;
+        }
+        return samples;
+    }
+
+    /**
+     * Returns the upper bound of the given percentile of sampled latencies in nanoseconds or 0 if there are no samples
+     */
+    public long getLatencyPercentile(double percentile) {
+        long samples = getSampledRuns();
+        if (samples == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(samples * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            seen += latency[i];
+            if (seen >= rank && latency[i] > 0) {
+                return i == LATENCY_BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Adds the metrics of the same script from another node
+     */
+    public void add(ScriptMetricsStats other) {
+        newScripts += other.newScripts;
+        runs += other.runs;
+        matched += other.matched;
+        notMatched += other.notMatched;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            latency[i] += other.latency[i];
+        }
+        for (Map.Entry<String, Long> entry : other.segments.entrySet()) {
+            segments.merge(entry.getKey(), entry.getValue(), Long::sum);
+        }
+        profiledRuns += other.profiledRuns;
+        profiledLookupNanos += other.profiledLookupNanos;
+        profiledComputeNanos += other.profiledComputeNanos;
+    }
+
+    public ScriptMetricsStats copy() {
+        return new ScriptMetricsStats(name, newScripts, runs, matched, notMatched, latency.clone(), new TreeMap<>(segments), profiledRuns,
+            profiledLookupNanos, profiledComputeNanos);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(name);
+        builder.field("new_scripts", newScripts);
+        builder.field("runs", runs);
+        builder.field("matched", matched);
+        builder.field("not_matched", notMatched);
+        builder.startObject("latency");
+        builder.field("sampled_runs", getSampledRuns());
+        builder.field("p50_nanos", getLatencyPercentile(50));
+        builder.field("p99_nanos", getLatencyPercentile(99));
+        builder.field("p999_nanos", getLatencyPercentile(99.9));
+        builder.endObject();
+        if (segments.isEmpty() == false) {
+            builder.startObject("segments");
+            for (Map.Entry<String, Long> entry : segments.entrySet()) {
+                builder.field(entry.getKey(), entry.getValue().longValue());
+            }
+            builder.endObject();
+        }
+        if (profiledRuns > 0) {
+            builder.startObject("profile");
+            builder.field("runs", profiledRuns);
+            builder.field("lookup_nanos", profiledLookupNanos);
+            builder.field("compute_nanos", profiledComputeNanos);
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
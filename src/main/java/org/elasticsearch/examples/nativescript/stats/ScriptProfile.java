@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.stats;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Breakdown of the work done by a single script on one shard in a search request with profiling enabled.
+ * <p>
+ * The profile API doesn't let scripts add their own breakdown, so when a request is profiled the scripts time
+ * every run, split into reading doc values (lookup) and the rest of the work (compute), and count evaluated and
+ * matched documents and the way each segment was processed. At the end of the query phase the profile is returned
+ * in a response header of the request, logged and added to the script metrics. It is only used by the search thread
+ * that runs the query phase, so it is not thread-safe.
+ */
+public class ScriptProfile {
+
+    private final ScriptMetrics metrics;
+
+    private long evaluated;
+
+    private long matched;
+
+    private long totalNanos;
+
+    private long lookupNanos;
+
+    private final Map<String, Long> segments = new TreeMap<>();
+
+    public ScriptProfile(ScriptMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public String getName() {
+        return metrics.getName();
+    }
+
+    /**
+     * Called by the script after it read the doc values of the current document
+     */
+    public void onLookup(long nanos) {
+        lookupNanos += nanos;
+    }
+
+    /**
+     * Called after each run of the script with the time of the whole run including the lookup
+     */
+    public void onRun(Object result, long nanos) {
+        evaluated++;
+        if (Boolean.TRUE.equals(result)) {
+            matched++;
+        }
+        totalNanos += nanos;
+    }
+
+    /**
+     * Called when the script starts processing a segment
+     */
+    public void onSegment(String path) {
+        segments.merge(path, 1L, Long::sum);
+    }
+
+    public long getEvaluated() {
+        return evaluated;
+    }
+
+    public long getMatched() {
+        return matched;
+    }
+
+    public long getLookupNanos() {
+        return lookupNanos;
+    }
+
+    public long getComputeNanos() {
+        return Math.max(0, totalNanos - lookupNanos);
+    }
+
+    public Map<String, Long> getSegments() {
+        return segments;
+    }
+
+    /**
+     * Adds this profile to the metrics of the script on this node
+     */
+    public void flush() {
+        metrics.onProfile(this);
+    }
+
+    @Override
+    public String toString() {
+        return "evaluated [" + evaluated + "], matched [" + matched + "], lookup [" + lookupNanos + "nanos], compute ["
+            + getComputeNanos() + "nanos], segments " + segments;
+    }
+}
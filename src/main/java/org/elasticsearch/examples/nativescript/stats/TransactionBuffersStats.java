@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.elasticsearch.examples.nativescript.stats;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * Point in time copy of the metrics of the transaction buffers of the stockaggs scripts on one node or summed over several
+ * nodes.
+ * <p>
+ * Retained bytes are the size of the buffers of running requests, released bytes are the total size of the buffers that
+ * were returned to the page recycler of Elasticsearch.
+ */
+public class TransactionBuffersStats implements Writeable, ToXContent {
+
+    private long buffers;
+
+    private long retainedBytes;
+
+    private long releasedBytes;
+
+    public TransactionBuffersStats(long buffers, long retainedBytes, long releasedBytes) {
+        this.buffers = buffers;
+        this.retainedBytes = retainedBytes;
+        this.releasedBytes = releasedBytes;
+    }
+
+    public TransactionBuffersStats(StreamInput in) throws IOException {
+        buffers = in.readVLong();
+        retainedBytes = in.readVLong();
+        releasedBytes = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(buffers);
+        out.writeVLong(retainedBytes);
+        out.writeVLong(releasedBytes);
+    }
+
+    /**
+     * Returns the number of buffers that were created
+     */
+    public long getBuffers() {
+        return buffers;
+    }
+
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    public long getReleasedBytes() {
+        return releasedBytes;
+    }
+
+    /**
+     * Adds the metrics of the buffers of another node
+     */
+    public void add(TransactionBuffersStats other) {
+        buffers += other.buffers;
+        retainedBytes += other.retainedBytes;
+        releasedBytes += other.releasedBytes;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("transaction_buffers");
+        builder.field("buffers", buffers);
+        builder.field("retained_in_bytes", retainedBytes);
+        builder.field("released_in_bytes", releasedBytes);
+        builder.endObject();
+        return builder;
+    }
+}
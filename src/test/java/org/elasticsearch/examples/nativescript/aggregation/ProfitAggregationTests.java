@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.aggregation;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.examples.nativescript.script.AbstractSearchScriptTestCase;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ */
+public class ProfitAggregationTests extends AbstractSearchScriptTestCase {
+
+    public void testProfit() throws Exception {
+        String mapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+            .startObject("properties")
+            .startObject("store").field("type", "keyword").endObject()
+            .startObject("kind").field("type", "keyword").endObject()
+            .startObject("price").field("type", "long").endObject()
+            .endObject().endObject().endObject()
+            .string();
+        assertAcked(prepareCreate("transactions").addMapping("stock", mapping, XContentType.JSON));
+
+        String[] stores = new String[]{"north", "south", "east"};
+        Map<String, long[]> expected = new HashMap<>();
+        long sales = 0;
+        long costs = 0;
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<>();
+        int numberOfDocs = randomIntBetween(10, 500);
+        for (int i = 0; i < numberOfDocs; i++) {
+            String store = randomFrom(stores);
+            String kind = randomFrom("retail", "wholesale", "cost", "refund");
+            long price = randomIntBetween(0, 1000);
+            long[] storeProfit = expected.computeIfAbsent(store, s -> new long[3]);
+            if ("retail".equals(kind) || "wholesale".equals(kind)) {
+                sales += price;
+                storeProfit[0] += price;
+            } else {
+                costs += price;
+                storeProfit[1] += price;
+            }
+            storeProfit[2]++;
+            indexBuilders.add(client().prepareIndex("transactions", "stock", Integer.toString(i))
+                .setSource("store", store, "kind", kind, "price", price));
+        }
+        indexRandom(true, indexBuilders);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+            .setQuery(matchAllQuery())
+            .setSize(0)
+            .addAggregation(profit())
+            .addAggregation(terms("stores").field("store").subAggregation(profit()))
+            .get();
+        assertNoFailures(searchResponse);
+
+        Profit profit = searchResponse.getAggregations().get("profit");
+        assertThat(profit.getSales(), equalTo(sales));
+        assertThat(profit.getCosts(), equalTo(costs));
+        assertThat(profit.getProfit(), equalTo(sales - costs));
+        assertThat(profit.getCount(), equalTo((long) numberOfDocs));
+
+        Terms storesAgg = searchResponse.getAggregations().get("stores");
+        assertThat(storesAgg.getBuckets().size(), equalTo(expected.size()));
+        for (Terms.Bucket bucket : storesAgg.getBuckets()) {
+            long[] storeProfit = expected.get(bucket.getKeyAsString());
+            Profit bucketProfit = bucket.getAggregations().get("profit");
+            assertThat(bucketProfit.getSales(), equalTo(storeProfit[0]));
+            assertThat(bucketProfit.getCosts(), equalTo(storeProfit[1]));
+            assertThat(bucketProfit.getCount(), equalTo(storeProfit[2]));
+        }
+    }
+
+    public void testWrongFieldTypes() throws Exception {
+        String mapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+            .startObject("properties")
+            .startObject("kind").field("type", "keyword").endObject()
+            .startObject("description").field("type", "text").endObject()
+            .startObject("price").field("type", "long").endObject()
+            .startObject("discount").field("type", "double").endObject()
+            .endObject().endObject().endObject()
+            .string();
+        assertAcked(prepareCreate("transactions").addMapping("stock", mapping, XContentType.JSON));
+        indexRandom(true, client().prepareIndex("transactions", "stock", "1").setSource("kind", "retail", "description", "sale",
+            "price", 10, "discount", 1.5));
+
+        SearchPhaseExecutionException ex = expectThrows(SearchPhaseExecutionException.class, () -> client().prepareSearch("transactions")
+            .addAggregation(profit().amountField("kind")).get());
+        assertThat(ex.shardFailures()[0].reason(),
+            containsString("requires an integral numeric [amount_field] but [kind] is of type [keyword]"));
+
+        ex = expectThrows(SearchPhaseExecutionException.class, () -> client().prepareSearch("transactions")
+            .addAggregation(profit().amountField("discount")).get());
+        assertThat(ex.shardFailures()[0].reason(),
+            containsString("requires an integral numeric [amount_field] but [discount] is of type [double]"));
+
+        ex = expectThrows(SearchPhaseExecutionException.class, () -> client().prepareSearch("transactions")
+            .addAggregation(profit().typeField("description")).get());
+        assertThat(ex.shardFailures()[0].reason(), containsString("requires a keyword [type_field] but [description] is of type [text]"));
+    }
+
+    public void testSerialization() throws Exception {
+        InternalProfit profit = new InternalProfit(randomAlphaOfLength(5), randomLong(), randomLong(), randomIntBetween(0, 1000000),
+            Collections.emptyList(), Collections.emptyMap());
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            profit.writeTo(out);
+            try (StreamInput in = out.bytes().streamInput()) {
+                InternalProfit read = new InternalProfit(in);
+                assertThat(read.getName(), equalTo(profit.getName()));
+                assertThat(read.getSales(), equalTo(profit.getSales()));
+                assertThat(read.getCosts(), equalTo(profit.getCosts()));
+                assertThat(read.getCount(), equalTo(profit.getCount()));
+                assertThat(read, equalTo(profit));
+            }
+        }
+    }
+
+    private static ProfitAggregationBuilder profit() {
+        return new ProfitAggregationBuilder("profit").typeField("kind").amountField("price").saleTypes("retail", "wholesale");
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.ingest;
+
+import org.elasticsearch.examples.nativescript.script.PrimeSieve;
+import org.elasticsearch.examples.nativescript.script.Primes;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ */
+public class IsPrimeProcessorTests extends ESTestCase {
+
+    private PrimeSieve sieve() throws Exception {
+        PrimeSieve sieve = new PrimeSieve(randomFrom(0L, 1000L), createTempDir());
+        sieve.loadOrBuild();
+        return sieve;
+    }
+
+    private IsPrimeProcessor processor(Map<String, Object> config) throws Exception {
+        return new IsPrimeProcessor.Factory(sieve()).create(null, randomAlphaOfLength(5), config);
+    }
+
+    private static IngestDocument document(Object number) {
+        Map<String, Object> source = new HashMap<>();
+        source.put("number", number);
+        return new IngestDocument(source, new HashMap<>());
+    }
+
+    public void testFactory() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "number");
+        IsPrimeProcessor processor = processor(config);
+        assertThat(processor.getField(), equalTo("number"));
+        assertThat(processor.getTargetField(), equalTo("number_is_prime"));
+        assertFalse(processor.isIgnoreMissing());
+        assertTrue(config.isEmpty());
+
+        config = new HashMap<>();
+        config.put("field", "number");
+        config.put("target_field", "flag");
+        config.put("ignore_missing", true);
+        processor = processor(config);
+        assertThat(processor.getTargetField(), equalTo("flag"));
+        assertTrue(processor.isIgnoreMissing());
+
+        Exception ex = expectThrows(Exception.class, () -> processor(new HashMap<>()));
+        assertThat(ex.getMessage(), containsString("[field] required property is missing"));
+    }
+
+    public void testIsPrime() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "number");
+        IsPrimeProcessor processor = processor(config);
+        for (int i = 0; i < 100; i++) {
+            long value = randomBoolean() ? randomIntBetween(-10, 2000) : randomLong() & Long.MAX_VALUE;
+            Object number = randomFrom(Arrays.<Object>asList(value, Long.toString(value)));
+            if (value == (int) value && randomBoolean()) {
+                number = (int) value;
+            }
+            IngestDocument document = document(number);
+            processor.execute(document);
+            assertThat(document.getFieldValue("number_is_prime", Boolean.class), equalTo(Primes.isPrime(value)));
+        }
+    }
+
+    public void testInvalidValues() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "number");
+        IsPrimeProcessor processor = processor(config);
+        IllegalArgumentException ex = expectThrows(IllegalArgumentException.class, () -> processor.execute(document(7.5)));
+        assertThat(ex.getMessage(), containsString("is not an integer"));
+        ex = expectThrows(IllegalArgumentException.class, () -> processor.execute(document("seven")));
+        assertThat(ex.getMessage(), containsString("is not an integer"));
+        ex = expectThrows(IllegalArgumentException.class, () -> processor.execute(new IngestDocument(new HashMap<>(), new HashMap<>())));
+        assertThat(ex.getMessage(), containsString("is missing"));
+    }
+
+    public void testIgnoreMissing() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "number");
+        config.put("ignore_missing", true);
+        IsPrimeProcessor processor = processor(config);
+        IngestDocument document = new IngestDocument(new HashMap<>(), new HashMap<>());
+        processor.execute(document);
+        assertFalse(document.hasField("number_is_prime"));
+    }
+}
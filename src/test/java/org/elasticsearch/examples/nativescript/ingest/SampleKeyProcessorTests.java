@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.ingest;
+
+import org.elasticsearch.examples.nativescript.script.stockaggs.SampledProfit;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ */
+public class SampleKeyProcessorTests extends ESTestCase {
+
+    private SampleKeyProcessor processor(Map<String, Object> config) throws Exception {
+        return new SampleKeyProcessor.Factory().create(null, randomAlphaOfLength(5), config);
+    }
+
+    private static IngestDocument document(Object seq) {
+        Map<String, Object> source = new HashMap<>();
+        source.put("seq", seq);
+        return new IngestDocument(source, new HashMap<>());
+    }
+
+    public void testFactory() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "seq");
+        SampleKeyProcessor processor = processor(config);
+        assertThat(processor.getField(), equalTo("seq"));
+        assertThat(processor.getTargetField(), equalTo("seq_sample_key"));
+        assertTrue(config.isEmpty());
+
+        config = new HashMap<>();
+        config.put("field", "seq");
+        config.put("target_field", "key");
+        processor = processor(config);
+        assertThat(processor.getTargetField(), equalTo("key"));
+
+        Exception ex = expectThrows(Exception.class, () -> processor(new HashMap<>()));
+        assertThat(ex.getMessage(), containsString("[field] required property is missing"));
+    }
+
+    public void testSampleKey() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "seq");
+        SampleKeyProcessor processor = processor(config);
+        for (int i = 0; i < 100; i++) {
+            long value = randomLong();
+            IngestDocument document = document(randomBoolean() ? value : Long.toString(value));
+            processor.execute(document);
+            long key = document.getFieldValue("seq_sample_key", Long.class);
+            assertThat(key, equalTo(SampledProfit.sampleKey(value)));
+            assertTrue(key >= 0 && key < SampledProfit.KEY_LIMIT);
+        }
+    }
+
+    public void testInvalidValues() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "seq");
+        SampleKeyProcessor processor = processor(config);
+        IllegalArgumentException ex = expectThrows(IllegalArgumentException.class, () -> processor.execute(document(7.5)));
+        assertThat(ex.getMessage(), containsString("is not an integer"));
+        ex = expectThrows(IllegalArgumentException.class, () -> processor.execute(new IngestDocument(new HashMap<>(), new HashMap<>())));
+        assertThat(ex.getMessage(), containsString("is missing or null"));
+    }
+}
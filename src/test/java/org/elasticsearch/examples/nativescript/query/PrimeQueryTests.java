@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.query;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.examples.nativescript.script.AbstractSearchScriptTestCase;
+import org.elasticsearch.search.SearchHit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ */
+public class PrimeQueryTests extends AbstractSearchScriptTestCase {
+
+    public void testPrimeQuery() throws Exception {
+        String mapping = XContentFactory.jsonBuilder().startObject().startObject("type")
+            .startObject("properties")
+            .startObject("name").field("type", "text").endObject()
+            .startObject("tag").field("type", "keyword").endObject()
+            .startObject("number").field("type", randomFrom("long", "integer")).endObject()
+            .endObject().endObject().endObject()
+            .string();
+        assertAcked(prepareCreate("test").addMapping("type", mapping, XContentType.JSON));
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            indexBuilders.add(client().prepareIndex("test", "type", Integer.toString(i))
+                .setSource("name", "rec " + i, "tag", i % 10 == 3 ? "selected" : "other", "number", i));
+        }
+        // documents without numbers
+        for (int i = 100; i < 105; i++) {
+            indexBuilders.add(client().prepareIndex("test", "type", Integer.toString(i)).setSource("name", "rec " + i, "tag", "selected"));
+        }
+        indexRandom(true, indexBuilders);
+
+        SearchResponse searchResponse = client().prepareSearch("test").setQuery(new PrimeQueryBuilder("number")).get();
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, 25);
+
+        // 3, 13, 23, 43, 53, 73 and 83
+        searchResponse = client().prepareSearch("test")
+            .setQuery(boolQuery().filter(termQuery("tag", "selected")).filter(new PrimeQueryBuilder("number")))
+            .setSize(10)
+            .get();
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, 7);
+        for (SearchHit hit : searchResponse.getHits()) {
+            assertThat(Integer.parseInt(hit.getId()) % 10, equalTo(3));
+        }
+
+        // unmapped fields don't match any documents
+        searchResponse = client().prepareSearch("test").setQuery(new PrimeQueryBuilder("unmapped")).get();
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, 0);
+
+        SearchPhaseExecutionException ex = expectThrows(SearchPhaseExecutionException.class,
+            () -> client().prepareSearch("test").setQuery(new PrimeQueryBuilder("tag")).get());
+        assertThat(ex.shardFailures()[0].reason(), containsString("requires an integral numeric field"));
+    }
+}
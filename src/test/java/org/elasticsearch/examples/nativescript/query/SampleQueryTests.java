@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.query;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.examples.nativescript.script.AbstractSearchScriptTestCase;
+import org.elasticsearch.examples.nativescript.script.stockaggs.SampledProfit;
+import org.elasticsearch.search.SearchHit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ */
+public class SampleQueryTests extends AbstractSearchScriptTestCase {
+
+    public void testSampleQuery() throws Exception {
+        String mapping = XContentFactory.jsonBuilder().startObject().startObject("type")
+            .startObject("properties")
+            .startObject("tag").field("type", "keyword").endObject()
+            .startObject("seq").field("type", "long").endObject()
+            .startObject("seq_sample_key").field("type", "long").endObject()
+            .endObject().endObject().endObject()
+            .string();
+        assertAcked(prepareCreate("test").addMapping("type", mapping, XContentType.JSON));
+
+        double rate = randomFrom(0.1, 0.25, 0.5);
+        long threshold = SampledProfit.threshold(rate);
+        int sampled = 0;
+        int sampledSelected = 0;
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            long key = SampledProfit.sampleKey(i);
+            if (key < threshold) {
+                sampled++;
+                if (i % 10 == 3) {
+                    sampledSelected++;
+                }
+            }
+            indexBuilders.add(client().prepareIndex("test", "type", Integer.toString(i))
+                .setSource("tag", i % 10 == 3 ? "selected" : "other", "seq", i, "seq_sample_key", key));
+        }
+        indexRandom(true, indexBuilders);
+
+        SearchResponse searchResponse = client().prepareSearch("test").setQuery(new SampleQueryBuilder("seq_sample_key", rate))
+            .setSize(200).get();
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, sampled);
+        for (SearchHit hit : searchResponse.getHits()) {
+            assertThat(SampledProfit.sampleKey(Long.parseLong(hit.getId())) < threshold, equalTo(true));
+        }
+
+        searchResponse = client().prepareSearch("test")
+            .setQuery(boolQuery().filter(termQuery("tag", "selected")).filter(new SampleQueryBuilder("seq_sample_key", rate)))
+            .get();
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, sampledSelected);
+
+        // the whole index is the sample at the rate 1
+        searchResponse = client().prepareSearch("test").setQuery(new SampleQueryBuilder("seq_sample_key", 1.0)).get();
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, 200);
+
+        // unmapped fields don't match any documents
+        searchResponse = client().prepareSearch("test").setQuery(new SampleQueryBuilder("unmapped", rate)).get();
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, 0);
+
+        SearchPhaseExecutionException ex = expectThrows(SearchPhaseExecutionException.class,
+            () -> client().prepareSearch("test").setQuery(new SampleQueryBuilder("tag", rate)).get());
+        assertThat(ex.shardFailures()[0].reason(), containsString("requires an indexed long field"));
+
+        IllegalArgumentException iae = expectThrows(IllegalArgumentException.class, () -> new SampleQueryBuilder("seq_sample_key", 0));
+        assertThat(iae.getMessage(), containsString("sample rate has to be greater than 0"));
+    }
+}
@@ -43,4 +43,9 @@ public abstract class AbstractSearchScriptTestCase extends ESIntegTestCase {
     protected Collection<Class<? extends Plugin>> nodePlugins() {
         return Collections.singletonList(NativeScriptExamplesPlugin.class);
     }
+
+    @Override
+    protected Collection<Class<? extends Plugin>> transportClientPlugins() {
+        return nodePlugins();
+    }
 }
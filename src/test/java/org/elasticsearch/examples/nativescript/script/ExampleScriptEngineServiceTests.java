@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.examples.nativescript.script.stockaggs.CombineScriptFactory;
+import org.elasticsearch.examples.nativescript.script.stockaggs.InitScriptFactory;
+import org.elasticsearch.examples.nativescript.script.stockaggs.MapScriptFactory;
+import org.elasticsearch.examples.nativescript.script.stockaggs.ParallelCollector;
+import org.elasticsearch.examples.nativescript.script.stockaggs.ProfitPartialCache;
+import org.elasticsearch.examples.nativescript.script.stockaggs.ReduceScriptFactory;
+import org.elasticsearch.examples.nativescript.script.stockaggs.TransactionBuffers;
+import org.elasticsearch.script.CompiledScript;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+
+/**
+ */
+public class ExampleScriptEngineServiceTests extends ESTestCase {
+
+    private ExampleScriptEngineService engine() {
+        return new ExampleScriptEngineService(Arrays.asList(
+            new IsPrimeSearchScriptFactory(Settings.EMPTY, new PrimeBitSetCache(Settings.EMPTY), new PrimeSieve(0, createTempDir())),
+            new InitScriptFactory(Settings.EMPTY, createTempDir(), new ShardSearchResources(), new ProfitPartialCache(Settings.EMPTY),
+                new ParallelCollector(), new TransactionBuffers()),
+            new MapScriptFactory(),
+            new CombineScriptFactory(),
+            new ReduceScriptFactory()
+        ));
+    }
+
+    private CompiledScript compile(ExampleScriptEngineService engine, String source) {
+        return new CompiledScript(ScriptType.INLINE, "test", ExampleScriptEngineService.NAME,
+            engine.compile("test", source, Collections.emptyMap()));
+    }
+
+    public void testUnknownScript() {
+        IllegalArgumentException ex = expectThrows(IllegalArgumentException.class,
+            () -> engine().compile("test", "is_composite?field=number", Collections.emptyMap()));
+        assertThat(ex.getMessage(), containsString("Unknown script [is_composite]"));
+    }
+
+    public void testParamsAreValidatedAtCompileTime() {
+        ExampleScriptEngineService engine = engine();
+        IllegalArgumentException ex = expectThrows(IllegalArgumentException.class,
+            () -> engine.compile("test", "is_prime?field=number&method=guess", Collections.emptyMap()));
+        assertThat(ex.getMessage(), containsString("Unknown method [guess]"));
+
+        ex = expectThrows(IllegalArgumentException.class, () -> engine.compile("test", "is_prime", Collections.emptyMap()));
+        assertThat(ex.getMessage(), containsString("Missing the field parameter"));
+
+        ex = expectThrows(IllegalArgumentException.class,
+            () -> engine.compile("test", "stockaggs_init?mode=unknown", Collections.emptyMap()));
+        assertThat(ex.getMessage(), containsString("Unknown mode [unknown]"));
+
+        ex = expectThrows(IllegalArgumentException.class,
+            () -> engine.compile("test", "is_prime?fields=a,b&mode=most", Collections.emptyMap()));
+        assertThat(ex.getMessage(), containsString("Unknown mode [most]"));
+
+        ex = expectThrows(IllegalArgumentException.class,
+            () -> engine.compile("test", "is_prime?field=a&fields=a,b", Collections.emptyMap()));
+        assertThat(ex.getMessage(), containsString("The field and fields parameters cannot be used together"));
+
+        assertNotNull(engine.compile("test", "is_prime?field=number&method=probable&certainty=5", Collections.emptyMap()));
+        assertNotNull(engine.compile("test", "is_prime?fields=a,b&mode=count", Collections.emptyMap()));
+        assertNotNull(engine.compile("test", "stockaggs_map?type_field=kind&sale_types=retail,wholesale", Collections.emptyMap()));
+    }
+
+    public void testRuntimeParamsAreRejected() {
+        ExampleScriptEngineService engine = engine();
+        CompiledScript isPrime = compile(engine, "is_prime?field=number");
+        IllegalArgumentException ex = expectThrows(IllegalArgumentException.class,
+            () -> engine.search(isPrime, null, Collections.singletonMap("method", "probable")));
+        assertThat(ex.getMessage(), containsString("doesn't accept parameter [method] during execution"));
+
+        CompiledScript init = compile(engine, "stockaggs_init");
+        Map<String, Object> vars = new HashMap<>();
+        vars.put("_agg", new HashMap<>());
+        vars.put("mode", "fold");
+        ex = expectThrows(IllegalArgumentException.class, () -> engine.executable(init, vars));
+        assertThat(ex.getMessage(), containsString("set it in the script source instead, for example [stockaggs_init?mode=...]"));
+
+        // the state of the scripted metric aggregation is passed during execution
+        vars.remove("mode");
+        assertNotNull(engine.executable(init, vars));
+    }
+
+    public void testStockAggsScripts() {
+        ExampleScriptEngineService engine = engine();
+        CompiledScript init = compile(engine, "stockaggs_init?mode=fold");
+        CompiledScript combine = compile(engine, "stockaggs_combine");
+        CompiledScript reduce = compile(engine, "stockaggs_reduce");
+
+        Map<String, Object> agg = new HashMap<>();
+        // The compiled scripts are reused with different variables
+        for (int i = 0; i < 2; i++) {
+            agg.clear();
+            Map<String, Object> vars = new HashMap<>();
+            vars.put("_agg", agg);
+            engine.executable(init, vars).run();
+            assertThat(agg.get(InitScriptFactory.PROFIT_FIELD), instanceOf(long[].class));
+            ((long[]) agg.get(InitScriptFactory.PROFIT_FIELD))[0] = 42 + i;
+            assertThat(engine.executable(combine, vars).run(), equalTo(42L + i));
+        }
+
+        Map<String, Object> vars = new HashMap<>();
+        vars.put("_aggs", new ArrayList<>(Arrays.asList(10L, 20L, -5L)));
+        assertThat(engine.executable(reduce, vars).run(), equalTo(25L));
+    }
+}
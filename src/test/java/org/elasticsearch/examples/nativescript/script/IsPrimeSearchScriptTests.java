@@ -15,15 +15,23 @@
 package org.elasticsearch.examples.nativescript.script;
 
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.examples.nativescript.plugin.PluginDataPath;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.sort.SortOrder;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +40,8 @@ import static org.elasticsearch.index.query.QueryBuilders.scriptQuery;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchHits;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
 
 /**
@@ -43,7 +53,11 @@ public class IsPrimeSearchScriptTests extends AbstractSearchScriptTestCase {
     @Override
     protected Settings nodeSettings(int nodeOrdinal) {
         return Settings.builder().put(super.nodeSettings(nodeOrdinal))
-            .put(IsPrimeSearchScriptFactory.PRIME_SCRIPT_DEFAULT_FIELD_NAME.getKey(), "my_number").build();
+            .put(IsPrimeSearchScriptFactory.PRIME_SCRIPT_DEFAULT_FIELD_NAME.getKey(), "my_number")
+            // Randomly test with disabled, tiny and normal per-segment cache
+            .put(PrimeBitSetCache.PRIME_SCRIPT_CACHE_SIZE.getKey(), randomFrom("0", "16b", "1%"))
+            // Randomly test without sieve, with sieve that covers only some values and with sieve that covers all values
+            .put(PrimeSieve.PRIME_SCRIPT_SIEVE_LIMIT.getKey(), randomFrom(0, 50, 1000)).build();
     }
 
     public void testIsPrimeScript() throws Exception {
@@ -114,6 +128,17 @@ public class IsPrimeSearchScriptTests extends AbstractSearchScriptTestCase {
             params.put("field", fieldName);
         }
         params.put("certainty", 0);
+        // The exact method ignores certainty parameter
+        searchResponse = client().prepareSearch("test")
+            .setQuery(scriptQuery(new Script(ScriptType.INLINE, "native", "is_prime", params)))
+            .setFetchSource("name", null)
+            .setSize(10)
+            .addSort(fieldName, SortOrder.ASC)
+            .execute().actionGet();
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, 25);
+
+        params.put("method", "probable");
         // Check certainty parameter - with certainty == 0, it should return all numbers, but only if numbers are present
         searchResponse = client().prepareSearch("test")
             .setQuery(scriptQuery(new Script(ScriptType.INLINE, "native", "is_prime", params)))
@@ -125,6 +150,118 @@ public class IsPrimeSearchScriptTests extends AbstractSearchScriptTestCase {
         // With certainty 0 no check is done so it should return all numbers
         assertHitCount(searchResponse, 100);
 
+        // The same script compiled by the script engine with params in the script source
+        String source = useDefaultField ? "is_prime" : "is_prime?field=" + fieldName;
+        searchResponse = client().prepareSearch("test")
+            .setQuery(scriptQuery(new Script(ScriptType.INLINE, ExampleScriptEngineService.NAME, source, Collections.emptyMap())))
+            .setFetchSource("name", null)
+            .setSize(10)
+            .addSort(fieldName, SortOrder.ASC)
+            .execute().actionGet();
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, 25);
+        for (int i = 0; i < 10; i++) {
+            assertThat(searchResponse.getHits().getAt(i).getSource().get("name"), equalTo("rec " + PRIMES_10[i]));
+        }
+
     }
 
+    public void testMultiFieldScript() throws Exception {
+        String mapping = XContentFactory.jsonBuilder().startObject().startObject("type")
+            .startObject("properties")
+            .startObject("a").field("type", "integer").endObject()
+            .startObject("b").field("type", "long").endObject()
+            .endObject().endObject().endObject()
+            .string();
+
+        assertAcked(prepareCreate("multi").addMapping("type", mapping, XContentType.JSON));
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        indexBuilders.add(client().prepareIndex("multi", "type", "1").setSource("a", new int[]{2, 3}, "b", 5));
+        indexBuilders.add(client().prepareIndex("multi", "type", "2").setSource("a", new int[]{2, 4}));
+        indexBuilders.add(client().prepareIndex("multi", "type", "3").setSource("a", 4, "b", new long[]{6, 9}));
+        indexBuilders.add(client().prepareIndex("multi", "type", "4").setSource("b", new long[]{7, 11, 13}));
+        indexBuilders.add(client().prepareIndex("multi", "type", "5").setSource("name", "no numbers"));
+        indexRandom(true, indexBuilders);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("fields", Arrays.asList("a", "b"));
+        assertSearchHits(searchIsPrime(params), "1", "2", "4");
+
+        params.put("mode", "all");
+        assertSearchHits(searchIsPrime(params), "1", "4");
+
+        // All values of a single field
+        params.remove("fields");
+        params.put("field", "a");
+        assertSearchHits(searchIsPrime(params), "1");
+
+        params = new HashMap<>();
+        params.put("fields", Arrays.asList("a", "b"));
+        params.put("mode", "count");
+        SearchResponse searchResponse = client().prepareSearch("multi")
+            .addScriptField("primes", new Script(ScriptType.INLINE, "native", "is_prime", params))
+            .get();
+        assertNoFailures(searchResponse);
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("1", 3L);
+        expected.put("2", 1L);
+        expected.put("3", 0L);
+        expected.put("4", 3L);
+        expected.put("5", 0L);
+        for (SearchHit hit : searchResponse.getHits()) {
+            assertThat(hit.getId(), hit.field("primes").getValue(), equalTo(expected.get(hit.getId())));
+        }
+
+        // The same script compiled by the script engine with the list of fields in the script source
+        searchResponse = client().prepareSearch("multi")
+            .setQuery(scriptQuery(new Script(ScriptType.INLINE, ExampleScriptEngineService.NAME, "is_prime?fields=a,b&mode=all",
+                Collections.emptyMap())))
+            .get();
+        assertSearchHits(searchResponse, "1", "4");
+    }
+
+    public void testWrongFieldType() throws Exception {
+        String mapping = XContentFactory.jsonBuilder().startObject().startObject("type")
+            .startObject("properties")
+            .startObject("price").field("type", randomFrom("double", "float", "half_float")).endObject()
+            .endObject().endObject().endObject()
+            .string();
+
+        assertAcked(prepareCreate("multi").addMapping("type", mapping, XContentType.JSON));
+        indexRandom(true, client().prepareIndex("multi", "type", "1").setSource("price", 7));
+
+        // Doc values of floating point fields contain sortable bits instead of the values
+        SearchPhaseExecutionException ex = expectThrows(SearchPhaseExecutionException.class,
+            () -> searchIsPrime(Collections.singletonMap("field", "price")));
+        assertThat(ex.shardFailures()[0].reason(), containsString("[is_prime] requires an integral numeric field, but field [price]"));
+
+        ex = expectThrows(SearchPhaseExecutionException.class, () -> client().prepareSearch("multi")
+            .setQuery(scriptQuery(new Script(ScriptType.INLINE, ExampleScriptEngineService.NAME, "is_prime?fields=price",
+                Collections.emptyMap())))
+            .get());
+        assertThat(ex.shardFailures()[0].reason(), containsString("[is_prime] requires an integral numeric field, but field [price]"));
+    }
+
+    private SearchResponse searchIsPrime(Map<String, Object> params) {
+        SearchResponse searchResponse = client().prepareSearch("multi")
+            .setQuery(scriptQuery(new Script(ScriptType.INLINE, "native", "is_prime", params)))
+            .get();
+        assertNoFailures(searchResponse);
+        return searchResponse;
+    }
+
+
+    public void testSieveIsSavedInNodePath() throws Exception {
+        // Nodes of the test cluster share the same data path, each of them has to build its sieve in its own node path
+        for (String node : internalCluster().getNodeNames()) {
+            long limit = PrimeSieve.PRIME_SCRIPT_SIEVE_LIMIT.get(internalCluster().getInstance(Settings.class, node));
+            if (limit == 0) {
+                continue;
+            }
+            Path nodePath = internalCluster().getInstance(NodeEnvironment.class, node).nodeDataPaths()[0];
+            Path file = nodePath.resolve(PluginDataPath.DIRECTORY).resolve("prime_sieve_" + limit + ".bin");
+            assertBusy(() -> assertTrue("sieve is not saved in " + file, Files.exists(file)));
+        }
+    }
 }
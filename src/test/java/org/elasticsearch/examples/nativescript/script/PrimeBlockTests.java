@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.test.ESTestCase;
+
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ */
+public class PrimeBlockTests extends ESTestCase {
+
+    public void testBlocksMatchPerDocumentCheck() throws Exception {
+        PrimeSieve sieve = new PrimeSieve(10000, createTempDir());
+        sieve.loadOrBuild();
+        try (Directory directory = newDirectory();
+             IndexWriter writer = new IndexWriter(directory, newIndexWriterConfig())) {
+            int numberOfDocs = randomIntBetween(1, 5000);
+            for (int i = 0; i < numberOfDocs; i++) {
+                Document document = new Document();
+                if (randomBoolean()) {
+                    // BigInteger.isProbablePrime checks the absolute value, so negative values are not used here
+                    document.add(new SortedNumericDocValuesField("number", randomIntBetween(0, 9999)));
+                }
+                writer.addDocument(document);
+            }
+            writer.forceMerge(1);
+            try (DirectoryReader reader = DirectoryReader.open(writer)) {
+                LeafReader leaf = reader.leaves().get(0).reader();
+                FixedBitSet acceptDocs = new FixedBitSet(leaf.maxDoc());
+                for (int doc = 0; doc < leaf.maxDoc(); doc++) {
+                    if (rarely() == false) {
+                        acceptDocs.set(doc);
+                    }
+                }
+                int max = randomIntBetween(0, leaf.maxDoc());
+                for (PrimeKernel kernel : new PrimeKernel[]{PrimeKernel.SIEVE, PrimeKernel.INT, PrimeKernel.LONG, PrimeKernel.PROBABLE}) {
+                    FixedBitSet expected = new FixedBitSet(leaf.maxDoc());
+                    SortedNumericDocValues values = DocValues.getSortedNumeric(leaf, "number");
+                    for (int doc = 0; doc < max; doc++) {
+                        values.setDocument(doc);
+                        if (acceptDocs.get(doc) && values.count() > 0 && Primes.isPrime(values.valueAt(0))) {
+                            expected.set(doc);
+                        }
+                    }
+
+                    FixedBitSet actual = new FixedBitSet(leaf.maxDoc());
+                    DocIdSetIterator docs = DocIdSetIterator.all(leaf.maxDoc());
+                    docs.nextDoc();
+                    PrimeBlock block = new PrimeBlock();
+                    values = DocValues.getSortedNumeric(leaf, "number");
+                    while (block.fill(docs, values, acceptDocs, max) > 0) {
+                        block.evaluate(kernel, sieve, 100);
+                        for (int i = block.nextMatch(0); i < PrimeBlock.SIZE; i = block.nextMatch(i + 1)) {
+                            actual.set(block.doc(i));
+                        }
+                    }
+                    assertThat(kernel.toString(), actual, equalTo(expected));
+                    // the iterator is left on the first document that wasn't added
+                    assertThat(docs.docID(), equalTo(max == leaf.maxDoc() ? DocIdSetIterator.NO_MORE_DOCS : max));
+                }
+            }
+        }
+    }
+
+    public void testNextMatch() throws Exception {
+        try (Directory directory = newDirectory();
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+            for (int i = 0; i < PrimeBlock.SIZE + 10; i++) {
+                Document document = new Document();
+                document.add(new SortedNumericDocValuesField("number", i));
+                writer.addDocument(document);
+            }
+            writer.forceMerge(1);
+            try (DirectoryReader reader = DirectoryReader.open(writer)) {
+                LeafReader leaf = reader.leaves().get(0).reader();
+                DocIdSetIterator docs = DocIdSetIterator.all(leaf.maxDoc());
+                docs.nextDoc();
+                PrimeBlock block = new PrimeBlock();
+                SortedNumericDocValues values = DocValues.getSortedNumeric(leaf, "number");
+                assertThat(block.fill(docs, values, null, DocIdSetIterator.NO_MORE_DOCS), equalTo(PrimeBlock.SIZE));
+                block.evaluate(PrimeKernel.INT, null, 0);
+                assertThat(block.nextMatch(0), equalTo(2));
+                assertThat(block.nextMatch(3), equalTo(3));
+                assertThat(block.nextMatch(4), equalTo(5));
+                // 1021 is the largest prime in the block
+                assertThat(block.nextMatch(1022), equalTo(PrimeBlock.SIZE));
+                assertThat(block.nextMatch(1000), equalTo(1009));
+
+                assertThat(block.fill(docs, values, null, DocIdSetIterator.NO_MORE_DOCS), equalTo(10));
+                block.evaluate(PrimeKernel.NONE, null, 0);
+                assertThat(block.nextMatch(0), equalTo(PrimeBlock.SIZE));
+                assertThat(block.fill(docs, values, null, DocIdSetIterator.NO_MORE_DOCS), equalTo(0));
+            }
+        }
+    }
+}
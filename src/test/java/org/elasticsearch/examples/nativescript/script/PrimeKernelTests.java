@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.Directory;
+import org.elasticsearch.examples.nativescript.script.IsPrimeSearchScriptFactory.Method;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.NumberFieldMapper;
+import org.elasticsearch.index.mapper.NumberFieldMapper.NumberType;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ */
+public class PrimeKernelTests extends ESTestCase {
+
+    public void testSelectByRange() throws Exception {
+        PrimeSieve noSieve = new PrimeSieve(0, createTempDir());
+        assertThat(PrimeKernel.select(-10, 1, noSieve), equalTo(PrimeKernel.NONE));
+        assertThat(PrimeKernel.select(100, 100, noSieve), equalTo(PrimeKernel.NONE));
+        assertThat(PrimeKernel.select(97, 97, noSieve), equalTo(PrimeKernel.INT));
+        assertThat(PrimeKernel.select(-10, 2, noSieve), equalTo(PrimeKernel.INT));
+        assertThat(PrimeKernel.select(0, Primes.SMALL_LIMIT, noSieve), equalTo(PrimeKernel.INT));
+        assertThat(PrimeKernel.select(0, Primes.SMALL_LIMIT + 1, noSieve), equalTo(PrimeKernel.LONG));
+        assertThat(PrimeKernel.select(Long.MIN_VALUE, Long.MAX_VALUE, noSieve), equalTo(PrimeKernel.LONG));
+
+        PrimeSieve sieve = new PrimeSieve(1000, createTempDir());
+        // the sieve is not used until it is loaded
+        assertThat(PrimeKernel.select(0, 999, sieve), equalTo(PrimeKernel.INT));
+        sieve.loadOrBuild();
+        assertThat(PrimeKernel.select(0, 999, sieve), equalTo(PrimeKernel.SIEVE));
+        assertThat(PrimeKernel.select(-100, 999, sieve), equalTo(PrimeKernel.SIEVE));
+        assertThat(PrimeKernel.select(0, 1000, sieve), equalTo(PrimeKernel.INT));
+    }
+
+    public void testSelectByFieldType() throws Exception {
+        PrimeSieve sieve = new PrimeSieve(1000, createTempDir());
+        assertThat(PrimeKernel.select(Method.EXACT, fieldType(NumberType.INTEGER), sieve), equalTo(PrimeKernel.INT));
+        assertThat(PrimeKernel.select(Method.EXACT, fieldType(NumberType.LONG), sieve), equalTo(PrimeKernel.LONG));
+        assertThat(PrimeKernel.select(Method.EXACT, null, sieve), equalTo(PrimeKernel.NONE));
+        assertThat(PrimeKernel.select(Method.PROBABLE, fieldType(NumberType.BYTE), sieve), equalTo(PrimeKernel.PROBABLE));
+        // the sieve covers the whole range of short and byte fields once it is loaded
+        sieve.loadOrBuild();
+        assertThat(PrimeKernel.select(Method.EXACT, fieldType(NumberType.BYTE), sieve), equalTo(PrimeKernel.SIEVE));
+        assertThat(PrimeKernel.select(Method.EXACT, fieldType(NumberType.SHORT), sieve), equalTo(PrimeKernel.INT));
+    }
+
+    public void testMatchCost() {
+        // conjunctions check cheaper clauses first, so cheaper checks have to report lower costs
+        assertThat(PrimeKernel.SIEVE.matchCost(), lessThan(PrimeKernel.INT.matchCost()));
+        assertThat(PrimeKernel.INT.matchCost(), lessThan(PrimeKernel.LONG.matchCost()));
+        assertThat(PrimeKernel.LONG.matchCost(), lessThan(PrimeKernel.PROBABLE.matchCost()));
+    }
+
+    public void testSelectBySegment() throws Exception {
+        PrimeSieve sieve = new PrimeSieve(0, createTempDir());
+        try (Directory directory = newDirectory();
+             IndexWriter writer = new IndexWriter(directory, newIndexWriterConfig())) {
+            for (long value : new long[]{-5, 0, 1}) {
+                Document document = new Document();
+                document.add(new IntPoint("small", (int) value));
+                document.add(new SortedNumericDocValuesField("small", value));
+                document.add(new LongPoint("large", value == 1 ? Long.MAX_VALUE : value));
+                document.add(new SortedNumericDocValuesField("large", value == 1 ? Long.MAX_VALUE : value));
+                document.add(new SortedNumericDocValuesField("not_indexed", value));
+                writer.addDocument(document);
+            }
+            writer.forceMerge(1);
+            try (DirectoryReader reader = DirectoryReader.open(writer)) {
+                LeafReader leaf = reader.leaves().get(0).reader();
+                assertThat(PrimeKernel.select(leaf, "small", Method.EXACT, sieve), equalTo(PrimeKernel.NONE));
+                assertThat(PrimeKernel.select(leaf, "large", Method.EXACT, sieve), equalTo(PrimeKernel.LONG));
+                assertThat(PrimeKernel.select(leaf, "not_indexed", Method.EXACT, sieve), equalTo(PrimeKernel.LONG));
+                assertThat(PrimeKernel.select(leaf, "missing", Method.EXACT, sieve), equalTo(PrimeKernel.NONE));
+                // the probable method can match any value with low certainty, so it never skips segments
+                assertThat(PrimeKernel.select(leaf, "small", Method.PROBABLE, sieve), equalTo(PrimeKernel.PROBABLE));
+                assertRange(leaf, "small", -5, 1);
+                assertRange(leaf, "large", -5, Long.MAX_VALUE);
+            }
+        }
+    }
+
+    private static void assertRange(LeafReader reader, String field, long min, long max) throws IOException {
+        long[] range = PrimeKernel.range(reader, reader.getFieldInfos().fieldInfo(field));
+        assertThat(range[0], equalTo(min));
+        assertThat(range[1], equalTo(max));
+    }
+
+    private static MappedFieldType fieldType(NumberType type) {
+        return new NumberFieldMapper.NumberFieldType(type);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script;
+
+import com.carrotsearch.randomizedtesting.generators.RandomNumbers;
+import org.elasticsearch.test.ESTestCase;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ */
+public class PrimeSieveTests extends ESTestCase {
+
+    public void testSieve() throws Exception {
+        Path directory = createTempDir();
+        long limit = randomFrom(1L, 2L, 3L, RandomNumbers.randomLongBetween(random(), 4, 1000),
+            RandomNumbers.randomLongBetween(random(), 1000, 20000000));
+        PrimeSieve sieve = new PrimeSieve(limit, directory);
+        assertFalse(sieve.isLoaded());
+        // Falls back to computed test until the sieve is loaded
+        assertTrue(sieve.isPrime(7919));
+        sieve.loadOrBuild();
+        assertTrue(sieve.isLoaded());
+        for (long value = -10; value < Math.min(limit + 1000, 1000000); value++) {
+            assertThat("wrong answer for " + value, sieve.isPrime(value), equalTo(Primes.isPrime(value)));
+        }
+        for (int i = 0; i < 10000; i++) {
+            long value = RandomNumbers.randomLongBetween(random(), 0, limit + 1000);
+            assertThat("wrong answer for " + value, sieve.isPrime(value), equalTo(Primes.isPrime(value)));
+        }
+    }
+
+    public void testReuse() throws Exception {
+        Path directory = createTempDir();
+        long limit = RandomNumbers.randomLongBetween(random(), 1000, 100000);
+        new PrimeSieve(limit, directory).loadOrBuild();
+        Path file = directory.resolve("prime_sieve_" + limit + ".bin");
+        assertTrue(Files.exists(file));
+        long modified = Files.getLastModifiedTime(file).toMillis();
+
+        PrimeSieve sieve = new PrimeSieve(limit, directory);
+        sieve.loadOrBuild();
+        assertTrue(sieve.isLoaded());
+        assertThat(Files.getLastModifiedTime(file).toMillis(), equalTo(modified));
+        assertTrue(sieve.isPrime(997));
+        assertFalse(sieve.isPrime(999));
+    }
+
+    public void testDamagedFileIsRebuilt() throws Exception {
+        Path directory = createTempDir();
+        long limit = RandomNumbers.randomLongBetween(random(), 1000, 100000);
+        Path file = directory.resolve("prime_sieve_" + limit + ".bin");
+        Files.write(file, new byte[]{1, 2, 3});
+        PrimeSieve sieve = new PrimeSieve(limit, directory);
+        sieve.loadOrBuild();
+        assertTrue(sieve.isLoaded());
+        assertTrue(sieve.isPrime(997));
+        assertFalse(sieve.isPrime(999));
+    }
+
+    public void testLimitIsValidated() {
+        IllegalArgumentException ex = expectThrows(IllegalArgumentException.class,
+            () -> new PrimeSieve(PrimeSieve.MAX_LIMIT + 1, createTempDir()));
+        assertThat(ex.getMessage(), equalTo("[my_scripts.prime.sieve.limit] cannot be greater than [17179869184], got [17179869185]"));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script;
+
+import com.carrotsearch.randomizedtesting.generators.RandomNumbers;
+import org.elasticsearch.test.ESTestCase;
+
+import java.math.BigInteger;
+
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ */
+public class PrimesTests extends ESTestCase {
+
+    public void testSmallValues() {
+        for (long i = -100; i < 100000; i++) {
+            assertThat("wrong answer for " + i, Primes.isPrime(i), equalTo(i > 1 && BigInteger.valueOf(i).isProbablePrime(100)));
+        }
+    }
+
+    public void testRandomValues() {
+        for (int i = 0; i < 10000; i++) {
+            long value = randomFrom(randomLong() & Long.MAX_VALUE, (randomLong() & Long.MAX_VALUE) >>> randomIntBetween(0, 62),
+                Long.MAX_VALUE - randomIntBetween(0, 100000), 3037000499L + randomIntBetween(-100000, 100000));
+            assertThat("wrong answer for " + value, Primes.isPrime(value), equalTo(BigInteger.valueOf(value).isProbablePrime(100)));
+        }
+    }
+
+    public void testSmallMethod() {
+        for (int i = 0; i < 10000; i++) {
+            long value = randomFrom(RandomNumbers.randomLongBetween(random(), -100, 100000),
+                RandomNumbers.randomLongBetween(random(), 0, Primes.SMALL_LIMIT),
+                Primes.SMALL_LIMIT - randomIntBetween(0, 100000));
+            assertThat("wrong answer for " + value, Primes.isPrimeSmall(value), equalTo(Primes.isPrime(value)));
+        }
+    }
+
+    public void testStrongPseudoprimes() {
+        // Strong pseudoprimes to several bases that fool the Miller-Rabin test with smaller witness sets
+        long[] pseudoprimes = new long[]{2047L, 1373653L, 25326001L, 3215031751L, 2152302898747L, 3474749660383L,
+            341550071728321L, 3825123056546413051L};
+        for (long pseudoprime : pseudoprimes) {
+            assertFalse("wrong answer for " + pseudoprime, Primes.isPrime(pseudoprime));
+        }
+    }
+
+    public void testLargePrimes() {
+        assertTrue(Primes.isPrime(2147483647L));
+        assertTrue(Primes.isPrime(4294967291L));
+        assertTrue(Primes.isPrime(9223372036854775783L));
+        assertFalse(Primes.isPrime(Long.MAX_VALUE));
+    }
+}
@@ -14,30 +14,63 @@
 
 package org.elasticsearch.examples.nativescript.script;
 
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.BigArrays;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.examples.nativescript.action.NativeScriptStatsAction;
+import org.elasticsearch.examples.nativescript.action.NativeScriptStatsRequest;
+import org.elasticsearch.examples.nativescript.action.NativeScriptStatsResponse;
+import org.elasticsearch.examples.nativescript.plugin.PluginDataPath;
+import org.elasticsearch.examples.nativescript.script.stockaggs.Transactions;
+import org.elasticsearch.examples.nativescript.stats.TransactionBuffersStats;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.indices.breaker.HierarchyCircuitBreakerService;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.search.aggregations.InternalAggregation;
 import org.elasticsearch.search.aggregations.metrics.scripted.ScriptedMetric;
+import org.elasticsearch.search.aggregations.metrics.scripted.ScriptedMetricAggregationBuilder;
 
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.index.query.QueryBuilders.rangeQuery;
 import static org.elasticsearch.search.aggregations.AggregationBuilders.scriptedMetric;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
 
 /**
  */
 public class ScriptedMetricAggsScriptTests extends AbstractSearchScriptTestCase {
 
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        // Requests with the spill parameter keep at most 128 transactions in heap
+        return Settings.builder().put(super.nodeSettings(nodeOrdinal))
+            .put(Transactions.STOCKAGGS_SPILL_THRESHOLD.getKey(), "1kb").build();
+    }
+
     @SuppressWarnings("unchecked")
     public void testScriptedMetricAggs() throws Exception {
 
@@ -61,25 +94,351 @@ public class ScriptedMetricAggsScriptTests extends AbstractSearchScriptTestCase
         indexRandom(true, indexBuilders);
 
         // Find profit from all transaction
-        SearchResponse searchResponse = client().prepareSearch("transactions")
+        SearchResponse searchResponse = searchProfit(Collections.emptyMap());
+
+        assertNoFailures(searchResponse);
+
+        // There should be 4 hits - we are running aggs on everything
+        assertHitCount(searchResponse, 4);
+
+        // The profit should be 170
+        assertThat(((InternalAggregation)searchResponse.getAggregations().get("profit")).getProperty("value"), equalTo(170L));
+
+        // The fold mode should produce the same result without keeping individual transactions
+        long foldSegments = countSegments("fold");
+        long transactionSegments = countSegments("transactions");
+        searchResponse = searchProfit(Collections.singletonMap("mode", "fold"));
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, 4);
+        assertThat(((InternalAggregation)searchResponse.getAggregations().get("profit")).getProperty("value"), equalTo(170L));
+        assertThat(countSegments("fold"), greaterThan(foldSegments));
+        assertThat(countSegments("transactions"), equalTo(transactionSegments));
+
+        // Aggregation params replace the default params, so they have to contain _agg
+        SearchPhaseExecutionException ex = expectThrows(SearchPhaseExecutionException.class, () -> client().prepareSearch("transactions")
+            .addAggregation(scriptedMetric("profit")
+                .params(Collections.singletonMap("mode", "fold"))
+                .initScript(new Script(ScriptType.INLINE, "native", "stockaggs_init", Collections.emptyMap()))
+                .mapScript(new Script(ScriptType.INLINE, "native", "stockaggs_map", Collections.emptyMap())))
+            .get());
+        assertThat(ex.shardFailures()[0].reason(), containsString("[_agg] is missing"));
+    }
+
+    public void testTransactionsAreAccountedByCircuitBreaker() throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "keyword").endObject()
+                .startObject("amount").field("type", "long").endObject()
+                .startObject("seq").field("type", "integer").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        // The breaker limit is node-wide, so all transactions are kept by the single shard
+        assertAcked(prepareCreate("transactions").addMapping("stock", stockMapping, XContentType.JSON)
+            .setSettings(Settings.builder().put("index.number_of_shards", 1).put("index.number_of_replicas", 0)));
+
+        // Up to LONG_PAGE_SIZE transactions fit into one page of big arrays, all docs together need two pages
+        int onePage = randomIntBetween(1, BigArrays.LONG_PAGE_SIZE);
+        int numDocs = BigArrays.LONG_PAGE_SIZE + randomIntBetween(1, 100);
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<>();
+        long profit = 0;
+        long onePageProfit = 0;
+        for (int i = 0; i < numDocs; i++) {
+            String type = randomFrom("sale", "cost");
+            long amount = randomIntBetween(1, 1000);
+            profit += "sale".equals(type) ? amount : -amount;
+            if (i < onePage) {
+                onePageProfit += "sale".equals(type) ? amount : -amount;
+            }
+            indexBuilders.add(client().prepareIndex("transactions", "stock", Integer.toString(i))
+                .setSource("type", type, "amount", amount, "seq", i));
+        }
+        indexRandom(true, indexBuilders);
+
+        // Growing the transactions copies them into a new array, so a request briefly holds the old and the new array: up to
+        // two pages for transactions that fit into one page and three pages for more. The breaker allows the former only.
+        long pageSizeInBytes = BigArrays.LONG_PAGE_SIZE * Long.BYTES;
+        client().admin().cluster().prepareUpdateSettings().setTransientSettings(Settings.builder()
+            .put(HierarchyCircuitBreakerService.REQUEST_CIRCUIT_BREAKER_LIMIT_SETTING.getKey(),
+                (2 * pageSizeInBytes + pageSizeInBytes / 2) + "b")).get();
+        try {
+            SearchResponse searchResponse = searchProfit(rangeQuery("seq").lt(onePage), Collections.emptyMap());
+            assertNoFailures(searchResponse);
+            assertHitCount(searchResponse, onePage);
+            assertThat(((InternalAggregation)searchResponse.getAggregations().get("profit")).getProperty("value"),
+                equalTo(onePageProfit));
+
+            SearchPhaseExecutionException ex = expectThrows(SearchPhaseExecutionException.class,
+                () -> searchProfit(Collections.emptyMap()));
+            assertThat(ExceptionsHelper.unwrapCause(ex.shardFailures()[0].getCause()), instanceOf(CircuitBreakingException.class));
+
+            // The running profit doesn't depend on the number of transactions
+            searchResponse = searchProfit(Collections.singletonMap("mode", "fold"));
+            assertNoFailures(searchResponse);
+            assertThat(((InternalAggregation)searchResponse.getAggregations().get("profit")).getProperty("value"), equalTo(profit));
+
+            // Transactions that don't fit into the spill threshold are kept on disk instead of heap
+            searchResponse = searchProfit(Collections.singletonMap("spill", true));
+            assertNoFailures(searchResponse);
+            assertThat(((InternalAggregation)searchResponse.getAggregations().get("profit")).getProperty("value"), equalTo(profit));
+            assertThat(countSpillFiles(), equalTo(0L));
+        } finally {
+            client().admin().cluster().prepareUpdateSettings().setTransientSettings(Settings.builder()
+                .putNull(HierarchyCircuitBreakerService.REQUEST_CIRCUIT_BREAKER_LIMIT_SETTING.getKey())).get();
+        }
+
+        SearchResponse searchResponse = searchProfit(Collections.emptyMap());
+        assertNoFailures(searchResponse);
+        assertThat(((InternalAggregation)searchResponse.getAggregations().get("profit")).getProperty("value"), equalTo(profit));
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("mode", "fold");
+        params.put("spill", true);
+        SearchPhaseExecutionException ex = expectThrows(SearchPhaseExecutionException.class, () -> searchProfit(params));
+        assertThat(ex.shardFailures()[0].reason(), containsString("[spill] is only supported in the [transactions] mode"));
+    }
+
+    public void testSegmentCache() throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "keyword").endObject()
+                .startObject("amount").field("type", "long").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        // Without replicas all searches use the same copy of each shard and its segments
+        assertAcked(prepareCreate("transactions").addMapping("stock", stockMapping, XContentType.JSON)
+            .setSettings(Settings.builder().put("index.number_of_replicas", 0)));
+
+        long profit = 0;
+        for (int round = 0; round < 3; round++) {
+            // Each round adds new segments, the segments of the previous rounds should be read from the cache
+            List<IndexRequestBuilder> indexBuilders = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                String type = randomFrom("sale", "cost");
+                long amount = randomIntBetween(1, 1000);
+                profit += "sale".equals(type) ? amount : -amount;
+                indexBuilders.add(client().prepareIndex("transactions", "stock", round + "_" + i)
+                    .setSource("type", type, "amount", amount));
+            }
+            indexRandom(true, indexBuilders);
+
+            // Native scripts don't know their segment, so only the scripts of the script engine use the cache
+            for (int i = 0; i < 2; i++) {
+                SearchResponse searchResponse = searchProfitWithEngine("stockaggs_init?mode=fold&cache=true");
+                assertNoFailures(searchResponse);
+                assertThat(((InternalAggregation)searchResponse.getAggregations().get("profit")).getProperty("value"), equalTo(profit));
+            }
+        }
+
+        NativeScriptStatsResponse response = client().execute(NativeScriptStatsAction.INSTANCE, new NativeScriptStatsRequest()).get();
+        Long cached = response.getTotal().get("stockaggs_map").getSegments().get("cached");
+        assertNotNull(cached);
+        assertThat(cached, greaterThan(0L));
+
+        SearchPhaseExecutionException ex = expectThrows(SearchPhaseExecutionException.class,
+            () -> searchProfit(Collections.singletonMap("cache", true)));
+        assertThat(ex.shardFailures()[0].reason(), containsString("[cache] is only supported in the [fold] mode"));
+    }
+
+    public void testParallelCollection() throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "keyword").endObject()
+                .startObject("amount").field("type", "long").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions").addMapping("stock", stockMapping, XContentType.JSON));
+
+        long profit = 0;
+        for (int round = 0; round < 3; round++) {
+            // Each round adds at least one new segment
+            List<IndexRequestBuilder> indexBuilders = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                String type = randomFrom("sale", "cost");
+                long amount = randomIntBetween(1, 1000);
+                profit += "sale".equals(type) ? amount : -amount;
+                indexBuilders.add(client().prepareIndex("transactions", "stock", round + "_" + i)
+                    .setSource("type", type, "amount", amount));
+            }
+            indexRandom(true, indexBuilders);
+        }
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("mode", "fold");
+        params.put("parallel", true);
+        SearchResponse searchResponse = searchProfit(params);
+        assertNoFailures(searchResponse);
+        // The aggregation stops collecting once the parallel total exists, but the hits are still counted
+        assertHitCount(searchResponse, 300);
+        assertThat(((InternalAggregation)searchResponse.getAggregations().get("profit")).getProperty("value"), equalTo(profit));
+
+        // Next to another aggregation the collection cannot be stopped, so the other aggregation still gets all documents
+        Map<String, Object> foldParams = new HashMap<>();
+        foldParams.put("mode", "fold");
+        searchResponse = client().prepareSearch("transactions")
                 .setTypes("stock")
-                .setQuery(matchAllQuery())
                 .setSize(0)
+                .setRequestCache(false)
+                .addAggregation(profitAggregation("parallel_profit", params))
+                .addAggregation(profitAggregation("profit", foldParams))
+                .get();
+        assertNoFailures(searchResponse);
+        assertThat(((InternalAggregation)searchResponse.getAggregations().get("parallel_profit")).getProperty("value"),
+            equalTo(profit));
+        assertThat(((InternalAggregation)searchResponse.getAggregations().get("profit")).getProperty("value"), equalTo(profit));
+
+        NativeScriptStatsResponse response = client().execute(NativeScriptStatsAction.INSTANCE, new NativeScriptStatsRequest()).get();
+        Long parallel = response.getTotal().get("stockaggs_map").getSegments().get("parallel");
+        assertNotNull(parallel);
+        assertThat(parallel, greaterThan(0L));
+
+        params.put("cache", true);
+        SearchPhaseExecutionException ex = expectThrows(SearchPhaseExecutionException.class, () -> searchProfit(params));
+        assertThat(ex.shardFailures()[0].reason(), containsString("[parallel] is only supported in the [fold] mode"));
+    }
+
+    public void testTransactionBuffers() throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "keyword").endObject()
+                .startObject("amount").field("type", "long").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        // Each shard that has docs creates a buffer, so the buffer count is only known for a single shard
+        assertAcked(prepareCreate("transactions").addMapping("stock", stockMapping, XContentType.JSON)
+            .setSettings(Settings.builder().put("index.number_of_shards", 1).put("index.number_of_replicas", 0)));
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<>();
+        long profit = 0;
+        for (int i = 0; i < 100; i++) {
+            String type = randomFrom("sale", "cost");
+            long amount = randomIntBetween(1, 1000);
+            profit += "sale".equals(type) ? amount : -amount;
+            indexBuilders.add(client().prepareIndex("transactions", "stock", Integer.toString(i))
+                .setSource("type", type, "amount", amount));
+        }
+        indexRandom(true, indexBuilders);
+
+        TransactionBuffersStats before = client().execute(NativeScriptStatsAction.INSTANCE, new NativeScriptStatsRequest()).get()
+            .getTransactionBuffersTotal();
+        for (int i = 0; i < 2; i++) {
+            SearchResponse searchResponse = searchProfit(Collections.emptyMap());
+            assertNoFailures(searchResponse);
+            assertThat(((InternalAggregation)searchResponse.getAggregations().get("profit")).getProperty("value"), equalTo(profit));
+        }
+
+        // The single shard creates a buffer for each request, which is returned to the page recycler at the end of the request
+        TransactionBuffersStats after = client().execute(NativeScriptStatsAction.INSTANCE, new NativeScriptStatsRequest()).get()
+            .getTransactionBuffersTotal();
+        assertThat(after.getBuffers() - before.getBuffers(), equalTo(2L));
+        assertThat(after.getReleasedBytes() - before.getReleasedBytes(), greaterThanOrEqualTo(2L * 100 * Long.BYTES));
+        assertThat(after.getRetainedBytes(), equalTo(0L));
+    }
+
+    public void testBatchedReduce() throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "keyword").endObject()
+                .startObject("amount").field("type", "long").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions").addMapping("stock", stockMapping, XContentType.JSON)
+            .setSettings(Settings.builder().put("index.number_of_shards", randomIntBetween(5, 10))));
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<>();
+        long profit = 0;
+        for (int i = 0; i < 200; i++) {
+            String type = randomFrom("sale", "cost");
+            long amount = randomIntBetween(1, 1000);
+            profit += "sale".equals(type) ? amount : -amount;
+            indexBuilders.add(client().prepareIndex("transactions", "stock", Integer.toString(i))
+                .setSource("type", type, "amount", amount));
+        }
+        indexRandom(true, indexBuilders);
+
+        // With the smallest batch size shard results are reduced in several partial reduces before the reduce script runs
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setSize(0)
+                .setBatchedReduceSize(2)
                 .addAggregation(scriptedMetric("profit")
                         .initScript(new Script(ScriptType.INLINE, "native", "stockaggs_init", Collections.emptyMap()))
                         .mapScript(new Script(ScriptType.INLINE, "native", "stockaggs_map", Collections.emptyMap()))
                         .combineScript(new Script(ScriptType.INLINE, "native", "stockaggs_combine", Collections.emptyMap()))
                         .reduceScript(new Script(ScriptType.INLINE, "native", "stockaggs_reduce", Collections.emptyMap())))
-                .execute().actionGet();
-
+                .get();
         assertNoFailures(searchResponse);
+        assertThat(((InternalAggregation)searchResponse.getAggregations().get("profit")).getProperty("value"), equalTo(profit));
+    }
 
-        // There should be 4 hits - we are running aggs on everything
-        assertHitCount(searchResponse, 4);
+    private long countSpillFiles() throws IOException {
+        // Each node spills into its own node path
+        long count = 0;
+        for (NodeEnvironment nodeEnvironment : internalCluster().getInstances(NodeEnvironment.class)) {
+            Path spillDirectory = nodeEnvironment.nodeDataPaths()[0].resolve(PluginDataPath.DIRECTORY)
+                .resolve(PluginDataPath.SPILL_DIRECTORY);
+            if (Files.exists(spillDirectory) == false) {
+                continue;
+            }
+            // The test file system can add other files to any directory
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(spillDirectory, "transactions_*.bin")) {
+                for (Path ignored : files) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
 
-        // The profit should be 170
-        assertThat(((InternalAggregation)searchResponse.getAggregations().get("profit")).getProperty("value"), equalTo(170L));
+    private long countSegments(String path) throws Exception {
+        NativeScriptStatsResponse response = client().execute(NativeScriptStatsAction.INSTANCE, new NativeScriptStatsRequest()).get();
+        Long count = response.getTotal().get("stockaggs_map").getSegments().get(path);
+        return count == null ? 0 : count;
     }
 
+    private SearchResponse searchProfit(Map<String, Object> params) {
+        return searchProfit(matchAllQuery(), params);
+    }
+
+    private SearchResponse searchProfitWithEngine(String initSource) {
+        return client().prepareSearch("transactions")
+                .setTypes("stock")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .setRequestCache(false)
+                .addAggregation(scriptedMetric("profit")
+                        .params(Collections.singletonMap("_agg", new HashMap<>()))
+                        .initScript(new Script(ScriptType.INLINE, ExampleScriptEngineService.NAME, initSource, Collections.emptyMap()))
+                        .mapScript(new Script(ScriptType.INLINE, ExampleScriptEngineService.NAME, "stockaggs_map", Collections.emptyMap()))
+                        .combineScript(new Script(ScriptType.INLINE, ExampleScriptEngineService.NAME, "stockaggs_combine",
+                            Collections.emptyMap()))
+                        .reduceScript(new Script(ScriptType.INLINE, ExampleScriptEngineService.NAME, "stockaggs_reduce",
+                            Collections.emptyMap())))
+                .execute().actionGet();
+    }
 
+    private SearchResponse searchProfit(QueryBuilder query, Map<String, Object> params) {
+        return client().prepareSearch("transactions")
+                .setTypes("stock")
+                .setQuery(query)
+                .setSize(0)
+                .setRequestCache(false)
+                .addAggregation(profitAggregation("profit", params))
+                .execute().actionGet();
+    }
+
+    private static ScriptedMetricAggregationBuilder profitAggregation(String name, Map<String, Object> params) {
+        // The init, map and combine scripts only get the params of the aggregation, which have to contain _agg
+        Map<String, Object> aggregationParams = new HashMap<>(params);
+        aggregationParams.put("_agg", new HashMap<>());
+        return scriptedMetric(name)
+                .params(aggregationParams)
+                .initScript(new Script(ScriptType.INLINE, "native", "stockaggs_init", Collections.emptyMap()))
+                .mapScript(new Script(ScriptType.INLINE, "native", "stockaggs_map", Collections.emptyMap()))
+                .combineScript(new Script(ScriptType.INLINE, "native", "stockaggs_combine", Collections.emptyMap()))
+                .reduceScript(new Script(ScriptType.INLINE, "native", "stockaggs_reduce", Collections.emptyMap()));
+    }
 }
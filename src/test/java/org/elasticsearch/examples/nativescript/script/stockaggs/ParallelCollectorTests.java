@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script.stockaggs;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ */
+public class ParallelCollectorTests extends ESTestCase {
+
+    public void testCollect() throws Exception {
+        int threads = randomIntBetween(1, 4);
+        ExecutorService executor = EsExecutors.newFixed("test", threads, randomIntBetween(1, 10),
+            EsExecutors.daemonThreadFactory("test"), new ThreadContext(Settings.EMPTY));
+        try (Directory directory = newDirectory();
+             IndexWriter writer = new IndexWriter(directory, newIndexWriterConfig().setMergePolicy(NoMergePolicy.INSTANCE))) {
+            long profit = 0;
+            long selectedProfit = 0;
+            int segments = randomIntBetween(1, 10);
+            for (int segment = 0; segment < segments; segment++) {
+                int docs = randomIntBetween(0, 500);
+                for (int i = 0; i < docs; i++) {
+                    String id = segment + "_" + i;
+                    boolean sale = randomBoolean();
+                    boolean selected = randomBoolean();
+                    long amount = randomIntBetween(0, 1000);
+                    Document document = new Document();
+                    document.add(new StringField("id", id, Field.Store.NO));
+                    document.add(new StringField("tag", selected ? "selected" : "other", Field.Store.NO));
+                    document.add(new SortedNumericDocValuesField("amount", amount));
+                    document.add(new SortedSetDocValuesField("type", new BytesRef(sale ? "sale" : "cost")));
+                    writer.addDocument(document);
+                    if (rarely()) {
+                        // deleted documents are not collected
+                        writer.deleteDocuments(new Term("id", id));
+                        continue;
+                    }
+                    profit += sale ? amount : -amount;
+                    selectedProfit += selected ? (sale ? amount : -amount) : 0;
+                }
+                writer.commit();
+            }
+            ParallelCollector collector = new ParallelCollector();
+            if (randomBoolean()) {
+                collector.start(executor, threads);
+            }
+            try (DirectoryReader reader = DirectoryReader.open(writer)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                assertThat(collect(collector, searcher, new MatchAllDocsQuery()), equalTo(profit));
+                assertThat(collect(collector, searcher, new TermQuery(new Term("tag", "selected"))), equalTo(selectedProfit));
+            }
+        } finally {
+            terminate(executor);
+        }
+    }
+
+    public void testCancellation() throws Exception {
+        try (Directory directory = newDirectory();
+             IndexWriter writer = new IndexWriter(directory, newIndexWriterConfig())) {
+            for (int i = 0; i < 10000; i++) {
+                Document document = new Document();
+                document.add(new SortedNumericDocValuesField("amount", i));
+                writer.addDocument(document);
+            }
+            try (DirectoryReader reader = DirectoryReader.open(writer)) {
+                expectThrows(TaskCancelledException.class, () -> new ParallelCollector().collect(new IndexSearcher(reader),
+                    new MatchAllDocsQuery(), () -> true, "amount", "type", new SaleTypes("sale")));
+            }
+        }
+    }
+
+    public void testPartition() throws Exception {
+        try (Directory directory = newDirectory();
+             IndexWriter writer = new IndexWriter(directory, newIndexWriterConfig().setMergePolicy(NoMergePolicy.INSTANCE))) {
+            int segments = randomIntBetween(1, 20);
+            for (int segment = 0; segment < segments; segment++) {
+                int docs = randomIntBetween(1, 100);
+                for (int i = 0; i < docs; i++) {
+                    writer.addDocument(new Document());
+                }
+                writer.commit();
+            }
+            try (DirectoryReader reader = DirectoryReader.open(writer)) {
+                int count = randomIntBetween(1, 8);
+                List<List<LeafReaderContext>> partitions = ParallelCollector.partition(reader.leaves(), count);
+                assertThat(partitions.size(), equalTo(Math.min(count, reader.leaves().size())));
+                List<LeafReaderContext> all = new ArrayList<>();
+                int largestSegment = 0;
+                int minDocs = Integer.MAX_VALUE;
+                int maxDocs = 0;
+                for (List<LeafReaderContext> partition : partitions) {
+                    int docs = 0;
+                    for (LeafReaderContext leaf : partition) {
+                        docs += leaf.reader().maxDoc();
+                        largestSegment = Math.max(largestSegment, leaf.reader().maxDoc());
+                    }
+                    minDocs = Math.min(minDocs, docs);
+                    maxDocs = Math.max(maxDocs, docs);
+                    all.addAll(partition);
+                }
+                // every segment is in exactly one partition
+                all.sort((a, b) -> Integer.compare(a.ord, b.ord));
+                assertThat(all, equalTo(reader.leaves()));
+                // each segment goes to the smallest partition, so partitions differ by at most the largest segment
+                assertThat(maxDocs - minDocs, lessThanOrEqualTo(largestSegment));
+            }
+        }
+        assertThat(ParallelCollector.partition(Collections.emptyList(), 4).size(), equalTo(0));
+    }
+
+    private static long collect(ParallelCollector collector, IndexSearcher searcher, Query query) throws Exception {
+        return collector.collect(searcher, query, () -> false, "amount", "type", new SaleTypes("sale"));
+    }
+}
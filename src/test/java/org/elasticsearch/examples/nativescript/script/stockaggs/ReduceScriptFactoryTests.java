@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script.stockaggs;
+
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ */
+public class ReduceScriptFactoryTests extends ESTestCase {
+
+    private static Object reduce(List<Object> aggs) {
+        Map<String, Object> vars = new HashMap<>();
+        vars.put("_aggs", aggs);
+        return new ReduceScriptFactory().newScript(vars).run();
+    }
+
+    public void testFlatResults() {
+        assertThat(reduce(Arrays.asList(80L, -10L, -30L, 130L)), equalTo(170L));
+        assertThat(reduce(Collections.emptyList()), equalTo(0L));
+    }
+
+    public void testResultsOfPartialReduces() {
+        // batched reduce wraps results of each batch into a list, and batches of batches into lists of lists
+        List<Object> shardResults = new ArrayList<>();
+        long expected = 0;
+        List<Object> aggs = new ArrayList<>();
+        for (int shard = 0; shard < 1000; shard++) {
+            long profit = randomIntBetween(-1000, 1000);
+            expected += profit;
+            shardResults.add(randomBoolean() ? profit : Integer.valueOf((int) profit));
+            if (shardResults.size() == 7 || randomBoolean()) {
+                aggs.add(randomBoolean() ? shardResults : Collections.singletonList(shardResults));
+                shardResults = new ArrayList<>();
+            }
+        }
+        aggs.addAll(shardResults);
+        aggs.add(null);
+        assertThat(reduce(aggs), equalTo(expected));
+    }
+
+    public void testUnexpectedResult() {
+        IllegalArgumentException ex = expectThrows(IllegalArgumentException.class, () -> reduce(Arrays.asList(1L, "2")));
+        assertThat(ex.getMessage(), containsString("Unexpected shard result [2]"));
+    }
+}
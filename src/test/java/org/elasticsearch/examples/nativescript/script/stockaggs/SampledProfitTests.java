@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script.stockaggs;
+
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ */
+public class SampledProfitTests extends ESTestCase {
+
+    public void testSampleSize() {
+        double rate = randomFrom(0.01, 0.1, 0.5);
+        long threshold = SampledProfit.threshold(rate);
+        int docs = 100000;
+        int sampled = 0;
+        for (int doc = 0; doc < docs; doc++) {
+            long key = SampledProfit.sampleKey(doc);
+            assertThat(key, lessThan(SampledProfit.KEY_LIMIT));
+            assertThat(key, greaterThanOrEqualTo(0L));
+            if (key < threshold) {
+                sampled++;
+            }
+        }
+        double expected = docs * rate;
+        // the number of sampled documents is binomial, 6 standard deviations is never expected to fail
+        assertThat(Math.abs(sampled - expected), lessThan(6 * Math.sqrt(expected * (1 - rate))));
+        // the sample is deterministic
+        assertThat(SampledProfit.sampleKey(42), equalTo(SampledProfit.sampleKey(42)));
+    }
+
+    public void testFullSampleIsExact() {
+        List<Map<String, Object>> shardResults = new ArrayList<>();
+        long profit = 0;
+        for (int shard = 0; shard < 3; shard++) {
+            SampledProfit sample = new SampledProfit(1.0);
+            for (int doc = 0; doc < 100; doc++) {
+                assertThat(SampledProfit.sampleKey(doc), lessThan(SampledProfit.threshold(1.0)));
+                long value = randomIntBetween(-1000, 1000);
+                profit += value;
+                sample.add(value);
+            }
+            shardResults.add(sample.shardResult());
+        }
+        Map<String, Object> result = SampledProfit.reduce(shardResults);
+        assertThat(result.get("value"), equalTo(profit));
+        assertThat(result.get("lower"), equalTo(profit));
+        assertThat(result.get("upper"), equalTo(profit));
+        assertThat(result.get("sampled_transactions"), equalTo(300L));
+    }
+
+    public void testEstimate() {
+        double rate = randomFrom(0.05, 0.2);
+        List<Map<String, Object>> shardResults = new ArrayList<>();
+        long profit = 0;
+        for (int shard = 0; shard < 5; shard++) {
+            SampledProfit sample = new SampledProfit(rate);
+            long threshold = SampledProfit.threshold(rate);
+            for (int doc = 0; doc < 20000; doc++) {
+                long value = randomBoolean() ? randomIntBetween(1, 1000) : -randomIntBetween(1, 500);
+                profit += value;
+                if (SampledProfit.sampleKey(shard * 20000 + doc) < threshold) {
+                    sample.add(value);
+                }
+            }
+            shardResults.add(sample.shardResult());
+        }
+        Map<String, Object> result = SampledProfit.reduce(shardResults);
+        long estimate = (Long) result.get("value");
+        long lower = (Long) result.get("lower");
+        long upper = (Long) result.get("upper");
+        assertThat(lower, lessThanOrEqualTo(estimate));
+        assertThat(estimate, lessThanOrEqualTo(upper));
+        // the 95% interval is 1.96 standard deviations wide on each side, the estimate is within 4 standard deviations
+        double error = (upper - lower) / 2.0;
+        assertThat((double) Math.abs(estimate - profit), lessThan(2 * error + 1));
+    }
+
+    public void testInvalidRate() {
+        IllegalArgumentException ex = expectThrows(IllegalArgumentException.class,
+            () -> new SampledProfit(randomFrom(0.0, -0.5, 1.5)));
+        assertThat(ex.getMessage(), containsString("sample rate has to be greater than 0"));
+    }
+
+    public void testDifferentRates() {
+        List<Map<String, Object>> shardResults = new ArrayList<>();
+        shardResults.add(new SampledProfit(0.5).shardResult());
+        shardResults.add(new SampledProfit(0.25).shardResult());
+        IllegalArgumentException ex = expectThrows(IllegalArgumentException.class, () -> SampledProfit.reduce(shardResults));
+        assertThat(ex.getMessage(), containsString("cannot combine samples with rates [0.5] and [0.25]"));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script.stockaggs;
+
+import com.carrotsearch.randomizedtesting.generators.RandomNumbers;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ */
+public class TimeBucketsTests extends ESTestCase {
+
+    public void testEncodeAndMerge() {
+        long interval = randomFrom(1000L, 3600000L, 86400000L);
+        long start = RandomNumbers.randomLongBetween(random(), -1000000000000L, 2000000000000L);
+        TreeMap<Long, Long> expected = new TreeMap<>();
+        List<byte[]> encoded = new ArrayList<>();
+        long transactions = 0;
+        int shards = randomIntBetween(1, 5);
+        for (int shard = 0; shard < shards; shard++) {
+            try (TimeBuckets buckets = new TimeBuckets(BigArrays.NON_RECYCLING_INSTANCE)) {
+                buckets.setInterval(interval);
+                int count = randomIntBetween(0, 1000);
+                for (int i = 0; i < count; i++) {
+                    long timestamp = start + RandomNumbers.randomLongBetween(random(), 0, interval * 100);
+                    long value = randomIntBetween(-1000, 1000);
+                    buckets.add(timestamp, value);
+                    expected.merge(Math.floorDiv(timestamp, interval) * interval, value, Long::sum);
+                }
+                transactions += count;
+                encoded.add(buckets.encode());
+            }
+        }
+        // shards without transactions don't know the interval
+        encoded.add(new TimeBuckets(BigArrays.NON_RECYCLING_INSTANCE).encode());
+
+        List<Map<String, Object>> merged = TimeBuckets.merge(encoded);
+        assertThat(merged.size(), equalTo(expected.size()));
+        int i = 0;
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertThat(merged.get(i).get("key"), equalTo(entry.getKey()));
+            assertThat(merged.get(i).get("value"), equalTo(entry.getValue()));
+            i++;
+        }
+        if (transactions > 0) {
+            long size = 0;
+            for (byte[] bytes : encoded) {
+                size += bytes.length;
+            }
+            // at most 101 buckets per shard, each of them takes a few bytes
+            assertThat(size, lessThan(shards * (20L + 101L * 5L)));
+        }
+    }
+
+    public void testDifferentIntervals() {
+        List<byte[]> encoded = new ArrayList<>();
+        for (long interval : new long[]{1000, 2000}) {
+            try (TimeBuckets buckets = new TimeBuckets(BigArrays.NON_RECYCLING_INSTANCE)) {
+                buckets.setInterval(interval);
+                buckets.add(randomLong(), 1);
+                encoded.add(buckets.encode());
+            }
+        }
+        IllegalArgumentException ex = expectThrows(IllegalArgumentException.class, () -> TimeBuckets.merge(encoded));
+        assertThat(ex.getMessage(), containsString("cannot merge buckets with interval [2000]"));
+    }
+
+    public void testReduceScript() {
+        List<Object> aggs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            try (TimeBuckets buckets = new TimeBuckets(BigArrays.NON_RECYCLING_INSTANCE)) {
+                buckets.setInterval(10);
+                buckets.add(i, 5);
+                buckets.add(25, -1);
+                aggs.add(buckets.encode());
+            }
+        }
+        // the result of a partial reduce is a nested list
+        Object result = new ReduceScriptFactory().newScript(Collections.singletonMap("_aggs",
+            Arrays.asList(aggs.get(0), Arrays.asList(aggs.get(1), aggs.get(2))))).run();
+        assertThat(result, equalTo(Arrays.asList(bucket(0, 15), bucket(20, -3))));
+    }
+
+    private static Map<String, Object> bucket(long key, long value) {
+        Map<String, Object> bucket = new HashMap<>();
+        bucket.put("key", key);
+        bucket.put("value", value);
+        return bucket;
+    }
+}
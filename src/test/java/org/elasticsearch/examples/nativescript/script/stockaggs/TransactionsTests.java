@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.script.stockaggs;
+
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.examples.nativescript.stats.TransactionBuffersStats;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+
+/**
+ */
+public class TransactionsTests extends ESTestCase {
+
+    public void testInHeap() {
+        try (Transactions transactions = new Transactions(BigArrays.NON_RECYCLING_INSTANCE, new TransactionBuffers())) {
+            long[] values = randomValues();
+            for (long value : values) {
+                transactions.add(value);
+            }
+            assertValues(transactions, values);
+            assertThat(transactions.spilled(), equalTo(0L));
+        }
+    }
+
+    public void testSpill() throws IOException {
+        Path spillDirectory = createTempDir().resolve("tmp");
+        long[] values = randomValues();
+        int threshold = randomIntBetween(1, 100);
+        try (Transactions transactions = new Transactions(BigArrays.NON_RECYCLING_INSTANCE, new TransactionBuffers(), spillDirectory,
+            threshold * Long.BYTES)) {
+            for (long value : values) {
+                transactions.add(value);
+            }
+            assertValues(transactions, values);
+            assertThat(transactions.spilled(), equalTo((long) (values.length - 1) / threshold * threshold));
+            if (values.length > threshold) {
+                assertThat(countSpillFiles(spillDirectory), equalTo(1L));
+            }
+        }
+        // the spill file is deleted when the transactions are released
+        if (Files.exists(spillDirectory)) {
+            assertThat(countSpillFiles(spillDirectory), equalTo(0L));
+        }
+    }
+
+    public void testBufferStats() {
+        TransactionBuffers buffers = new TransactionBuffers();
+        long[] values = randomValues();
+        long bytes;
+        try (Transactions transactions = new Transactions(BigArrays.NON_RECYCLING_INSTANCE, buffers)) {
+            for (long value : values) {
+                transactions.add(value);
+            }
+            TransactionBuffersStats stats = buffers.stats();
+            assertThat(stats.getBuffers(), equalTo(1L));
+            bytes = stats.getRetainedBytes();
+            assertThat(bytes, greaterThanOrEqualTo((long) values.length * Long.BYTES));
+            assertThat(stats.getReleasedBytes(), equalTo(0L));
+        }
+        // the buffer is returned to the recycler when the transactions are released
+        TransactionBuffersStats stats = buffers.stats();
+        assertThat(stats.getRetainedBytes(), equalTo(0L));
+        assertThat(stats.getReleasedBytes(), equalTo(bytes));
+    }
+
+    public void testDeleteSpillFiles() throws IOException {
+        // The directory doesn't exist until the first spill
+        Path spillDirectory = createTempDir().resolve("tmp");
+        Transactions.deleteSpillFiles(spillDirectory);
+
+        // Simulates a spill file that was left by a node that stopped while running a request
+        try (Transactions transactions = new Transactions(BigArrays.NON_RECYCLING_INSTANCE, new TransactionBuffers(), spillDirectory,
+            Long.BYTES)) {
+            transactions.add(1);
+            transactions.add(2);
+            assertThat(transactions.spilled(), equalTo(1L));
+            Files.createFile(spillDirectory.resolve("other.bin"));
+            assertThat(countSpillFiles(spillDirectory), equalTo(1L));
+            Transactions.deleteSpillFiles(spillDirectory);
+        }
+        assertThat(countSpillFiles(spillDirectory), equalTo(0L));
+        assertTrue(Files.exists(spillDirectory.resolve("other.bin")));
+    }
+
+    private long[] randomValues() {
+        long[] values = new long[randomIntBetween(1, 10000)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = randomIntBetween(-1000, 1000);
+        }
+        return values;
+    }
+
+    private static void assertValues(Transactions transactions, long[] values) {
+        assertThat(transactions.size(), equalTo((long) values.length));
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            assertThat(transactions.get(i), equalTo(values[i]));
+            sum += values[i];
+        }
+        assertThat(transactions.sum(), equalTo(sum));
+        expectThrows(IndexOutOfBoundsException.class, () -> transactions.get(values.length));
+    }
+
+    /**
+     * Counts only spill files, the test file system can add other files to any directory
+     */
+    private static long countSpillFiles(Path directory) throws IOException {
+        long count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "transactions_*.bin")) {
+            for (Path ignored : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
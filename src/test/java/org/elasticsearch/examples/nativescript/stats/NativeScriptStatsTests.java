@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.examples.nativescript.stats;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.examples.nativescript.action.NativeScriptStatsAction;
+import org.elasticsearch.examples.nativescript.action.NativeScriptStatsRequest;
+import org.elasticsearch.examples.nativescript.action.NativeScriptStatsResponse;
+import org.elasticsearch.examples.nativescript.script.AbstractSearchScriptTestCase;
+import org.elasticsearch.examples.nativescript.script.ShardSearchResources;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.index.query.QueryBuilders.scriptQuery;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+
+/**
+ */
+public class NativeScriptStatsTests extends AbstractSearchScriptTestCase {
+
+    public void testStats() throws Exception {
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            indexBuilders.add(client().prepareIndex("test", "type", Integer.toString(i)).setSource("number", i));
+        }
+        indexRandom(true, indexBuilders);
+
+        SearchResponse searchResponse = client().prepareSearch("test")
+            .setQuery(scriptQuery(new Script(ScriptType.INLINE, "native", "is_prime", Collections.singletonMap("field", "number"))))
+            .get();
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, 25);
+
+        NativeScriptStatsResponse response = client().execute(NativeScriptStatsAction.INSTANCE, new NativeScriptStatsRequest()).get();
+        assertThat(response.failures().size(), equalTo(0));
+        ScriptMetricsStats stats = response.getTotal().get("is_prime");
+        assertThat(stats.getNewScripts(), greaterThanOrEqualTo(1L));
+        assertThat(stats.getRuns(), equalTo(100L));
+        assertThat(stats.getMatched(), equalTo(25L));
+        assertThat(stats.getNotMatched(), equalTo(75L));
+        // the first run of each script instance is always sampled
+        assertThat(stats.getSampledRuns(), greaterThanOrEqualTo(1L));
+        assertThat(stats.getLatencyPercentile(50), greaterThan(0L));
+        // every segment is reported with the way it was checked
+        long segments = 0;
+        for (long count : stats.getSegments().values()) {
+            segments += count;
+        }
+        assertThat(segments, greaterThanOrEqualTo(1L));
+        assertFalse(stats.getSegments().containsKey("probable"));
+
+        // scripts that were not used are reported with zero runs
+        ScriptMetricsStats mapStats = response.getTotal().get("stockaggs_map");
+        assertThat(mapStats.getRuns(), equalTo(0L));
+
+        // requests without profiling are not profiled
+        assertThat(stats.getProfiledRuns(), equalTo(0L));
+
+        // the breakdown of each shard is returned in the response headers of the profiled request
+        ThreadContext threadContext = client().threadPool().getThreadContext();
+        PlainActionFuture<Tuple<SearchResponse, Map<String, List<String>>>> future = PlainActionFuture.newFuture();
+        client().prepareSearch("test")
+            .setQuery(scriptQuery(new Script(ScriptType.INLINE, "native", "is_prime", Collections.singletonMap("field", "number"))))
+            .setProfile(true)
+            .execute(ActionListener.wrap(r -> future.onResponse(new Tuple<>(r, threadContext.getResponseHeaders())), future::onFailure));
+        searchResponse = future.get().v1();
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, 25);
+        List<String> profiles = future.get().v2().get(ShardSearchResources.PROFILE_HEADER);
+        assertNotNull(profiles);
+        assertThat(profiles.size(), equalTo(searchResponse.getSuccessfulShards()));
+        for (String profile : profiles) {
+            assertThat(profile, containsString("[is_prime] evaluated ["));
+            assertThat(profile, containsString("lookup ["));
+        }
+
+        response = client().execute(NativeScriptStatsAction.INSTANCE, new NativeScriptStatsRequest()).get();
+        stats = response.getTotal().get("is_prime");
+        assertThat(stats.getRuns(), equalTo(200L));
+        assertThat(stats.getProfiledRuns(), equalTo(100L));
+        assertThat(stats.getProfiledLookupNanos() + stats.getProfiledComputeNanos(), greaterThan(0L));
+    }
+}